@@ -1,12 +1,18 @@
 package com.github.mauro1855.ocrservice.config;
 
 import com.github.mauro1855.ocrservice.util.OCRThreadPoolExecutor;
+import com.github.mauro1855.ocrservice.util.ProcessRegistry;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestTemplate;
 
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -16,8 +22,23 @@ import java.util.concurrent.TimeUnit;
 public class AppConfig {
 
     @Bean
-    public RestTemplate getRestTemplate(){
-        return new RestTemplate();
+    public RestTemplate getRestTemplate(@Value("${callback.pool.threads}") int callbackThreads, @Value("${callback.max.per.host}") int
+      maxPerHost, @Value("${callback.connect.timeout}") int connectTimeout, @Value("${callback.read.timeout}") int readTimeout){
+        // keep-alive connections, one per callback thread plus one for the retry job
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(callbackThreads + 1);
+        connectionManager.setDefaultMaxPerRoute(maxPerHost);
+
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .evictIdleConnections(30L, TimeUnit.SECONDS)
+                .build();
+
+        HttpComponentsClientHttpRequestFactory requestFactory = new HttpComponentsClientHttpRequestFactory(httpClient);
+        requestFactory.setConnectTimeout(connectTimeout);
+        requestFactory.setReadTimeout(readTimeout);
+        requestFactory.setBufferRequestBody(false);
+        return new RestTemplate(requestFactory);
     }
 
     @Bean
@@ -26,9 +47,25 @@ public class AppConfig {
     }
 
     @Bean
-    public ThreadPoolExecutor threadPoolExecutor(@Value("${pool.nb.threads}") int nbThread, @Value("${pool.queue.initial.size}") int 
-      queueInitialSize) {
-        return new OCRThreadPoolExecutor(nbThread, nbThread, 0L, TimeUnit.MILLISECONDS, queueInitialSize);
+    public OCRThreadPoolExecutor threadPoolExecutor(@Value("${pool.nb.threads}") int nbThread, @Value("${pool.queue.initial.size}") int 
+      queueInitialSize, @Value("${pool.queue.aging.interval}") long agingInterval, @Value("${pool.queue.aging.max.levels}") int
+      maxAgingLevels, @Value("${pool.lanes.size.limits}") String laneSizeLimits, @Value("${pool.lanes.reserved.threads}") String
+      laneReservedThreads, @Value("${pool.bands.priority.limits}") String bandPriorityLimits, @Value("${pool.bands.min.threads}") String bandMinThreads, @Value("${pool.bands.max.threads}")
+      String bandMaxThreads, @Value("${pool.preemption.enabled}") boolean preemption, @Value("${pool.preemption.priority}") int
+      preemptionPriority) {
+        OCRThreadPoolExecutor executor = new OCRThreadPoolExecutor(nbThread, nbThread, 0L, TimeUnit.MILLISECONDS, queueInitialSize,
+                agingInterval, Arrays.stream(StringUtils.tokenizeToStringArray(laneSizeLimits, ",")).mapToLong(Long::parseLong).toArray(),
+                toIntArray(laneReservedThreads));
+        executor.setMaxAgingLevels(maxAgingLevels);
+        executor.setPriorityBands(toIntArray(bandPriorityLimits), toIntArray(bandMinThreads), toIntArray(bandMaxThreads));
+        if(preemption)
+            executor.setPreemption(preemptionPriority, ProcessRegistry.getShared());
+        return executor;
+    }
+
+    // comma separated list of integers
+    private static int[] toIntArray(String values) {
+        return Arrays.stream(StringUtils.tokenizeToStringArray(values, ",")).mapToInt(Integer::parseInt).toArray();
     }
 
     @Bean
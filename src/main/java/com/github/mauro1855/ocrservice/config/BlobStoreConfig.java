@@ -0,0 +1,49 @@
+package com.github.mauro1855.ocrservice.config;
+
+import com.github.mauro1855.ocrservice.storage.BlobStore;
+import com.github.mauro1855.ocrservice.storage.FileSystemBlobStore;
+import com.github.mauro1855.ocrservice.storage.MySQLBlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.File;
+
+/**
+ * Creates the store of the request files selected by the blob.store property.
+ * The filesystem store is local to the node (its files, and the locks of its
+ * reference counts), so it can't be used in clustered mode
+ */
+@Configuration
+public class BlobStoreConfig {
+
+    private static Logger logger = LoggerFactory.getLogger(BlobStoreConfig.class);
+
+    @Bean
+    public BlobStore blobStore(NamedParameterJdbcTemplate ocrServiceJdbcTemplate, PlatformTransactionManager transactionManager,
+                               @Value("${blob.store}") String blobStoreType,
+                               @Value("${blob.store.dir}") String blobStoreDir, @Value("${cluster.enabled}") boolean clusterEnabled) {
+
+        BlobStore blobStore;
+        switch (blobStoreType.toLowerCase()) {
+            case "mysql":
+                blobStore = new MySQLBlobStore(ocrServiceJdbcTemplate);
+                break;
+            case "filesystem":
+                // the requests claimed by another node would miss their files
+                if(clusterEnabled)
+                    throw new IllegalArgumentException("The filesystem blob store can't be used in clustered mode, use blob.store=mysql");
+                blobStore = new FileSystemBlobStore(ocrServiceJdbcTemplate, transactionManager, new File(blobStoreDir));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown blob store: " + blobStoreType);
+        }
+
+        logger.info("Using blob store {}", blobStore.getClass().getSimpleName());
+        return blobStore;
+    }
+}
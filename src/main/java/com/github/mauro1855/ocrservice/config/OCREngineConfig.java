@@ -0,0 +1,90 @@
+package com.github.mauro1855.ocrservice.config;
+
+import com.github.mauro1855.ocrservice.engine.CommandLineOCREngine;
+import com.github.mauro1855.ocrservice.engine.DockerOCREngine;
+import com.github.mauro1855.ocrservice.engine.FakeOCREngine;
+import com.github.mauro1855.ocrservice.engine.OCREngine;
+import com.github.mauro1855.ocrservice.engine.OCRTimeoutPolicy;
+import com.github.mauro1855.ocrservice.engine.PooledOCREngine;
+import com.github.mauro1855.ocrservice.engine.ProcessOCREngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.regex.Pattern;
+
+/**
+ * Creates the OCR engine selected by the ocr.engine.mode property
+ */
+@Configuration
+public class OCREngineConfig {
+
+    private static Logger logger = LoggerFactory.getLogger(OCREngineConfig.class);
+
+    @Value("${ocr.command}")
+    private String ocrCommand;
+    @Value("${ocr.extra.commands}")
+    private String ocrExtraCommands;
+    @Value("${ocr.output.required}")
+    private boolean ocrOutputRequired;
+    @Value("${ocr.output.file.prefix.command}")
+    private String ocrOutputFilePrefixCommand;
+    @Value("${ocr.process.groups}")
+    private boolean ocrProcessGroups;
+    @Value("${ocr.timeout.min}")
+    private long ocrTimeoutMin;
+    @Value("${ocr.timeout.per.page}")
+    private long ocrTimeoutPerPage;
+    @Value("${ocr.timeout.max}")
+    private long ocrTimeoutMax;
+    @Value("${ocr.timeout.idle}")
+    private long ocrTimeoutIdle;
+    @Value("${ocr.progress.pattern}")
+    private String ocrProgressPattern;
+
+    @Bean(destroyMethod = "shutdown")
+    public OCREngine ocrEngine(Runtime runtime, @Value("${ocr.engine.mode}") String ocrEngineMode,
+                               @Value("${ocr.pool.command}") String ocrPoolCommand, @Value("${ocr.pool.size}") int ocrPoolSize,
+                               @Value("${ocr.pool.max.jobs}") int ocrPoolMaxJobs, @Value("${ocr.fake.latency}") long ocrFakeLatency) {
+
+        OCREngine ocrEngine;
+        switch (ocrEngineMode.toLowerCase()) {
+            case "cli":
+                ocrEngine = new CommandLineOCREngine(runtime, ocrCommand, ocrExtraCommands, ocrOutputRequired, ocrOutputFilePrefixCommand);
+                break;
+            case "docker":
+                ocrEngine = new DockerOCREngine(runtime, ocrCommand, ocrExtraCommands, ocrOutputRequired, ocrOutputFilePrefixCommand);
+                break;
+            case "pool":
+                ocrEngine = new PooledOCREngine(runtime, ocrPoolCommand, ocrPoolSize, ocrPoolMaxJobs);
+                break;
+            case "fake":
+                ocrEngine = new FakeOCREngine(ocrFakeLatency);
+                break;
+            case "exec":
+                // command line or docker, depending on the command
+                if(ocrCommand.contains("docker"))
+                    ocrEngine = new DockerOCREngine(runtime, ocrCommand, ocrExtraCommands, ocrOutputRequired, ocrOutputFilePrefixCommand);
+                else
+                    ocrEngine = new CommandLineOCREngine(runtime, ocrCommand, ocrExtraCommands, ocrOutputRequired, ocrOutputFilePrefixCommand);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown OCR engine mode: " + ocrEngineMode);
+        }
+
+        OCRTimeoutPolicy timeoutPolicy = new OCRTimeoutPolicy(ocrTimeoutMin, ocrTimeoutPerPage, ocrTimeoutMax, ocrTimeoutIdle,
+                ocrProgressPattern == null || ocrProgressPattern.isEmpty() ? null : Pattern.compile(ocrProgressPattern));
+        if(ocrEngine instanceof ProcessOCREngine) {
+            ((ProcessOCREngine) ocrEngine).setProcessGroups(ocrProcessGroups);
+            ((ProcessOCREngine) ocrEngine).setTimeoutPolicy(timeoutPolicy);
+        } else if(ocrEngine instanceof PooledOCREngine) {
+            ((PooledOCREngine) ocrEngine).setProcessGroups(ocrProcessGroups);
+            ((PooledOCREngine) ocrEngine).setTimeoutPolicy(timeoutPolicy);
+        }
+
+        logger.info("Using OCR engine {}", ocrEngine.getClass().getSimpleName());
+        return ocrEngine;
+    }
+}
@@ -1,19 +1,33 @@
 package com.github.mauro1855.ocrservice.controller;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.service.OCRCompletionNotifier;
 import com.github.mauro1855.ocrservice.service.OCRRequestService;
+import com.github.mauro1855.ocrservice.service.OCRResultService;
+import com.github.mauro1855.ocrservice.util.FileTransfer;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  * Created by mauro1855 on 01/12/2016.
@@ -29,16 +43,33 @@ public class OCRController {
   @Autowired
   private OCRRequestService ocrRequestService;
 
+  @Autowired
+  private OCRResultService ocrResultService;
+
+  @Autowired
+  private OCRCompletionNotifier ocrCompletionNotifier;
+
+  // maximum time (seconds) a client can wait for a request to be processed
+  @Value("${ocr.status.max.wait}")
+  private int statusMaxWait;
+
   @RequestMapping(value = "/request", method = RequestMethod.POST)
   @ResponseBody
   public ResponseEntity<String> registerNewOCRRequest(@RequestParam(required = false) String requestorReference,
                                               @RequestParam Short priority,
-                                              @RequestParam String callbackEndpoint,
-                                              @RequestParam HttpMethod callbackMethod,
+                                              @RequestParam(required = false) String callbackEndpoint,
+                                              @RequestParam(required = false) HttpMethod callbackMethod,
                                               @RequestParam MultipartFile file) throws IOException {
 
     JSONObject toReturn = new JSONObject();
 
+    // without callback, the client fetches the result itself (pull mode)
+    if((callbackEndpoint == null) != (callbackMethod == null)){
+      toReturn.put("success", false);
+      toReturn.put("message", "callbackEndpoint and callbackMethod must be given together");
+      return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(toReturn.toString(1));
+    }
+
     // gets mimetype of file and checks if it is a PDF
     // if it is not, the request to OCR is not made
     String mimetype = file.getContentType();
@@ -52,9 +83,23 @@ public class OCRController {
       return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).body(toReturn.toString(1));
     }
 
+    // hashes the content of the file, so that repeated documents
+    // can be answered from the result cache
+    String contentHash;
+    try(InputStream fileStream = file.getInputStream()) {
+      contentHash = DigestUtils.sha256Hex(fileStream);
+    }
+
     // creates a new OCR request an registers it
-    OCRRequest newRequest = new OCRRequest(requestorReference, callbackEndpoint, callbackMethod, priority, file.getBytes());
-    Long requestId = ocrRequestService.registerNewOCRRequest(newRequest);
+    // the file is streamed from the multipart (spooled to disk) into the DB,
+    // so it is never fully loaded into memory
+    OCRRequest newRequest;
+    Long requestId;
+    try(InputStream fileStream = file.getInputStream()) {
+      newRequest = new OCRRequest(requestorReference, callbackEndpoint, callbackMethod, priority, fileStream, file.getSize());
+      newRequest.setContentHash(contentHash);
+      requestId = ocrRequestService.registerNewOCRRequest(newRequest);
+    }
 
     logger.info("Registered new request {} with priority {}", requestId, priority);
 
@@ -76,5 +121,191 @@ public class OCRController {
     return ResponseEntity.status(HttpStatus.ACCEPTED).body(toReturn.toString(1));
 
   }
-}
 
+  /**
+   * Gets the status of a request. With wait > 0, the reply is sent as soon as
+   * the request is processed, or after wait seconds if it is still in progress
+   *
+   * @param requestId of the request
+   * @param requestToken received when the request was accepted
+   * @param wait maximum time (seconds) to wait for the request to be processed
+   * @return {DeferredResult} the status of the request
+   */
+  @RequestMapping(value = "/request/{requestId}", method = RequestMethod.GET)
+  public DeferredResult<ResponseEntity<String>> getOCRRequestStatus(@PathVariable Long requestId,
+                                                                   @RequestParam String requestToken,
+                                                                   @RequestParam(defaultValue = "0") int wait) {
+
+    int waitSeconds = Math.min(wait, statusMaxWait);
+    DeferredResult<ResponseEntity<String>> result = new DeferredResult<>(waitSeconds > 0 ? TimeUnit.SECONDS.toMillis(waitSeconds) : null);
+
+    OCRRequest request = ocrResultService.getRequest(requestId, requestToken);
+    if(request == null){
+      result.setResult(errorResponse(HttpStatus.NOT_FOUND, "Request not found"));
+      return result;
+    }
+    if(waitSeconds <= 0 || request.getStatusCode() != 0){
+      result.setResult(statusResponse(request));
+      return result;
+    }
+
+    Consumer<OCRRequest> listener = processed -> result.setResult(statusResponse(processed));
+    ocrCompletionNotifier.addListener(requestId, listener);
+    result.onTimeout(() -> {
+      // the listener only hears of the requests processed by this node
+      OCRRequest latest = ocrResultService.getRequest(requestId, requestToken);
+      result.setResult(statusResponse(latest != null ? latest : request));
+    });
+    result.onCompletion(() -> ocrCompletionNotifier.removeListener(requestId, listener));
+
+    // the request may have been processed while the listener was registered
+    OCRRequest current = ocrResultService.getRequest(requestId, requestToken);
+    if(current != null && current.getStatusCode() != 0)
+      result.setResult(statusResponse(current));
+
+    return result;
+  }
+
+  /**
+   * Cancels a request that was not processed yet: it is removed from
+   * the queue, or its OCR is stopped if it is being processed
+   *
+   * @param requestId of the request
+   * @param requestToken received when the request was accepted
+   * @return {ResponseEntity} the status of the cancelled request
+   */
+  @RequestMapping(value = "/request/{requestId}", method = RequestMethod.DELETE)
+  public ResponseEntity<String> cancelOCRRequest(@PathVariable Long requestId,
+                                                 @RequestParam String requestToken) {
+
+    OCRRequest request = ocrResultService.getRequest(requestId, requestToken);
+    if(request == null)
+      return errorResponse(HttpStatus.NOT_FOUND, "Request not found");
+
+    if(request.getStatusCode() != 0 || !ocrRequestService.cancelRequest(request))
+      return errorResponse(HttpStatus.CONFLICT, "The request has already been processed");
+
+    logger.info("Request {} cancelled by the client", requestId);
+    return statusResponse(request);
+  }
+
+  /**
+   * Streams the status of a request as server-sent events: the current
+   * status, then the final status as soon as the request is processed
+   *
+   * @param requestId of the request
+   * @param requestToken received when the request was accepted
+   * @return {ResponseEntity} the event stream
+   */
+  @RequestMapping(value = "/request/{requestId}/events", method = RequestMethod.GET)
+  public ResponseEntity<SseEmitter> getOCRRequestEvents(@PathVariable Long requestId,
+                                                        @RequestParam String requestToken) throws IOException {
+
+    OCRRequest request = ocrResultService.getRequest(requestId, requestToken);
+    if(request == null)
+      return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+
+    SseEmitter emitter = new SseEmitter(TimeUnit.SECONDS.toMillis(statusMaxWait));
+    sendStatusEvent(emitter, request);
+    if(request.getStatusCode() != 0){
+      emitter.complete();
+      return ResponseEntity.ok(emitter);
+    }
+
+    Consumer<OCRRequest> listener = processed -> {
+      try {
+        sendStatusEvent(emitter, processed);
+        emitter.complete();
+      } catch (IOException ex) {
+        emitter.completeWithError(ex);
+      }
+    };
+    ocrCompletionNotifier.addListener(requestId, listener);
+    emitter.onTimeout(() -> ocrCompletionNotifier.removeListener(requestId, listener));
+    emitter.onCompletion(() -> ocrCompletionNotifier.removeListener(requestId, listener));
+
+    // the request may have been processed while the listener was registered
+    OCRRequest current = ocrResultService.getRequest(requestId, requestToken);
+    if(current != null && current.getStatusCode() != 0){
+      ocrCompletionNotifier.removeListener(requestId, listener);
+      listener.accept(current);
+    }
+
+    return ResponseEntity.ok(emitter);
+  }
+
+  /**
+   * Downloads the OCRed file of a request. Conditional and
+   * range requests are supported, so downloads can be resumed.
+   * The result of a request without callback is marked as
+   * downloaded once its last byte was written to the client
+   *
+   * @param requestId of the request
+   * @param requestToken received when the request was accepted
+   * @return {void}
+   */
+  @RequestMapping(value = "/request/{requestId}/result", method = {RequestMethod.GET, RequestMethod.HEAD})
+  public void getOCRResult(@PathVariable Long requestId,
+                           @RequestParam String requestToken,
+                           HttpServletRequest httpRequest,
+                           HttpServletResponse httpResponse) throws IOException {
+
+    OCRRequest request = ocrResultService.getRequest(requestId, requestToken);
+    if(request == null){
+      writeResponse(httpResponse, errorResponse(HttpStatus.NOT_FOUND, "Request not found"));
+      return;
+    }
+    if(request.getStatusCode() != 1){
+      String message = request.getStatusCode() == 0 ? "The request has not been processed yet" : request.getStatusMessage();
+      writeResponse(httpResponse, errorResponse(HttpStatus.CONFLICT, message));
+      return;
+    }
+
+    File resultFile = ocrResultService.getResultFile(request);
+    if(resultFile == null){
+      writeResponse(httpResponse, errorResponse(HttpStatus.GONE, "The result is no longer available"));
+      return;
+    }
+
+    // sendfile writes the body after the request is handled, too late to know the download ended
+    boolean awaitDownload = !request.hasCallback() && !request.isCommunicated();
+    if(FileTransfer.sendFile(httpRequest, httpResponse, resultFile, PDF_MIMETYPE, ocrResultService.getETag(request), !awaitDownload)
+      && awaitDownload)
+      ocrResultService.resultDownloaded(request);
+  }
+
+  private static JSONObject statusJson(OCRRequest request){
+    JSONObject status = new JSONObject();
+    status.put("success", true);
+    status.put("requestId", request.getId());
+    status.put("requestorReference", request.getRequestorReference());
+    status.put("statusCode", request.getStatusCode());
+    status.put("statusMessage", request.getStatusMessage());
+    return status;
+  }
+
+  private static ResponseEntity<String> statusResponse(OCRRequest request){
+    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(statusJson(request).toString(1));
+  }
+
+  private static ResponseEntity<String> errorResponse(HttpStatus status, String message){
+    JSONObject toReturn = new JSONObject();
+    toReturn.put("success", false);
+    toReturn.put("message", message);
+    return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(toReturn.toString(1));
+  }
+
+  private static void sendStatusEvent(SseEmitter emitter, OCRRequest request) throws IOException {
+    emitter.send(SseEmitter.event().name("status").data(statusJson(request).toString(), MediaType.APPLICATION_JSON));
+  }
+
+  private static void writeResponse(HttpServletResponse httpResponse, ResponseEntity<String> response) throws IOException {
+    httpResponse.setStatus(response.getStatusCodeValue());
+    httpResponse.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    httpResponse.getWriter().write(response.getBody());
+  }
+
+  public void setStatusMaxWait(int statusMaxWait) {
+    this.statusMaxWait = statusMaxWait;
+  }
+}
@@ -3,16 +3,29 @@ package com.github.mauro1855.ocrservice.domain;
 import java.util.Arrays;
 import org.springframework.http.HttpMethod;
 
+import java.io.File;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * Created by mauro1855 on 01/12/2016.
  */
 public class OCRRequest implements Serializable {
 
+  /**
+   * Fields of a request that can change once it is stored. The
+   * file to OCR is not one of them: it is only written on insert
+   */
+  public enum Field {
+    STATUS_CODE, STATUS_MESSAGE, COMMUNICATED, COMMUNICATION_ATTEMPTED, COMMUNICATED_DATE, OCR_START_DATE, OCR_END_DATE,
+    CALLBACK_ATTEMPTS, NEXT_CALLBACK_DATE, CALLBACK_DEAD, OCRED_FILE
+  }
+
   private Long id;
   private String requestorReference;
   private String callbackEndpoint;
@@ -23,14 +36,33 @@ public class OCRRequest implements Serializable {
   private String statusMessage;
   private boolean communicated;
   private boolean communicationAttempted;
+  private int callbackAttempts; // failed replies to the client
+  private Date nextCallbackDate; // when the reply can be retried (null: as soon as possible)
+  private boolean callbackDead; // gave up replying to the client
   private byte[] fileToOCRByteArray;
   private byte[] ocredFileByteArray;
+  private String contentHash; // SHA-256 of the file to OCR
+  private String leaseOwner; // node processing the request (clustered mode)
+  private Date leaseExpirationDate; // when other nodes can claim the request
+  private int processingAttempts; // times a node started processing the request
+
+  // streamed source of the file to OCR, only set while the request is being
+  // registered (it is consumed when the request is inserted in the database)
+  private transient InputStream fileToOCRStream;
+  private long fileToOCRSize;
+
+  // OCRed file written by the worker, streamed to the database instead
+  // of being loaded in memory (the worker removes it once it is stored)
+  private transient File ocredFile;
 
   private Date requestCreationDate;
   private Date requestCommunicatedDate;
   private Date requestOCRStartDate;
   private Date requestOCREndDate;
 
+  // fields changed since the request was last read from or written to the database
+  private final Set<Field> dirtyFields = EnumSet.noneOf(Field.class);
+
   private static final SecureRandom RANDOMIZER = new SecureRandom();
 
   public OCRRequest(String requestorReference, String callbackEndpoint, HttpMethod callbackMethod, Short priority, byte[] fileToOCRByteArray) {
@@ -48,6 +80,12 @@ public class OCRRequest implements Serializable {
     this.statusMessage = "Request accepted";
   }
 
+  public OCRRequest(String requestorReference, String callbackEndpoint, HttpMethod callbackMethod, Short priority, InputStream fileToOCRStream, long fileToOCRSize) {
+    this(requestorReference, callbackEndpoint, callbackMethod, priority, (byte[]) null);
+    this.fileToOCRStream = fileToOCRStream;
+    this.fileToOCRSize = fileToOCRSize;
+  }
+
   /**
    * Generate random token - generates a random token and sets it
    * token may be useful to clients to validate response with OCR service
@@ -66,6 +104,7 @@ public class OCRRequest implements Serializable {
    */
   public void startOCR(){
     this.requestOCRStartDate = new Date();
+    dirtyFields.add(Field.OCR_START_DATE);
   }
 
   /**
@@ -76,6 +115,7 @@ public class OCRRequest implements Serializable {
    */
   public Long endOCR(){
     this.requestOCREndDate = new Date();
+    dirtyFields.add(Field.OCR_END_DATE);
     return getOCRDuration();
   }
 
@@ -89,6 +129,16 @@ public class OCRRequest implements Serializable {
     return requestOCREndDate.getTime() - requestOCRStartDate.getTime();
   }
 
+  /**
+   * Checks if the result is sent to the client, or if the
+   * client fetches it itself (pull mode, no callback endpoint)
+   *
+   * @return {boolean} true if the client has a callback endpoint
+   */
+  public boolean hasCallback(){
+    return callbackEndpoint != null;
+  }
+
   /**
    * Sets communication properties indicating the OCRed document
    * was sent back to the client and when
@@ -99,6 +149,23 @@ public class OCRRequest implements Serializable {
     this.communicated = true;
     this.communicationAttempted = true;
     this.requestCommunicatedDate = new Date();
+    dirtyFields.addAll(EnumSet.of(Field.COMMUNICATED, Field.COMMUNICATION_ATTEMPTED, Field.COMMUNICATED_DATE));
+  }
+
+  /**
+   * Marks the reply to the client as due, so that the failed
+   * communications retry job sends it if the reply waiting in
+   * memory is lost (the node stopped before sending it)
+   *
+   * @param nextCallbackDate when the retry job may send the reply
+   * @return {void}
+   */
+  public void replyDue(Date nextCallbackDate){
+    if(!hasCallback())
+      return;
+    this.communicationAttempted = true;
+    this.nextCallbackDate = nextCallbackDate;
+    dirtyFields.addAll(EnumSet.of(Field.COMMUNICATION_ATTEMPTED, Field.NEXT_CALLBACK_DATE));
   }
 
   /**
@@ -109,8 +176,28 @@ public class OCRRequest implements Serializable {
    */
   public void failedToCommunicated(){
     this.communicationAttempted = true;
+    dirtyFields.add(Field.COMMUNICATION_ATTEMPTED);
+  }
+
+
+  /**
+   * Gets the fields changed since the request was last
+   * read from or written to the database
+   *
+   * @return {Set} copy of the changed fields
+   */
+  public Set<Field> getDirtyFields(){
+    return dirtyFields.isEmpty() ? EnumSet.noneOf(Field.class) : EnumSet.copyOf(dirtyFields);
   }
 
+  /**
+   * Marks the request as in sync with the database
+   *
+   * @return {void}
+   */
+  public void clearDirtyFields(){
+    dirtyFields.clear();
+  }
 
   public Long getId() {
     return id;
@@ -168,16 +255,42 @@ public class OCRRequest implements Serializable {
     this.fileToOCRByteArray = fileToOCRByteArray;
   }
 
+  public InputStream getFileToOCRStream() {
+    return fileToOCRStream;
+  }
+
+  public void setFileToOCRStream(InputStream fileToOCRStream) {
+    this.fileToOCRStream = fileToOCRStream;
+  }
+
+  public long getFileToOCRSize() {
+    return fileToOCRSize;
+  }
+
+  public void setFileToOCRSize(long fileToOCRSize) {
+    this.fileToOCRSize = fileToOCRSize;
+  }
+
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  public void setContentHash(String contentHash) {
+    this.contentHash = contentHash;
+  }
+
   public Short getStatusCode() {
     return statusCode;
   }
 
   public void setStatusCode(Short statusCode) {
     this.statusCode = statusCode;
+    dirtyFields.add(Field.STATUS_CODE);
   }
 
   public void setStatusCode(int statusCode) {
     this.statusCode = (short) statusCode;
+    dirtyFields.add(Field.STATUS_CODE);
   }
 
   public String getStatusMessage() {
@@ -186,6 +299,7 @@ public class OCRRequest implements Serializable {
 
   public void setStatusMessage(String statusMessage) {
     this.statusMessage = statusMessage;
+    dirtyFields.add(Field.STATUS_MESSAGE);
   }
 
   public boolean isCommunicated() {
@@ -194,6 +308,7 @@ public class OCRRequest implements Serializable {
 
   public void setCommunicated(boolean communicated) {
     this.communicated = communicated;
+    dirtyFields.add(Field.COMMUNICATED);
   }
 
   public boolean isCommunicationAttempted() {
@@ -202,6 +317,58 @@ public class OCRRequest implements Serializable {
 
   public void setCommunicationAttempted(boolean communicationAttempted) {
     this.communicationAttempted = communicationAttempted;
+    dirtyFields.add(Field.COMMUNICATION_ATTEMPTED);
+  }
+
+  public int getCallbackAttempts() {
+    return callbackAttempts;
+  }
+
+  public void setCallbackAttempts(int callbackAttempts) {
+    this.callbackAttempts = callbackAttempts;
+    dirtyFields.add(Field.CALLBACK_ATTEMPTS);
+  }
+
+  public Date getNextCallbackDate() {
+    return nextCallbackDate;
+  }
+
+  public void setNextCallbackDate(Date nextCallbackDate) {
+    this.nextCallbackDate = nextCallbackDate;
+    dirtyFields.add(Field.NEXT_CALLBACK_DATE);
+  }
+
+  public boolean isCallbackDead() {
+    return callbackDead;
+  }
+
+  public void setCallbackDead(boolean callbackDead) {
+    this.callbackDead = callbackDead;
+    dirtyFields.add(Field.CALLBACK_DEAD);
+  }
+
+  public int getProcessingAttempts() {
+    return processingAttempts;
+  }
+
+  public void setProcessingAttempts(int processingAttempts) {
+    this.processingAttempts = processingAttempts;
+  }
+
+  public String getLeaseOwner() {
+    return leaseOwner;
+  }
+
+  public void setLeaseOwner(String leaseOwner) {
+    this.leaseOwner = leaseOwner;
+  }
+
+  public Date getLeaseExpirationDate() {
+    return leaseExpirationDate;
+  }
+
+  public void setLeaseExpirationDate(Date leaseExpirationDate) {
+    this.leaseExpirationDate = leaseExpirationDate;
   }
 
   public byte[] getOcredFileByteArray() {
@@ -210,6 +377,16 @@ public class OCRRequest implements Serializable {
 
   public void setOcredFileByteArray(byte[] ocredFileByteArray) {
     this.ocredFileByteArray = ocredFileByteArray;
+    dirtyFields.add(Field.OCRED_FILE);
+  }
+
+  public File getOcredFile() {
+    return ocredFile;
+  }
+
+  public void setOcredFile(File ocredFile) {
+    this.ocredFile = ocredFile;
+    dirtyFields.add(Field.OCRED_FILE);
   }
 
   public Date getRequestCreationDate() {
@@ -226,6 +403,7 @@ public class OCRRequest implements Serializable {
 
   public void setRequestCommunicatedDate(Date requestCommunicatedDate) {
     this.requestCommunicatedDate = requestCommunicatedDate;
+    dirtyFields.add(Field.COMMUNICATED_DATE);
   }
 
   public Date getRequestOCRStartDate() {
@@ -234,6 +412,7 @@ public class OCRRequest implements Serializable {
 
   public void setRequestOCRStartDate(Date requestOCRStartDate) {
     this.requestOCRStartDate = requestOCRStartDate;
+    dirtyFields.add(Field.OCR_START_DATE);
   }
 
   public Date getRequestOCREndDate() {
@@ -242,6 +421,7 @@ public class OCRRequest implements Serializable {
 
   public void setRequestOCREndDate(Date requestOCREndDate) {
     this.requestOCREndDate = requestOCREndDate;
+    dirtyFields.add(Field.OCR_END_DATE);
   }
 
   @Override
@@ -265,7 +445,7 @@ public class OCRRequest implements Serializable {
     if (id != null ? !id.equals(that.id) : that.id != null) return false;
     if (requestorReference != null ? !requestorReference.equals(that.requestorReference) : that.requestorReference != null)
       return false;
-    if (!callbackEndpoint.equals(that.callbackEndpoint)) return false;
+    if (callbackEndpoint != null ? !callbackEndpoint.equals(that.callbackEndpoint) : that.callbackEndpoint != null) return false;
     if (callbackMethod != that.callbackMethod) return false;
     if (!priority.equals(that.priority)) return false;
     if (!token.equals(that.token)) return false;
@@ -284,8 +464,8 @@ public class OCRRequest implements Serializable {
   public int hashCode() {
     int result = id != null ? id.hashCode() : 0;
     result = 31 * result + (requestorReference != null ? requestorReference.hashCode() : 0);
-    result = 31 * result + callbackEndpoint.hashCode();
-    result = 31 * result + callbackMethod.hashCode();
+    result = 31 * result + (callbackEndpoint != null ? callbackEndpoint.hashCode() : 0);
+    result = 31 * result + (callbackMethod != null ? callbackMethod.hashCode() : 0);
     result = 31 * result + priority.hashCode();
     result = 31 * result + token.hashCode();
     result = 31 * result + statusCode.hashCode();
@@ -0,0 +1,51 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import java.io.File;
+
+/**
+ * Engine that runs an OCR application installed in the machine:
+ * {@code <command> <extra commands> <source> [<output prefix> <target>]}
+ * <p>
+ * If the application does not accept the output path, it is assumed
+ * it writes the OCRed file next to the source file, with "_ocr"
+ * appended to its name (behavior of pypdfocr)
+ */
+public class CommandLineOCREngine extends ProcessOCREngine {
+
+  protected final String ocrCommand;
+  protected final String ocrExtraCommands;
+  protected final boolean ocrOutputRequired;
+  protected final String ocrOutputFilePrefixCommand;
+
+  public CommandLineOCREngine(Runtime runtime, String ocrCommand, String ocrExtraCommands, boolean ocrOutputRequired,
+                              String ocrOutputFilePrefixCommand) {
+    super(runtime);
+    this.ocrCommand = ocrCommand;
+    this.ocrExtraCommands = ocrExtraCommands;
+    this.ocrOutputRequired = ocrOutputRequired;
+    this.ocrOutputFilePrefixCommand = ocrOutputFilePrefixCommand;
+  }
+
+  @Override
+  protected String buildCommand(File sourceFile, File targetFile) {
+    String commandToExecute = ocrCommand + " " + ocrExtraCommands + " " + sourceFile.getAbsolutePath();
+
+    if(ocrOutputRequired)
+      commandToExecute += " " + ocrOutputFilePrefixCommand + " " + targetFile.getAbsolutePath();
+
+    return commandToExecute;
+  }
+
+  @Override
+  protected File getOutputFile(File sourceFile, File targetFile) {
+    if(ocrOutputRequired)
+      return targetFile;
+
+    return new File(sourceFile.getParentFile(), sourceFile.getName().replace(".pdf", "_ocr.pdf"));
+  }
+
+  @Override
+  public String getSignature() {
+    return ocrCommand + "|" + ocrExtraCommands + "|" + ocrOutputRequired + "|" + ocrOutputFilePrefixCommand;
+  }
+}
@@ -0,0 +1,30 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import java.io.File;
+
+/**
+ * Engine that runs a dockerized OCR application. The folder of the
+ * files replaces "!!folder!!" in the command (so it can be shared with
+ * the container), and the files are passed to the application by name
+ */
+public class DockerOCREngine extends CommandLineOCREngine {
+
+  public static final String VAR_DOCKER_SHARE_FOLDER = "!!folder!!";
+
+  public DockerOCREngine(Runtime runtime, String ocrCommand, String ocrExtraCommands, boolean ocrOutputRequired,
+                         String ocrOutputFilePrefixCommand) {
+    super(runtime, ocrCommand, ocrExtraCommands, ocrOutputRequired, ocrOutputFilePrefixCommand);
+  }
+
+  @Override
+  protected String buildCommand(File sourceFile, File targetFile) {
+    String folder = sourceFile.getAbsoluteFile().getParent() + File.separator;
+    String commandToExecute = ocrCommand.replace(VAR_DOCKER_SHARE_FOLDER, folder) + " " + ocrExtraCommands + " " +
+        sourceFile.getName();
+
+    if(ocrOutputRequired)
+      commandToExecute += " " + ocrOutputFilePrefixCommand + " " + targetFile.getName();
+
+    return commandToExecute;
+  }
+}
@@ -0,0 +1,45 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Engine that does not OCR: after a fixed latency, it copies the
+ * source file to the target file. Allows benchmarking and load testing
+ * the service (queueing, persistence, callbacks) without an OCR application
+ */
+public class FakeOCREngine implements OCREngine {
+
+  private static Logger logger = LoggerFactory.getLogger(FakeOCREngine.class);
+
+  private final long latencyMillis;
+
+  public FakeOCREngine(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  @Override
+  public OCRResult ocr(File sourceFile, File targetFile, String description) {
+    try {
+      Thread.sleep(latencyMillis);
+      FileUtils.copyFile(sourceFile, targetFile);
+      logger.debug("Fake OCR of {} in {} ms", description, latencyMillis);
+      return OCRResult.success();
+
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return OCRResult.error("The processing of the " + description + " was interrupted");
+    } catch (IOException ex) {
+      return OCRResult.transientError("An internal error occured while processing the " + description);
+    }
+  }
+
+  @Override
+  public String getSignature() {
+    return "fake";
+  }
+}
@@ -0,0 +1,34 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import java.io.File;
+
+/**
+ * Engine used by the worker to OCR a file
+ */
+public interface OCREngine {
+
+  /**
+   * OCRs the source file, writing the OCRed file to the target file
+   *
+   * @param sourceFile file to OCR
+   * @param targetFile OCRed file to be written
+   * @param description of what is being OCRed, for logs and messages
+   * @return {OCRResult} outcome of the OCR
+   */
+  OCRResult ocr(File sourceFile, File targetFile, String description);
+
+  /**
+   * Describes the engine and its configuration. Files OCRed by
+   * engines with different signatures may have different results
+   *
+   * @return {String} signature of the engine
+   */
+  String getSignature();
+
+  /**
+   * Releases the resources of the engine
+   *
+   * @return {void}
+   */
+  default void shutdown() {}
+}
@@ -0,0 +1,71 @@
+package com.github.mauro1855.ocrservice.engine;
+
+/**
+ * Outcome of the OCR of a file by an {@link OCREngine}
+ * <p>
+ * A failure is transient when the same file may be OCRed by another
+ * attempt (time-out, tool killed, process that could not be started),
+ * and permanent when it would fail again (the tool rejected the file)
+ */
+public class OCRResult {
+
+  public enum Status { SUCCESS, ERROR, TIMEOUT }
+
+  private static final OCRResult SUCCESS = new OCRResult(Status.SUCCESS, null, false);
+
+  private final Status status;
+  private final String message;
+  private final boolean transientFailure;
+
+  private OCRResult(Status status, String message, boolean transientFailure) {
+    this.status = status;
+    this.message = message;
+    this.transientFailure = transientFailure;
+  }
+
+  public static OCRResult success() {
+    return SUCCESS;
+  }
+
+  public static OCRResult error(String message) {
+    return new OCRResult(Status.ERROR, message, false);
+  }
+
+  public static OCRResult transientError(String message) {
+    return new OCRResult(Status.ERROR, message, true);
+  }
+
+  public static OCRResult timeout(String message) {
+    return new OCRResult(Status.TIMEOUT, message, true);
+  }
+
+  public boolean isSuccess() {
+    return status == Status.SUCCESS;
+  }
+
+  /**
+   * Checks if another attempt may OCR the file
+   *
+   * @return {boolean} true if the OCR failed for a transient reason
+   */
+  public boolean isTransient() {
+    return transientFailure;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  @Override
+  public String toString() {
+    return "OCRResult{" +
+        "status=" + status +
+        ", message='" + message + '\'' +
+        ", transient=" + transientFailure +
+        '}';
+  }
+}
@@ -0,0 +1,102 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * Time an engine gives to the OCR of a file. The time-out grows with the
+ * number of pages of the file (estimated from its size if it cannot be read),
+ * and a run that shows no progress during the idle time-out is considered
+ * stalled: it is aborted without waiting for the time-out
+ * <p>
+ * Progress is a line of the output of the tool matching the progress
+ * pattern (a page done, for instance), or any output without pattern
+ */
+public class OCRTimeoutPolicy {
+
+  // fixed time-out of 10 minutes, no stall detection
+  public static final OCRTimeoutPolicy DEFAULT = new OCRTimeoutPolicy(TimeUnit.MINUTES.toMillis(10), 0L,
+      TimeUnit.MINUTES.toMillis(10), 0L, null);
+
+  // size of a page, to estimate the number of pages of a file that cannot be read
+  private static final long ESTIMATED_PAGE_SIZE = 100L * 1024L;
+
+  private final long minTimeoutMillis;
+  private final long pageTimeoutMillis;
+  private final long maxTimeoutMillis;
+  private final long idleTimeoutMillis;
+  private final Pattern progressPattern;
+
+  /**
+   * @param minTimeoutMillis time-out of a file without pages
+   * @param pageTimeoutMillis time added to the time-out for each page
+   * @param maxTimeoutMillis maximum time-out, whatever the number of pages
+   * @param idleTimeoutMillis time without progress after which a run is stalled (0 to disable)
+   * @param progressPattern lines of the output that show progress (any output if null)
+   */
+  public OCRTimeoutPolicy(long minTimeoutMillis, long pageTimeoutMillis, long maxTimeoutMillis, long idleTimeoutMillis,
+                          Pattern progressPattern) {
+    this.minTimeoutMillis = minTimeoutMillis;
+    this.pageTimeoutMillis = pageTimeoutMillis;
+    this.maxTimeoutMillis = Math.max(minTimeoutMillis, maxTimeoutMillis);
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.progressPattern = progressPattern;
+  }
+
+  /**
+   * Gets the time-out of the OCR of a file
+   *
+   * @param sourceFile file to OCR
+   * @return {long} time-out in milliseconds
+   */
+  public long getTimeoutMillis(File sourceFile) {
+    if(pageTimeoutMillis <= 0)
+      return minTimeoutMillis;
+
+    long timeout = minTimeoutMillis + pageTimeoutMillis * countPages(sourceFile);
+    return Math.min(timeout, maxTimeoutMillis);
+  }
+
+  /**
+   * Checks if a run showed no progress for too long
+   *
+   * @param lastProgressMillis last time the run showed progress
+   * @param now current time in milliseconds
+   * @return {boolean} true if the run is stalled
+   */
+  public boolean isStalled(long lastProgressMillis, long now) {
+    return idleTimeoutMillis > 0 && now - lastProgressMillis >= idleTimeoutMillis;
+  }
+
+  public long getIdleTimeoutMillis() {
+    return idleTimeoutMillis;
+  }
+
+  public Pattern getProgressPattern() {
+    return progressPattern;
+  }
+
+  // number of pages of the file, estimated from its size if it is not a readable PDF
+  static long countPages(File sourceFile) {
+    try(PDDocument document = PDDocument.load(sourceFile, MemoryUsageSetting.setupTempFileOnly())) {
+      return document.getNumberOfPages();
+    } catch (Exception ex) {
+      return Math.max(1L, sourceFile.length() / ESTIMATED_PAGE_SIZE);
+    }
+  }
+
+  /**
+   * Describes a duration for the messages, in minutes or seconds
+   *
+   * @param millis duration
+   * @return {String} for instance "10 minute" or "90 second"
+   */
+  public static String describe(long millis) {
+    if(millis >= 60000L && millis % 60000L == 0)
+      return TimeUnit.MILLISECONDS.toMinutes(millis) + " minute";
+    return Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(millis)) + " second";
+  }
+}
@@ -0,0 +1,281 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import com.github.mauro1855.ocrservice.util.ProcessGroup;
+import com.github.mauro1855.ocrservice.util.ProcessOutputPump;
+import com.github.mauro1855.ocrservice.util.ProcessOutputPump.ProcessOutput;
+import java.io.File;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Engine that keeps a pool of long-lived OCR processes, so that the OCR engine (and its
+ * language models) is not loaded again for every file.
+ * <p>
+ * The processes receive one job per line in their standard input,
+ * "&lt;source path&gt;\t&lt;target path&gt;", and must answer with one line in their
+ * standard output: "OK" when the target file was written, or "ERROR &lt;message&gt;".
+ * A "PING" line must be answered with "PONG" (health check). Any other
+ * output line is ignored.
+ * <p>
+ * With process groups enabled, each process runs in its own process group,
+ * so that the tools it starts are killed with it when it is recycled or
+ * aborted, and its group is written to an "ocr-pool-*.pid" file in the java
+ * temp folder while it runs.
+ * <p>
+ * The time given to a file is set by the {@link OCRTimeoutPolicy} of the
+ * pool: a process that stops showing progress (in its output lines other
+ * than the answers, or its standard error) is aborted without waiting for
+ * the time-out.
+ * <p>
+ * The output of the processes is read by the shared {@link ProcessOutputPump},
+ * and the failures come with the end of what the process wrote in its
+ * standard error for the file.
+ */
+public class PooledOCREngine implements OCREngine {
+
+    private static Logger logger = LoggerFactory.getLogger(PooledOCREngine.class);
+
+    private static final long HEALTH_CHECK_IDLE_MILLIS = 30000L;
+    private static final long HEALTH_CHECK_TIMEOUT_SECONDS = 5L;
+
+    // bytes of the end of the standard error of a process logged when it fails
+    private static final int ERROR_TAIL_SIZE = 2048;
+
+    // maximum time between two checks of the progress of a process
+    private static final long STALL_CHECK_INTERVAL_MILLIS = 1000L;
+
+    private final Runtime runtime;
+    private final String command;
+    private final int maxJobsPerProcess;
+
+    private boolean processGroups = false;
+
+    private OCRTimeoutPolicy timeoutPolicy = OCRTimeoutPolicy.DEFAULT;
+
+    private final Semaphore permits;
+    private final BlockingQueue<PooledProcess> idleProcesses = new LinkedBlockingQueue<>();
+
+    public PooledOCREngine(Runtime runtime, String command, int size, int maxJobsPerProcess) {
+        this.runtime = runtime;
+        this.command = command;
+        this.maxJobsPerProcess = maxJobsPerProcess;
+        this.permits = new Semaphore(size, true);
+    }
+
+    @Override
+    public OCRResult ocr(File sourceFile, File targetFile, String description) {
+        try {
+            logger.debug("Sending {} to the OCR process pool...", description);
+            String error = process(sourceFile.getAbsolutePath(), targetFile.getAbsolutePath(),
+                    timeoutPolicy.getTimeoutMillis(sourceFile), TimeUnit.MILLISECONDS);
+
+            if(error != null){
+                logger.error("An error occurred running the tool for {}: {}", description, error);
+                return OCRResult.error(ProcessOCREngine.withErrorTail("An internal error occured while processing the "
+                        + description, error));
+            }
+            return OCRResult.success();
+
+        } catch (TimeoutException ex) {
+            logger.warn("{} {} - aborting", StringUtils.capitalize(description), ex.getMessage());
+            return OCRResult.timeout(StringUtils.capitalize(description) + " " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return OCRResult.error("The processing of the " + description + " was interrupted");
+        } catch (Exception ex) {
+            // the process died, or could not be started: another process may OCR the file
+            logger.error("An error occurred running the tool for {}:{}", description, ex.getMessage());
+            return OCRResult.transientError(ProcessOCREngine.withErrorTail("An internal error occured while processing the "
+                    + description, StringUtils.defaultString(ex.getMessage())));
+        }
+    }
+
+    public void setProcessGroups(boolean processGroups) {
+        this.processGroups = processGroups;
+    }
+
+    public void setTimeoutPolicy(OCRTimeoutPolicy timeoutPolicy) {
+        this.timeoutPolicy = timeoutPolicy;
+    }
+
+    @Override
+    public String getSignature() {
+        return "pool|" + command;
+    }
+
+    /**
+     * OCRs a file in one of the processes of the pool, waiting
+     * for a process to be available if all are busy
+     *
+     * @param sourcePath path of the file to OCR
+     * @param targetPath path of the OCRed file
+     * @param timeout maximum time to wait for the OCR
+     * @param unit of the timeout
+     * @return {String} null if the file was OCRed, otherwise the error returned by the process
+     * (and the end of its standard error)
+     * @throws TimeoutException if the process did not answer in time, or stalled (the process is killed),
+     * with the end of its standard error
+     * @throws IOException if the process died, with the end of its standard error
+     */
+    public String process(String sourcePath, String targetPath, long timeout, TimeUnit unit)
+            throws IOException, InterruptedException, TimeoutException {
+
+        permits.acquire();
+        PooledProcess pooledProcess = null;
+        try {
+            pooledProcess = getHealthyProcess();
+            String response = pooledProcess.request(sourcePath + "\t" + targetPath, timeout, unit, timeoutPolicy);
+            pooledProcess.jobs++;
+
+            if(response.equals("OK"))
+                return null;
+            return ProcessOCREngine.withErrorTail(response.substring(Math.min(response.length(), 6)),
+                    pooledProcess.output.getErrorTail());
+
+        } catch (IOException | TimeoutException | InterruptedException ex) {
+            // the process is in an unknown state (or still processing the file), it is not reused
+            if(pooledProcess == null)
+                throw ex;
+
+            String errorTail = pooledProcess.output.getErrorTail();
+            logger.warn("Destroying OCR process after {}: {}", ex.getClass().getSimpleName(), errorTail);
+            pooledProcess.destroy();
+            pooledProcess = null;
+
+            if(ex instanceof TimeoutException)
+                throw new TimeoutException(ProcessOCREngine.withErrorTail(ex.getMessage() + ".", errorTail));
+            if(ex instanceof IOException)
+                throw new IOException(ProcessOCREngine.withErrorTail(StringUtils.defaultString(ex.getMessage()), errorTail), ex);
+            throw ex;
+
+        } finally {
+            if(pooledProcess != null) {
+                if(pooledProcess.jobs >= maxJobsPerProcess) {
+                    logger.debug("Recycling OCR process after {} jobs", pooledProcess.jobs);
+                    pooledProcess.destroy();
+                } else {
+                    idleProcesses.offer(pooledProcess);
+                }
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * Stops all idle processes of the pool
+     *
+     * @return {void}
+     */
+    @Override
+    public void shutdown() {
+        PooledProcess pooledProcess;
+        while((pooledProcess = idleProcesses.poll()) != null) {
+            pooledProcess.destroy();
+        }
+    }
+
+    // Gets an idle process, checking it is still responsive, or starts a new one
+    private PooledProcess getHealthyProcess() throws IOException {
+        PooledProcess pooledProcess;
+        while((pooledProcess = idleProcesses.poll()) != null) {
+            if(isHealthy(pooledProcess))
+                return pooledProcess;
+
+            logger.warn("OCR process is not responding, replacing it: {}", pooledProcess.output.getErrorTail());
+            pooledProcess.destroy();
+        }
+
+        logger.debug("Starting new OCR process: {}", command);
+        File pidFile = new File(System.getProperty("java.io.tmpdir"), "ocr-pool-" + UUID.randomUUID() + ProcessGroup.PID_FILE_EXTENSION);
+        return new PooledProcess(ProcessGroup.exec(runtime, command, processGroups, pidFile), timeoutPolicy.getProgressPattern());
+    }
+
+    private boolean isHealthy(PooledProcess pooledProcess) {
+        if(!pooledProcess.process.isAlive())
+            return false;
+        if(System.currentTimeMillis() - pooledProcess.lastUsed < HEALTH_CHECK_IDLE_MILLIS)
+            return true;
+
+        try {
+            return pooledProcess.request("PING", HEALTH_CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS, null).equals("PONG");
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    // A running OCR process, whose answers are read by the shared pump
+    private static class PooledProcess {
+
+        private final ProcessGroup processGroup;
+        private final Process process;
+        private final BufferedWriter input;
+        private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+        private final ProcessOutput output;
+        private int jobs = 0;
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledProcess(ProcessGroup processGroup, Pattern progressPattern) {
+            this.processGroup = processGroup;
+            this.process = processGroup.getProcess();
+            this.input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.output = ProcessOutputPump.getShared().register(process, ERROR_TAIL_SIZE, progressPattern, this::lineRead);
+        }
+
+        // the answers are queued, the other lines may show progress
+        // (a line read before the registration returned is not an answer, it can be skipped)
+        private void lineRead(String line) {
+            if(line.equals("OK") || line.equals("PONG") || line.startsWith("ERROR"))
+                responses.offer(line);
+            else if(output != null)
+                output.lineRead(line);
+        }
+
+        // Sends a line and waits for the answer, checking the process still makes progress (no check without policy)
+        private String request(String line, long timeout, TimeUnit unit, OCRTimeoutPolicy stallPolicy)
+                throws IOException, InterruptedException, TimeoutException {
+            output.clearErrorTail();
+            responses.clear();
+            output.resetProgress();
+            input.write(line);
+            input.newLine();
+            input.flush();
+
+            long idleTimeoutMillis = stallPolicy != null ? stallPolicy.getIdleTimeoutMillis() : 0L;
+            long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+            String response = null;
+            try {
+                while(response == null) {
+                    long now = System.currentTimeMillis();
+                    if(now >= deadline)
+                        throw new TimeoutException("exceeded the " + OCRTimeoutPolicy.describe(unit.toMillis(timeout)) + " time-out");
+                    if(stallPolicy != null && stallPolicy.isStalled(output.getLastProgressMillis(), now))
+                        throw new TimeoutException("made no progress for " + OCRTimeoutPolicy.describe(idleTimeoutMillis));
+
+                    long wait = deadline - now;
+                    if(idleTimeoutMillis > 0)
+                        wait = Math.min(wait, Math.max(10L, Math.min(STALL_CHECK_INTERVAL_MILLIS, idleTimeoutMillis / 2)));
+                    response = responses.poll(wait, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                lastUsed = System.currentTimeMillis();
+            }
+            return response;
+        }
+
+        private void destroy() {
+            processGroup.destroy();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import com.github.mauro1855.ocrservice.util.ProcessGroup;
+import com.github.mauro1855.ocrservice.util.ProcessOutputPump;
+import com.github.mauro1855.ocrservice.util.ProcessOutputPump.ProcessOutput;
+import com.github.mauro1855.ocrservice.util.ProcessRegistry;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Engine that OCRs each file by starting an external tool and waiting
+ * for it to finish, within the time-out of its {@link OCRTimeoutPolicy}
+ * (10 minutes by default). A tool that stops showing progress is aborted
+ * without waiting for the time-out
+ * <p>
+ * With process groups enabled, each tool runs in its own process group,
+ * killed as a whole on time-out or cancellation, and its group is written
+ * to "&lt;source file&gt;.pid" while it runs. The group is registered in the
+ * shared {@link ProcessRegistry}, so the executor can suspend it while a more
+ * urgent request runs: the time it spends suspended doesn't count toward
+ * its time-out, nor as a lack of progress
+ * <p>
+ * The output of the tools is read by a shared pump, the end of their
+ * standard error is added to the message of a failure
+ */
+public abstract class ProcessOCREngine implements OCREngine {
+
+  private static Logger logger = LoggerFactory.getLogger(ProcessOCREngine.class);
+
+  // bytes of the end of the standard error kept for the failure message
+  private static final int ERROR_TAIL_SIZE = 2048;
+
+  // maximum time between two checks of the progress of a tool
+  private static final long STALL_CHECK_INTERVAL_MILLIS = 1000L;
+
+  // exit codes above this one are those of a tool killed by a signal (128 + signal)
+  private static final int SIGNAL_EXIT_CODE = 128;
+
+  protected final Runtime runtime;
+
+  private boolean processGroups = false;
+
+  private OCRTimeoutPolicy timeoutPolicy = OCRTimeoutPolicy.DEFAULT;
+
+  protected ProcessOCREngine(Runtime runtime) {
+    this.runtime = runtime;
+  }
+
+  public void setProcessGroups(boolean processGroups) {
+    this.processGroups = processGroups;
+  }
+
+  public void setTimeoutPolicy(OCRTimeoutPolicy timeoutPolicy) {
+    this.timeoutPolicy = timeoutPolicy;
+  }
+
+  /**
+   * Builds the command that OCRs the source file
+   *
+   * @param sourceFile file to OCR
+   * @param targetFile OCRed file to be written
+   * @return {String} command to execute
+   */
+  protected abstract String buildCommand(File sourceFile, File targetFile);
+
+  /**
+   * Gets the file written by the tool, which is the target
+   * file unless the tool chooses the name of its output
+   *
+   * @param sourceFile file to OCR
+   * @param targetFile OCRed file requested
+   * @return {File} OCRed file written by the tool
+   */
+  protected File getOutputFile(File sourceFile, File targetFile) {
+    return targetFile;
+  }
+
+  @Override
+  public OCRResult ocr(File sourceFile, File targetFile, String description) {
+
+    String commandToExecute = buildCommand(sourceFile, targetFile);
+
+    ProcessGroup processGroup = null;
+    try {
+      // executes the command to call the external tool
+      // waits for the time-out of the file, unless the tool stalls
+      long timeoutMillis = timeoutPolicy.getTimeoutMillis(sourceFile);
+      logger.debug("Calling external tool to OCR...");
+      logger.trace("... on command {}", commandToExecute);
+
+      processGroup = ProcessGroup.exec(runtime, commandToExecute, processGroups,
+          new File(sourceFile.getPath() + ProcessGroup.PID_FILE_EXTENSION));
+      Process process = processGroup.getProcess();
+      ProcessRegistry.getShared().register(processGroup);
+
+      // Reads the streams from the process so it doesn't block the process
+      ProcessOutput processOutput = ProcessOutputPump.getShared().register(process, ERROR_TAIL_SIZE,
+          timeoutPolicy.getProgressPattern());
+
+      String abortReason = waitFor(processGroup, processOutput, timeoutMillis, StringUtils.capitalize(description));
+      if(abortReason != null){
+        // if process doesn't finish before the timeout, or stalls, aborts process
+        logger.warn("{} - aborting", abortReason);
+        return OCRResult.timeout(withErrorTail(abortReason + ".", processOutput));
+      }else if(process.exitValue() > SIGNAL_EXIT_CODE){
+        // the tool was killed (out of memory...), it may succeed another time
+        logger.error("The tool for {} was killed (exit code {}): {}", description, process.exitValue(),
+            processOutput.getErrorTail());
+        return OCRResult.transientError(withErrorTail("An internal error occured while processing the " + description,
+            processOutput));
+      }else if(process.exitValue() != 0){
+        // if process did not exited with success code, the file is rejected
+        logger.error("An error occurred running the tool for {} (exit code {}): {}", description, process.exitValue(),
+            processOutput.getErrorTail());
+        return OCRResult.error(withErrorTail("An internal error occured while processing the " + description, processOutput));
+      }
+
+      moveOutputFile(sourceFile, targetFile);
+      return OCRResult.success();
+
+    }catch(InterruptedException ex){
+      // the request was cancelled (or the service is stopping), the tool is killed below
+      Thread.currentThread().interrupt();
+      return OCRResult.error("The processing of the " + description + " was interrupted");
+
+    }catch(Exception ex){
+      // if an exception occurred (the tool could not be started...), returns a failure worth retrying
+      logger.error("An error occurred running the tool for {}:{}", description, ex.getMessage());
+      return OCRResult.transientError("An internal error occured while processing the " + description);
+
+    }finally{
+
+      if(processGroup != null)
+        ProcessRegistry.getShared().unregister(processGroup);
+
+      if(processGroup != null && processGroup.getProcess().isAlive()){
+        // the tools started by the process are killed with it
+        logger.debug("Process is still alive. Killing...");
+        processGroup.destroy();
+      }else if(processGroup != null){
+        processGroup.close();
+      }
+    }
+  }
+
+  // Waits for the process to finish, checking regularly it still makes progress.
+  // The time the process spent suspended is added to its deadline.
+  // Returns why the process must be aborted, null if it finished
+  private String waitFor(ProcessGroup processGroup, ProcessOutput processOutput, long timeoutMillis, String description)
+      throws InterruptedException {
+
+    Process process = processGroup.getProcess();
+    String timeoutReason = description + " exceeded the " + OCRTimeoutPolicy.describe(timeoutMillis) + " time-out";
+    long idleTimeoutMillis = timeoutPolicy.getIdleTimeoutMillis();
+    // a process without group can't be suspended
+    if(idleTimeoutMillis <= 0 && processGroup.getGroupId() == null)
+      return process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS) ? null : timeoutReason;
+
+    long checkIntervalMillis = idleTimeoutMillis <= 0 ? STALL_CHECK_INTERVAL_MILLIS
+        : Math.max(10L, Math.min(STALL_CHECK_INTERVAL_MILLIS, idleTimeoutMillis / 2));
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while(true){
+      long now = System.currentTimeMillis();
+      long processDeadline = deadline + processGroup.getSuspendedMillis();
+      if(now >= processDeadline)
+        return timeoutReason;
+      if(!processGroup.isSuspended()
+          && timeoutPolicy.isStalled(Math.max(processOutput.getLastProgressMillis(), processGroup.getResumedMillis()), now))
+        return description + " made no progress for " + OCRTimeoutPolicy.describe(idleTimeoutMillis);
+      if(process.waitFor(Math.min(processDeadline - now, checkIntervalMillis), TimeUnit.MILLISECONDS))
+        return null;
+    }
+  }
+
+  // adds the end of the standard error of the tool to a failure message
+  private static String withErrorTail(String message, ProcessOutput processOutput) {
+    return withErrorTail(message, processOutput.getErrorTail());
+  }
+
+  static String withErrorTail(String message, String errorTail) {
+    if(errorTail.isEmpty())
+      return message;
+
+    return StringUtils.removeEnd(message, ".") + ": " + errorTail;
+  }
+
+  // moves the output of the tool to the target file, if the tool named it differently
+  private void moveOutputFile(File sourceFile, File targetFile) throws IOException {
+    File outputFile = getOutputFile(sourceFile, targetFile);
+    if(!outputFile.equals(targetFile) && outputFile.exists() && !outputFile.renameTo(targetFile))
+      throw new IOException("Could not move " + outputFile + " to " + targetFile);
+  }
+}
@@ -0,0 +1,57 @@
+package com.github.mauro1855.ocrservice.repository;
+
+import java.util.Date;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Nodes of the cluster (clustered mode). Each node sends a heartbeat
+ * regularly; a node whose last heartbeat is too old is considered dead
+ */
+@Repository
+public class OCRNodeRepository {
+
+    @Autowired
+    private NamedParameterJdbcTemplate ocrServiceJdbcTemplate;
+
+    private static final String UPSERT_HEARTBEAT = "INSERT INTO ocr_nodes (node_id, started_date, heartbeat_date) " +
+            "VALUES (:nodeId, :now, :now) ON DUPLICATE KEY UPDATE heartbeat_date = VALUES(heartbeat_date)";
+
+    private static final String DELETE_NODE = "DELETE FROM ocr_nodes WHERE node_id = :nodeId";
+
+    private static final String DELETE_DEAD_NODES = "DELETE FROM ocr_nodes WHERE heartbeat_date < :deadline";
+
+    /**
+     * Records that a node is alive, registering it the first time
+     *
+     * @param nodeId of the node
+     * @return {void}
+     */
+    public void heartbeat(String nodeId){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "nodeId", nodeId)
+                .addValue( "now", new Date());
+        ocrServiceJdbcTemplate.update(UPSERT_HEARTBEAT, parameters);
+    }
+
+    /**
+     * Removes a node that is shutting down
+     *
+     * @param nodeId of the node
+     * @return {void}
+     */
+    public void removeNode(String nodeId){
+        ocrServiceJdbcTemplate.update(DELETE_NODE, new MapSqlParameterSource().addValue( "nodeId", nodeId));
+    }
+
+    /**
+     * Removes the nodes whose last heartbeat is older than the deadline
+     *
+     * @param deadline oldest heartbeat of a live node
+     * @return {int} number of nodes removed
+     */
+    public int removeDeadNodes(Date deadline){
+        return ocrServiceJdbcTemplate.update(DELETE_DEAD_NODES, new MapSqlParameterSource().addValue( "deadline", deadline));
+    }
+}
@@ -1,9 +1,21 @@
 package com.github.mauro1855.ocrservice.repository;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.storage.BlobStore;
+import com.github.mauro1855.ocrservice.storage.BlobStore.BlobType;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessResourceFailureException;
 import org.springframework.http.HttpMethod;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
@@ -11,6 +23,7 @@ import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  * Created by mauro1855 on 07/12/2016.
@@ -21,11 +34,58 @@ public class OCRRequestRepository {
     @Autowired
     private NamedParameterJdbcTemplate ocrServiceJdbcTemplate;
 
-    private static final String GET_UNPROCESSED_REQUESTS = "SELECT * FROM ocr_requests WHERE status_code = 0 AND request_stopped = 'N' ORDER BY priority DESC, creation_date ASC";
+    // the files are kept in the blob store, so that the status queries never read them
+    @Autowired
+    private BlobStore blobStore;
+
+    private static final String REQUEST_METADATA_COLUMNS = "id, requestor_reference, callback_endpoint, callback_method, priority, token, " +
+            "status_code, status_message, communicated, communication_attempted, creation_date, communicated_date, OCR_start_date, OCR_end_date, " +
+            "content_hash, callback_attempts, next_callback_date, callback_dead, lease_owner, lease_expires, processing_attempts, file_size";
+
+    // keyset pagination on the id, so each page is a cheap index range scan
+    private static final String GET_UNPROCESSED_REQUESTS = "SELECT " + REQUEST_METADATA_COLUMNS + " FROM ocr_requests " +
+            "WHERE status_code = 0 AND request_stopped = 'N' AND id > :lastId ORDER BY id ASC LIMIT :pageSize";
+
+    private static final String GET_SINGLE_REQUEST = "SELECT " + REQUEST_METADATA_COLUMNS + " FROM ocr_requests WHERE id = :requestId";
+
+    // a node claims the replies that are due by moving their next attempt to the end of its claim, in a single
+    // conditional update (like CLAIM_REQUESTS), so the replies are never sent by two nodes
+    private static final String CLAIM_DUE_CALLBACKS = "UPDATE ocr_requests SET next_callback_date = :claimExpires, lease_owner = :nodeId " +
+            "WHERE communicated = 'N' AND communication_attempted = 'Y' AND callback_dead = 'N' AND request_stopped = 'N' " +
+            "AND (next_callback_date IS NULL OR next_callback_date <= :now) ORDER BY priority DESC, creation_date ASC LIMIT :limit";
+
+    // only the replies of the claim, without the files
+    private static final String GET_CLAIMED_CALLBACK_REQUESTS = "SELECT " + REQUEST_METADATA_COLUMNS + " FROM ocr_requests " +
+            "WHERE lease_owner = :nodeId AND next_callback_date = :claimExpires AND communicated = 'N' AND callback_dead = 'N' " +
+            "AND request_stopped = 'N' ORDER BY priority DESC, creation_date ASC";
+
+    // only extends the claims, a later retry date set meanwhile is kept
+    private static final String RENEW_CALLBACK_CLAIMS = "UPDATE ocr_requests SET next_callback_date = :claimExpires " +
+            "WHERE id IN (:ids) AND communicated = 'N' AND callback_dead = 'N' AND next_callback_date < :claimExpires";
 
-    private static final String GET_SINGLE_REQUEST = "SELECT * FROM ocr_requests WHERE id = :requestId";
+    // clustered mode: a node leases pending requests that are not leased, or whose lease expired. A conditional
+    // update is atomic, so two nodes never claim the same request (and unlike SKIP LOCKED it works on MySQL 5.x)
+    private static final String CLAIM_REQUESTS = "UPDATE ocr_requests SET lease_owner = :nodeId, lease_expires = :leaseExpires " +
+            "WHERE status_code = 0 AND request_stopped = 'N' AND (lease_expires IS NULL OR lease_expires < :now) " +
+            "ORDER BY priority DESC, id ASC LIMIT :limit";
 
-    private static final String GET_FAILED_COMMUNICATION_REQUESTS = "SELECT * FROM ocr_requests WHERE communicated = 'N' AND communication_attempted = 'Y' AND request_stopped = 'N' ORDER BY priority DESC, creation_date ASC";
+    private static final String GET_LEASED_REQUESTS = "SELECT " + REQUEST_METADATA_COLUMNS + " FROM ocr_requests " +
+            "WHERE lease_owner = :nodeId AND status_code = 0 AND request_stopped = 'N'";
+
+    private static final String RENEW_LEASES = "UPDATE ocr_requests SET lease_expires = :leaseExpires " +
+            "WHERE lease_owner = :nodeId AND status_code = 0";
+
+    private static final String RELEASE_LEASES = "UPDATE ocr_requests SET lease_expires = NULL " +
+            "WHERE lease_owner = :nodeId AND status_code = 0";
+
+    // the leases of the nodes that stopped sending heartbeats are expired right away
+    private static final String RELEASE_ORPHAN_LEASES = "UPDATE ocr_requests SET lease_expires = NULL " +
+            "WHERE status_code = 0 AND request_stopped = 'N' AND lease_expires IS NOT NULL " +
+            "AND lease_owner NOT IN (SELECT node_id FROM ocr_nodes WHERE heartbeat_date >= :deadline)";
+
+    // a request is only processed if it is still pending, and still leased to the same node
+    private static final String START_PROCESSING = "UPDATE ocr_requests SET processing_attempts = processing_attempts + 1, " +
+            "OCR_start_date = :startDate WHERE id = :id AND status_code = 0 AND request_stopped = 'N' AND lease_owner <=> :leaseOwner";
 
     private static final String INSERT_NEW_REQUEST = "insert into ocr_requests (requestor_reference, \n" +
             "  callback_endpoint, \n" +
@@ -37,7 +97,10 @@ public class OCRRequestRepository {
             "  communicated, \n" +
             "  communication_attempted,\n" +
             "  creation_date,\n" +
-            "  file_to_ocr)  \n" +
+            "  content_hash,\n" +
+            "  file_size,\n" +
+            "  lease_owner,\n" +
+            "  lease_expires)  \n" +
             "values (:requestor_reference, \n" +
             ":callback_endpoint, \n" +
             ":callback_method, \n" +
@@ -47,43 +110,65 @@ public class OCRRequestRepository {
             ":communicated, \n" +
             ":communication_attempted, \n" +
             ":creation_date, \n" +
-            ":file_to_ocr)";
+            ":content_hash, \n" +
+            ":file_size, \n" +
+            ":lease_owner, \n" +
+            ":lease_expires)";
+
+    // only the columns that changed are updated, and never once the request is stopped
+    // a request is only updated if it is still leased to the node that read it (clustered mode), so that a node
+    // whose lease expired or was released doesn't overwrite the result of the node that claimed the request
+    private static final String UPDATE_REQUEST = "UPDATE ocr_requests SET %s WHERE id = :id AND request_stopped = 'N' " +
+            "AND lease_owner <=> :leaseOwner";
+
+    private static final String IS_STOPPED = "SELECT COUNT(*) FROM ocr_requests WHERE id = :id AND request_stopped = 'Y'";
 
-    private static final String UPDATE_REQUEST = "UPDATE ocr_requests \n" +
-            "SET status_code = :statusCode, \n" +
-            "status_message = :statusMessage, \n" +
-            "communicated = :communicated, \n" +
-            "communication_attempted = :communicationAttempted, \n" +
-            "communicated_date = :communicationDate,\n" +
-            "OCR_start_date = :ocrStartDate,\n" +
-            "OCR_end_date = :ocrEndDate,\n" +
-            "file_to_ocr = :fileToOCR,\n" +
-            "ocred_file = :ocredFile \n" +
-            "WHERE id = :id";
+    private static final String STOP_REQUEST = "UPDATE ocr_requests SET request_stopped = 'Y', status_code = -1, " +
+            "status_message = :statusMessage WHERE id = :id AND status_code = 0 AND request_stopped = 'N'";
 
+    private static final Map<OCRRequest.Field, String> FIELD_COLUMNS = new EnumMap<>(OCRRequest.Field.class);
+
+    static {
+        FIELD_COLUMNS.put(OCRRequest.Field.STATUS_CODE, "status_code");
+        FIELD_COLUMNS.put(OCRRequest.Field.STATUS_MESSAGE, "status_message");
+        FIELD_COLUMNS.put(OCRRequest.Field.COMMUNICATED, "communicated");
+        FIELD_COLUMNS.put(OCRRequest.Field.COMMUNICATION_ATTEMPTED, "communication_attempted");
+        FIELD_COLUMNS.put(OCRRequest.Field.COMMUNICATED_DATE, "communicated_date");
+        FIELD_COLUMNS.put(OCRRequest.Field.OCR_START_DATE, "OCR_start_date");
+        FIELD_COLUMNS.put(OCRRequest.Field.OCR_END_DATE, "OCR_end_date");
+        FIELD_COLUMNS.put(OCRRequest.Field.CALLBACK_ATTEMPTS, "callback_attempts");
+        FIELD_COLUMNS.put(OCRRequest.Field.NEXT_CALLBACK_DATE, "next_callback_date");
+        FIELD_COLUMNS.put(OCRRequest.Field.CALLBACK_DEAD, "callback_dead");
+    }
 
     /**
-     * Gets an OCRRequest by it's ID
+     * Gets an OCRRequest by its ID. The files of the request are not
+     * fetched, they are read with copyFileToOCR and copyOcredFile
      * @param requestId of the request
-     * @return {OCRRequest}
+     * @return {OCRRequest} the request, or null if it does not exist
      */
     public OCRRequest getRequest(Long requestId){
         MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "requestId", requestId);
-        return ocrServiceJdbcTemplate.queryForObject(GET_SINGLE_REQUEST, parameters, ocrRequestTypeMapping());
+        List<OCRRequest> ocrRequests = ocrServiceJdbcTemplate.query(GET_SINGLE_REQUEST, parameters, ocrRequestMetadataMapping());
+        return ocrRequests.isEmpty() ? null : ocrRequests.get(0);
     }
 
     /**
-     * Inserts a new request in the database
-     * and gets generated ID
+     * Inserts a new request in the database, gets generated
+     * ID and stores its file in the blob store
+     * <p>
+     * If the request holds a stream to the file, the file is streamed
+     * into the blob store instead of being read from a byte array
      *
      * @param newRequest
      * @return {void}
      */
+    @Transactional
     public void createNewRequest(OCRRequest newRequest){
 
         MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "requestor_reference", newRequest.getRequestorReference())
                 .addValue( "callback_endpoint",  newRequest.getCallbackEndpoint())
-                .addValue( "callback_method",  newRequest.getCallbackMethod().toString())
+                .addValue( "callback_method",  newRequest.getCallbackMethod() != null ? newRequest.getCallbackMethod().toString() : null)
                 .addValue( "priority",  newRequest.getPriority())
                 .addValue( "token",  newRequest.getToken())
                 .addValue( "status_code",  newRequest.getStatusCode())
@@ -91,64 +176,327 @@ public class OCRRequestRepository {
                 .addValue( "communicated",  newRequest.isCommunicated() ? "Y" : "N")
                 .addValue( "communication_attempted",  newRequest.isCommunicationAttempted() ? "Y" : "N")
                 .addValue( "creation_date",  newRequest.getRequestCreationDate())
-                .addValue( "file_to_ocr",  newRequest.getFileToOCRByteArray());
+                .addValue( "content_hash",  newRequest.getContentHash())
+                .addValue( "file_size",  newRequest.getFileToOCRByteArray() != null ? newRequest.getFileToOCRByteArray().length
+                        : newRequest.getFileToOCRSize())
+                .addValue( "lease_owner",  newRequest.getLeaseOwner())
+                .addValue( "lease_expires",  newRequest.getLeaseExpirationDate());
+
         final KeyHolder holder = new GeneratedKeyHolder();
         ocrServiceJdbcTemplate.update(INSERT_NEW_REQUEST, parameters, holder, new String[] {"id"} );
 
         Long newRequestId = holder.getKey().longValue();
         newRequest.setId(newRequestId);
+        newRequest.clearDirtyFields();
+
+        try {
+            if(newRequest.getFileToOCRStream() != null)
+                blobStore.put(newRequestId, BlobType.FILE_TO_OCR, newRequest.getFileToOCRStream(), newRequest.getFileToOCRSize());
+            else if(newRequest.getFileToOCRByteArray() != null)
+                blobStore.put(newRequestId, BlobType.FILE_TO_OCR, new ByteArrayInputStream(newRequest.getFileToOCRByteArray()),
+                        newRequest.getFileToOCRByteArray().length);
+        } catch (IOException ex) {
+            throw new DataAccessResourceFailureException("Could not store file of request " + newRequestId, ex);
+        }
     }
 
     /**
-     * Updates request in the database
+     * Marks the start of an attempt to process a request, unless the
+     * request is no longer pending, or was claimed by another node
+     * since it was leased (the lease owner of the request changed)
+     *
+     * @param request about to be processed
+     * @return {boolean} false if the request must not be processed
+     */
+    public boolean startProcessing(OCRRequest request){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "id", request.getId())
+                .addValue( "startDate", request.getRequestOCRStartDate())
+                .addValue( "leaseOwner", request.getLeaseOwner());
+
+        if(ocrServiceJdbcTemplate.update(START_PROCESSING, parameters) == 0)
+            return false;
+
+        request.setProcessingAttempts(request.getProcessingAttempts() + 1);
+        return true;
+    }
+
+    /**
+     * Updates request in the database. Only the fields that changed since
+     * the request was read or last written are updated, so the files are
+     * not rewritten when only the status of the request changes
+     * <p>
+     * The OCRed file is stored before the status, so that a request
+     * found processed always has its OCRed file, and a node that dies
+     * in between leaves a file that the next attempt can use
+     * <p>
+     * A stopped request is not updated, and its files are removed. A request
+     * that is now leased to another node is not updated either, its files
+     * are left to that node
      *
      * @param request
-     * @return {void}
+     * @return {boolean} false if the request was stopped, or claimed by another node
      */
-    public void updateRequest(OCRRequest request){
+    public boolean updateRequest(OCRRequest request){
 
+        Set<OCRRequest.Field> dirtyFields = request.getDirtyFields();
         MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "id", request.getId())
-                .addValue( "statusCode",  request.getStatusCode())
-                .addValue( "statusMessage",  request.getStatusMessage())
-                .addValue( "communicated",  request.isCommunicated() ? "Y" : "N")
-                .addValue( "communicationAttempted",  request.isCommunicationAttempted() ? "Y" : "N")
-                .addValue( "communicationDate",  request.getRequestCommunicatedDate())
-                .addValue( "ocrStartDate", request.getRequestOCRStartDate())
-                .addValue( "ocrEndDate", request.getRequestOCREndDate());
+                .addValue( "leaseOwner", request.getLeaseOwner());
 
-        // if request has been communicated, set fileToOCR and OCRedFile to null
-        if(request.isCommunicated())
-            parameters.addValue("fileToOCR", null).addValue("ocredFile", null);
-        else
-            parameters.addValue("fileToOCR", request.getFileToOCRByteArray()).addValue( "ocredFile",  request.getOcredFileByteArray());
+        StringBuilder assignments = new StringBuilder();
+        for(OCRRequest.Field field : dirtyFields){
+            String column = FIELD_COLUMNS.get(field);
+            if(column == null)
+                continue;
 
-        ocrServiceJdbcTemplate.update(UPDATE_REQUEST, parameters);
+            if(assignments.length() > 0)
+                assignments.append(", ");
+            assignments.append(column).append(" = :").append(column);
+            parameters.addValue( column, getFieldValue(request, field));
+        }
+
+        // if request has been communicated, its files are removed
+        boolean filesRemoved = request.isCommunicated() && dirtyFields.contains(OCRRequest.Field.COMMUNICATED);
+        if(!filesRemoved && dirtyFields.contains(OCRRequest.Field.OCRED_FILE))
+            updateOcredFile(request);
+
+        boolean updated = assignments.length() == 0 || ocrServiceJdbcTemplate.update(String.format(UPDATE_REQUEST, assignments), parameters) > 0;
+
+        if(filesRemoved || !updated && isStopped(request.getId()))
+            blobStore.delete(request.getId());
+
+        request.clearDirtyFields();
+        return updated;
+    }
+
+    private boolean isStopped(Long requestId){
+        Integer count = ocrServiceJdbcTemplate.queryForObject(IS_STOPPED, new MapSqlParameterSource().addValue( "id", requestId),
+                Integer.class);
+        return count != null && count > 0;
+    }
+
+    /**
+     * Stops a request that was not processed yet: it is marked as
+     * failed with the given message, it is never updated again, and its
+     * files are removed
+     *
+     * @param requestId of the request
+     * @param statusMessage reason of the stop
+     * @return {boolean} false if the request was already processed or stopped
+     */
+    public boolean stopRequest(Long requestId, String statusMessage){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "id", requestId)
+                .addValue( "statusMessage", statusMessage);
+
+        if(ocrServiceJdbcTemplate.update(STOP_REQUEST, parameters) == 0)
+            return false;
+
+        blobStore.delete(requestId);
+        return true;
     }
 
     /**
-     * Gets all unprocessed requests from the database
+     * Writes the OCRed file of a request to the blob store. A file
+     * on disk is streamed instead of being read from a byte array
      *
+     * @param request
+     * @return {void}
+     */
+    private void updateOcredFile(OCRRequest request){
+        File ocredFile = request.getOcredFile();
+        byte[] ocredFileByteArray = request.getOcredFileByteArray();
+        if(ocredFile == null && ocredFileByteArray == null)
+            return;
+
+        try(InputStream ocredFileStream = ocredFile != null ? new FileInputStream(ocredFile) : new ByteArrayInputStream(ocredFileByteArray)) {
+            long size = ocredFile != null ? ocredFile.length() : ocredFileByteArray.length;
+            blobStore.put(request.getId(), BlobType.OCRED_FILE, ocredFileStream, size);
+        } catch (IOException ex) {
+            throw new DataAccessResourceFailureException("Could not store OCRed file of request " + request.getId(), ex);
+        }
+    }
+
+    /**
+     * Copies the file to OCR of a request from the blob
+     * store to a file on disk, without holding it in memory
+     *
+     * @param requestId of the request
+     * @param target file to write
+     * @return {boolean} false if the request has no file to OCR
+     */
+    public boolean copyFileToOCR(Long requestId, File target){
+        return copyBlob(requestId, BlobType.FILE_TO_OCR, target);
+    }
+
+    /**
+     * Copies the OCRed file of a request from the blob
+     * store to a file on disk, without holding it in memory
+     *
+     * @param requestId of the request
+     * @param target file to write
+     * @return {boolean} false if the request has no OCRed file
+     */
+    public boolean copyOcredFile(Long requestId, File target){
+        return copyBlob(requestId, BlobType.OCRED_FILE, target);
+    }
+
+    private boolean copyBlob(Long requestId, BlobType type, File target){
+        try {
+            return blobStore.copyTo(requestId, type, target);
+        } catch (IOException ex) {
+            throw new DataAccessResourceFailureException("Could not copy " + type + " of request " + requestId, ex);
+        }
+    }
+
+    /**
+     * Gets a page of unprocessed requests from the database,
+     * ordered by id. Only the request metadata is fetched, the
+     * files are left in the database
+     *
+     * @param lastId id of the last request of the previous page (0 for the first page)
+     * @param pageSize maximum number of requests to fetch
      * @return {List} list of unprocessed requests
      */
-    public List<OCRRequest> getAllUnprocessedRequests(){
+    public List<OCRRequest> getUnprocessedRequests(Long lastId, int pageSize){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "lastId", lastId)
+                .addValue( "pageSize", pageSize);
 
-        List<OCRRequest> ocrRequests = ocrServiceJdbcTemplate.query(GET_UNPROCESSED_REQUESTS, ocrRequestTypeMapping());
+        List<OCRRequest> ocrRequests = ocrServiceJdbcTemplate.query(GET_UNPROCESSED_REQUESTS, parameters, ocrRequestMetadataMapping());
         return ocrRequests;
     }
 
     /**
-     * Gets all requests that failed to be communicated
-     * to the client
+     * Claims for a node the replies that failed to be communicated to
+     * the client and whose next attempt is due: their next attempt is
+     * moved to the end of the claim, so that no other node sends them
+     *
+     * @param nodeId of the node
+     * @param claimExpirationDate end of the claim, in whole seconds (it identifies the claimed replies)
+     * @param limit maximum number of replies to claim
+     * @return {int} number of replies claimed
+     */
+    public int claimDueCallbacks(String nodeId, Date claimExpirationDate, int limit){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "nodeId", nodeId)
+                .addValue( "claimExpires", claimExpirationDate)
+                .addValue( "now", new Date())
+                .addValue( "limit", limit);
+
+        return ocrServiceJdbcTemplate.update(CLAIM_DUE_CALLBACKS, parameters);
+    }
+
+    /**
+     * Gets the requests whose replies were claimed by a node. Only
+     * the request metadata is fetched, the files are left in the database
      *
+     * @param nodeId of the node
+     * @param claimExpirationDate end of the claim
      * @return {List} list of processed requests with failed communication
      */
-    public List<OCRRequest> getAllFailedCommunicationRequests(){
+    public List<OCRRequest> getClaimedCallbackRequests(String nodeId, Date claimExpirationDate){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "nodeId", nodeId)
+                .addValue( "claimExpires", claimExpirationDate);
 
-        List<OCRRequest> ocrRequests = ocrServiceJdbcTemplate.query(GET_FAILED_COMMUNICATION_REQUESTS, ocrRequestTypeMapping());
+        List<OCRRequest> ocrRequests = ocrServiceJdbcTemplate.query(GET_CLAIMED_CALLBACK_REQUESTS, parameters, ocrRequestMetadataMapping());
         return ocrRequests;
     }
 
-    private static RowMapper<OCRRequest> ocrRequestTypeMapping()
+    /**
+     * Extends the claims of replies that are still waiting or
+     * in progress, so that they are not sent by another node
+     *
+     * @param requestIds ids of the requests
+     * @param claimExpirationDate new end of the claims
+     * @return {int} number of claims renewed
+     */
+    public int renewCallbackClaims(Collection<Long> requestIds, Date claimExpirationDate){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "ids", requestIds)
+                .addValue( "claimExpires", claimExpirationDate);
+        return ocrServiceJdbcTemplate.update(RENEW_CALLBACK_CLAIMS, parameters);
+    }
+
+    /**
+     * Leases pending requests to a node (clustered mode). Requests that
+     * are not leased, or whose lease expired, are claimed by priority
+     *
+     * @param nodeId of the node
+     * @param leaseExpirationDate when the lease expires, unless renewed
+     * @param limit maximum number of requests to claim
+     * @return {int} number of requests claimed
+     */
+    public int claimRequests(String nodeId, Date leaseExpirationDate, int limit){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "nodeId", nodeId)
+                .addValue( "leaseExpires", leaseExpirationDate)
+                .addValue( "now", new Date())
+                .addValue( "limit", limit);
+
+        return ocrServiceJdbcTemplate.update(CLAIM_REQUESTS, parameters);
+    }
+
+    /**
+     * Gets the pending requests leased to a node. Only the
+     * request metadata is fetched, the files are left in the database
+     *
+     * @param nodeId of the node
+     * @return {List} list of leased requests
+     */
+    public List<OCRRequest> getLeasedRequests(String nodeId){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "nodeId", nodeId);
+        return ocrServiceJdbcTemplate.query(GET_LEASED_REQUESTS, parameters, ocrRequestMetadataMapping());
+    }
+
+    /**
+     * Extends the leases of all the pending requests of a node
+     *
+     * @param nodeId of the node
+     * @param leaseExpirationDate new expiration date of the leases
+     * @return {int} number of leases renewed
+     */
+    public int renewLeases(String nodeId, Date leaseExpirationDate){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "nodeId", nodeId)
+                .addValue( "leaseExpires", leaseExpirationDate);
+        return ocrServiceJdbcTemplate.update(RENEW_LEASES, parameters);
+    }
+
+    /**
+     * Expires the leases of all the pending requests of a node,
+     * so that the other nodes claim them right away
+     *
+     * @param nodeId of the node
+     * @return {int} number of leases released
+     */
+    public int releaseLeases(String nodeId){
+        return ocrServiceJdbcTemplate.update(RELEASE_LEASES, new MapSqlParameterSource().addValue( "nodeId", nodeId));
+    }
+
+    /**
+     * Expires the leases of the requests of the nodes whose last
+     * heartbeat is older than the deadline, so that the other nodes
+     * claim them without waiting for the leases to expire
+     *
+     * @param deadline oldest heartbeat of a live node
+     * @return {int} number of leases released
+     */
+    public int releaseOrphanLeases(Date deadline){
+        return ocrServiceJdbcTemplate.update(RELEASE_ORPHAN_LEASES, new MapSqlParameterSource().addValue( "deadline", deadline));
+    }
+
+    private static Object getFieldValue(OCRRequest request, OCRRequest.Field field)
+    {
+        switch (field) {
+            case STATUS_CODE: return request.getStatusCode();
+            case STATUS_MESSAGE: return request.getStatusMessage();
+            case COMMUNICATED: return request.isCommunicated() ? "Y" : "N";
+            case COMMUNICATION_ATTEMPTED: return request.isCommunicationAttempted() ? "Y" : "N";
+            case COMMUNICATED_DATE: return request.getRequestCommunicatedDate();
+            case OCR_START_DATE: return request.getRequestOCRStartDate();
+            case OCR_END_DATE: return request.getRequestOCREndDate();
+            case CALLBACK_ATTEMPTS: return request.getCallbackAttempts();
+            case NEXT_CALLBACK_DATE: return request.getNextCallbackDate();
+            case CALLBACK_DEAD: return request.isCallbackDead() ? "Y" : "N";
+            default: throw new IllegalArgumentException("No column for field " + field);
+        }
+    }
+
+    private static RowMapper<OCRRequest> ocrRequestMetadataMapping()
     {
         return (resultSet, i) ->
         {
@@ -166,24 +514,37 @@ public class OCRRequestRepository {
             Date communicatedDate = resultSet.getTimestamp("communicated_date");
             Date OCRStartDate = resultSet.getTimestamp("OCR_start_date");
             Date OCREndDate = resultSet.getTimestamp("OCR_end_date");
-            byte[] fileToOCR = resultSet.getBytes("file_to_ocr");
-            byte[] ocredFile = resultSet.getBytes("ocred_file");
+            String contentHash = resultSet.getString("content_hash");
+            int callbackAttempts = resultSet.getInt("callback_attempts");
+            Date nextCallbackDate = resultSet.getTimestamp("next_callback_date");
+            Boolean callbackDead = "Y".equals(resultSet.getString("callback_dead"));
+            String leaseOwner = resultSet.getString("lease_owner");
+            Date leaseExpirationDate = resultSet.getTimestamp("lease_expires");
+            int processingAttempts = resultSet.getInt("processing_attempts");
+            long fileSize = resultSet.getLong("file_size");
 
-            OCRRequest newRequest =  new OCRRequest(requestorReference,callbackEndpoint,HttpMethod.resolve(callbackMethod), priority,fileToOCR);
+            OCRRequest newRequest =  new OCRRequest(requestorReference,callbackEndpoint,HttpMethod.resolve(callbackMethod), priority,(byte[]) null);
             newRequest.setId(id);
             newRequest.setToken(token);
             newRequest.setStatusCode(statusCode);
             newRequest.setStatusMessage(statusMessage);
             newRequest.setCommunicated(communicated);
             newRequest.setCommunicationAttempted(communicationAttempted);
-            newRequest.setOcredFileByteArray(ocredFile);
             newRequest.setRequestCreationDate(creationDate);
             newRequest.setRequestCommunicatedDate(communicatedDate);
             newRequest.setRequestOCRStartDate(OCRStartDate);
             newRequest.setRequestOCREndDate(OCREndDate);
+            newRequest.setContentHash(contentHash);
+            newRequest.setCallbackAttempts(callbackAttempts);
+            newRequest.setNextCallbackDate(nextCallbackDate);
+            newRequest.setCallbackDead(callbackDead);
+            newRequest.setLeaseOwner(leaseOwner);
+            newRequest.setLeaseExpirationDate(leaseExpirationDate);
+            newRequest.setProcessingAttempts(processingAttempts);
+            newRequest.setFileToOCRSize(fileSize);
+            newRequest.clearDirtyFields();
 
             return newRequest;
         };
     }
-
 }
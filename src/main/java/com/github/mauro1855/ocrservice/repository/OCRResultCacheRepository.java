@@ -0,0 +1,145 @@
+package com.github.mauro1855.ocrservice.repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import com.github.mauro1855.ocrservice.storage.MySQLBlobStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.support.SqlLobValue;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Persisted cache of OCR results, indexed by a key built from the
+ * content hash of the document and the OCR command used. Results are
+ * streamed between the database and files, never held in memory
+ */
+@Repository
+public class OCRResultCacheRepository {
+
+    @Autowired
+    private NamedParameterJdbcTemplate ocrServiceJdbcTemplate;
+
+    private static final String GET_CACHED_RESULT = "SELECT ocred_file FROM ocr_result_cache WHERE cache_key = :cacheKey";
+
+    private static final String TOUCH_CACHED_RESULT = "UPDATE ocr_result_cache SET last_access_date = :lastAccessDate WHERE cache_key = :cacheKey";
+
+    private static final String INSERT_CACHED_RESULT = "INSERT INTO ocr_result_cache (cache_key, \n" +
+            "  ocred_file, \n" +
+            "  file_size, \n" +
+            "  creation_date, \n" +
+            "  last_access_date) \n" +
+            "values (:cacheKey, \n" +
+            ":ocredFile, \n" +
+            ":fileSize, \n" +
+            ":creationDate, \n" +
+            ":lastAccessDate) \n" +
+            "ON DUPLICATE KEY UPDATE last_access_date = :lastAccessDate";
+
+    private static final String GET_TOTAL_SIZE = "SELECT COALESCE(SUM(file_size), 0) FROM ocr_result_cache";
+
+    private static final String GET_LEAST_RECENTLY_USED = "SELECT cache_key, file_size FROM ocr_result_cache ORDER BY last_access_date ASC LIMIT :limit";
+
+    private static final String DELETE_CACHED_RESULTS = "DELETE FROM ocr_result_cache WHERE cache_key IN (:cacheKeys)";
+
+    private static final int EVICTION_BATCH_SIZE = 100;
+
+    /**
+     * Copies a cached OCR result to a file and marks it as recently used
+     *
+     * @param cacheKey of the result
+     * @param target file to write
+     * @return {boolean} false if the result is not cached
+     */
+    public boolean copyResult(String cacheKey, File target) throws IOException {
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "cacheKey", cacheKey)
+                .addValue( "lastAccessDate", new Date());
+
+        Boolean copied;
+        try {
+            copied = ocrServiceJdbcTemplate.query(GET_CACHED_RESULT, parameters, (ResultSetExtractor<Boolean>) resultSet -> {
+                if(!resultSet.next())
+                    return false;
+
+                try(InputStream resultStream = resultSet.getBinaryStream("ocred_file")) {
+                    if(resultStream == null)
+                        return false;
+                    MySQLBlobStore.writeToFile(resultStream, target);
+                    return true;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        if(!Boolean.TRUE.equals(copied))
+            return false;
+
+        ocrServiceJdbcTemplate.update(TOUCH_CACHED_RESULT, parameters);
+        return true;
+    }
+
+    /**
+     * Stores an OCR result in the cache
+     *
+     * @param cacheKey of the result
+     * @param ocredFile content of the OCRed file (not closed)
+     * @param size of the OCRed file in bytes
+     * @return {void}
+     */
+    public void putResult(String cacheKey, InputStream ocredFile, long size){
+        Date now = new Date();
+        // bound as a stream, which the driver sends in chunks
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "cacheKey", cacheKey)
+                .addValue( "ocredFile", new SqlLobValue(ocredFile, (int) size), Types.BLOB)
+                .addValue( "fileSize", size)
+                .addValue( "creationDate", now)
+                .addValue( "lastAccessDate", now);
+
+        ocrServiceJdbcTemplate.update(INSERT_CACHED_RESULT, parameters);
+    }
+
+    /**
+     * Removes the least recently used results until the
+     * total size of the cache is below the given size
+     *
+     * @param maxSize in bytes of the cache
+     * @return {int} number of evicted results
+     */
+    public int evictLeastRecentlyUsed(long maxSize){
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "limit", EVICTION_BATCH_SIZE);
+
+        long totalSize = ocrServiceJdbcTemplate.queryForObject(GET_TOTAL_SIZE, parameters, Long.class);
+        int evicted = 0;
+
+        while(totalSize > maxSize){
+            List<Map<String, Object>> entries = ocrServiceJdbcTemplate.queryForList(GET_LEAST_RECENTLY_USED, parameters);
+            if(entries.isEmpty())
+                break;
+
+            // picks the oldest entries until enough space is freed
+            List<String> cacheKeys = new ArrayList<>();
+            for(Map<String, Object> entry : entries){
+                if(totalSize <= maxSize)
+                    break;
+                cacheKeys.add((String) entry.get("cache_key"));
+                totalSize -= ((Number) entry.get("file_size")).longValue();
+            }
+
+            ocrServiceJdbcTemplate.update(DELETE_CACHED_RESULTS, new MapSqlParameterSource().addValue( "cacheKeys", cacheKeys));
+            evicted += cacheKeys.size();
+        }
+
+        return evicted;
+    }
+}
@@ -0,0 +1,309 @@
+package com.github.mauro1855.ocrservice.service;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the replies to the clients in its own bounded thread pool,
+ * so that OCR threads never wait for a client endpoint. The number of
+ * simultaneous callbacks to the same host is limited; replies that can't
+ * be sent right away wait in a bounded queue of their host, and are sent
+ * as soon as a reply ends.
+ * <p>
+ * The replies of processed requests are stored as due in the database
+ * before they are queued, so the failed communications retry job, whose
+ * replies are also sent through this pool, sends the replies that were
+ * lost (the node crashed, or the queue of the host was full). A reply is
+ * never queued twice by the same node, nor sent by two nodes: the node
+ * that queues a reply claims it for callback.claim.duration, and renews
+ * the claim as long as the reply waits or is in progress
+ */
+@Service
+public class OCRCallbackDispatcher {
+
+  private static Logger logger = LoggerFactory.getLogger(OCRCallbackDispatcher.class);
+
+  @Autowired
+  private OCRCallbackService ocrCallbackService;
+
+  @Autowired
+  private OCRRequestRepository ocrRequestRepository;
+
+  @Autowired
+  private OCRClusterService ocrClusterService;
+
+  @Value("${callback.pool.threads}")
+  private int callbackPoolThreads;
+
+  @Value("${callback.queue.size}")
+  private int callbackQueueSize;
+
+  @Value("${callback.max.per.host}")
+  private int callbackMaxPerHost;
+
+  @Value("${callback.max.pending.per.host}")
+  private int callbackMaxPendingPerHost;
+
+  @Value("${callback.retry.batch.size}")
+  private int callbackRetryBatchSize;
+
+  @Value("${callback.claim.duration}")
+  private long callbackClaimDuration;
+
+  private ThreadPoolExecutor callbackExecutor;
+
+  // callbacks in progress and waiting by host
+  private final ConcurrentMap<String, HostCallbacks> hostCallbacks = new ConcurrentHashMap<>();
+
+  // requests whose reply is waiting or in progress
+  private final Set<Long> repliesInProgress = ConcurrentHashMap.newKeySet();
+
+  @PostConstruct
+  public void init(){
+    AtomicInteger threadNumber = new AtomicInteger();
+    callbackExecutor = new ThreadPoolExecutor(callbackPoolThreads, callbackPoolThreads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(callbackQueueSize), runnable -> {
+        Thread thread = new Thread(runnable, "callback-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+  }
+
+  @PreDestroy
+  public void shutdown(){
+    callbackExecutor.shutdown();
+
+    // the replies still waiting are sent later by the retry job (of any node)
+    for(HostCallbacks host : hostCallbacks.values()){
+      OCRRequest request;
+      while((request = host.pending.poll()) != null)
+        postpone(request);
+    }
+  }
+
+  /**
+   * Every 30 seconds+, renews the claims of the replies of this node,
+   * then claims the failed communications and replies of processed
+   * requests that are due in the database, and queues their replies.
+   * Replies already waiting or in progress are not queued twice
+   *
+   * @return {void}
+   */
+  @Scheduled(fixedDelay = 30000L)
+  public void processReplyQueue(){
+    Date claimExpirationDate = getClaimExpirationDate();
+    if(!repliesInProgress.isEmpty())
+      ocrRequestRepository.renewCallbackClaims(new ArrayList<>(repliesInProgress), claimExpirationDate);
+
+    String nodeId = ocrClusterService.getNodeId();
+    if(ocrRequestRepository.claimDueCallbacks(nodeId, claimExpirationDate, callbackRetryBatchSize) == 0)
+      return;
+
+    List<OCRRequest> requests = ocrRequestRepository.getClaimedCallbackRequests(nodeId, claimExpirationDate);
+    logger.debug("Successfully claimed {} communication failed requests", requests.size());
+
+    for(OCRRequest request : requests){
+      dispatch(request);
+    }
+  }
+
+  /**
+   * Stores the reply of a processed request as due at the end of a
+   * claim of this node, before the request is updated: the retry job
+   * sends it if the reply is not sent (or renewed) by then
+   *
+   * @param request processed, not updated yet
+   * @return {void}
+   */
+  public void claimReply(OCRRequest request){
+    request.replyDue(getClaimExpirationDate());
+  }
+
+  // in whole seconds, the precision of the database, so that the claimed replies can be found by their date
+  private Date getClaimExpirationDate(){
+    long expiration = System.currentTimeMillis() + callbackClaimDuration;
+    return new Date(expiration - expiration % 1000L);
+  }
+
+  /**
+   * Queues the reply to the client of a processed request. Requests
+   * without callback endpoint (pull mode), and requests whose reply is
+   * already waiting or in progress are not replied. The OCRed file the
+   * worker left on disk is sent as it is, and removed once the reply is
+   * sent or postponed. When the queue of the host is full, the reply is
+   * left to the retry job
+   *
+   * @param request to be replied to the client
+   * @return {void}
+   */
+  public void dispatch(OCRRequest request){
+    if(!request.hasCallback() || !repliesInProgress.add(request.getId())){
+      releaseOcredFile(request);
+      return;
+    }
+
+    HostCallbacks host = hostCallbacks.computeIfAbsent(OCRCallbackService.getCallbackHost(request.getCallbackEndpoint()),
+      endpointHost -> new HostCallbacks(callbackMaxPerHost, callbackMaxPendingPerHost));
+    if(!host.pending.offer(request)){
+      logger.warn("Too many replies waiting for the host of {}, the reply is left to the retry job", request.getId());
+      postpone(request);
+      return;
+    }
+    send(host);
+  }
+
+  /**
+   * Sends the replies waiting for a host, as long as fewer than
+   * callback.max.per.host callbacks to the host are in progress
+   * and the callback queue is not full
+   *
+   * @param host whose replies are sent
+   * @return {void}
+   */
+  private void send(HostCallbacks host){
+    // the permit is taken before the reply is polled: a reply queued
+    // meanwhile is sent by the thread that releases a permit next
+    while(!host.pending.isEmpty() && host.permits.tryAcquire()){
+      OCRRequest request = host.pending.poll();
+      if(request == null){
+        host.permits.release();
+        continue;
+      }
+
+      try {
+        callbackExecutor.execute(() -> reply(request, host));
+      } catch (RejectedExecutionException ex) {
+        host.permits.release();
+        if(callbackExecutor.isShutdown()){
+          postpone(request);
+          continue;
+        }
+
+        // the callback queue is full, the reply is sent when a reply ends
+        logger.debug("Callback queue is full, reply to requester of {} waits", request.getId());
+        if(!host.pending.offerFirst(request))
+          postpone(request);
+        if(callbackExecutor.getQueue().remainingCapacity() == 0)
+          return;
+      }
+    }
+  }
+
+  /**
+   * Replies to the client, then sends the replies waiting for
+   * the host, or for other hosts if the callback queue was full
+   *
+   * @param request to be replied to the client
+   * @param host of the callback endpoint
+   * @return {void}
+   */
+  private void reply(OCRRequest request, HostCallbacks host){
+    try {
+      ocrCallbackService.replyToRequest(request);
+    } catch (Exception ex) {
+      logger.error("Failed to reply to requester of {}. Reason: {}", request.getId(), ex.getMessage());
+    } finally {
+      host.permits.release();
+      releaseOcredFile(request);
+      repliesInProgress.remove(request.getId());
+    }
+
+    send(host);
+    for(HostCallbacks other : hostCallbacks.values()){
+      if(other != host)
+        send(other);
+    }
+  }
+
+  /**
+   * Marks the request as not communicated, so that the retry job
+   * sends the reply later (the service is stopping, or the host
+   * has too many replies waiting)
+   *
+   * @param request to be replied to the client
+   * @return {void}
+   */
+  private void postpone(OCRRequest request){
+    try {
+      request.failedToCommunicated();
+      request.setNextCallbackDate(new Date());
+      ocrRequestRepository.updateRequest(request);
+    } catch (Exception ex) {
+      logger.error("Could not postpone reply to requester of {}: {}", request.getId(), ex.getMessage());
+    } finally {
+      // the retry job sends the file stored in the database
+      releaseOcredFile(request);
+      repliesInProgress.remove(request.getId());
+    }
+  }
+
+  /**
+   * Removes the OCRed file the worker left on disk for the reply
+   *
+   * @param request that was replied
+   * @return {void}
+   */
+  private void releaseOcredFile(OCRRequest request){
+    File ocredFile = request.getOcredFile();
+    if(ocredFile != null && ocredFile.exists() && !ocredFile.delete())
+      logger.warn("Could not remove OCRed file {}", ocredFile.getAbsolutePath());
+  }
+
+  // replies to a host: the permits of the callbacks in progress, and the replies waiting for one
+  private static class HostCallbacks {
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<OCRRequest> pending;
+
+    private HostCallbacks(int maxCallbacks, int maxPending) {
+      this.permits = new Semaphore(maxCallbacks);
+      this.pending = new LinkedBlockingDeque<>(maxPending);
+    }
+  }
+
+  public void setCallbackPoolThreads(int callbackPoolThreads) {
+    this.callbackPoolThreads = callbackPoolThreads;
+  }
+
+  public void setCallbackQueueSize(int callbackQueueSize) {
+    this.callbackQueueSize = callbackQueueSize;
+  }
+
+  public void setCallbackMaxPerHost(int callbackMaxPerHost) {
+    this.callbackMaxPerHost = callbackMaxPerHost;
+  }
+
+  public void setCallbackMaxPendingPerHost(int callbackMaxPendingPerHost) {
+    this.callbackMaxPendingPerHost = callbackMaxPendingPerHost;
+  }
+
+  public void setCallbackRetryBatchSize(int callbackRetryBatchSize) {
+    this.callbackRetryBatchSize = callbackRetryBatchSize;
+  }
+
+  public void setCallbackClaimDuration(long callbackClaimDuration) {
+    this.callbackClaimDuration = callbackClaimDuration;
+  }
+}
@@ -2,15 +2,15 @@ package com.github.mauro1855.ocrservice.service;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
 import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import com.github.mauro1855.ocrservice.util.CircuitBreaker;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.*;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -18,7 +18,11 @@ import org.springframework.web.client.RestTemplate;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.net.URI;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by pereirat on 01/12/2016.
@@ -33,6 +37,24 @@ public class OCRCallbackService {
   @Value("${client.password}")
   public String clientPassword;
 
+  @Value("${callback.retry.max.attempts}")
+  private int callbackRetryMaxAttempts;
+  @Value("${callback.retry.initial.delay}")
+  private long callbackRetryInitialDelay;
+  @Value("${callback.retry.max.delay}")
+  private long callbackRetryMaxDelay;
+  @Value("${callback.breaker.failures}")
+  private int callbackBreakerFailures;
+  @Value("${callback.breaker.open.time}")
+  private long callbackBreakerOpenTime;
+  @Value("${callback.breaker.slow.time}")
+  private long callbackBreakerSlowTime;
+
+  private static final Random JITTER = new Random();
+
+  // one circuit breaker per callback host
+  private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
   @Autowired
   private OCRRequestRepository ocrRequestRepository;
 
@@ -40,41 +62,91 @@ public class OCRCallbackService {
   private RestTemplate restTemplate;
 
   /**
-   * Starts a new thread that implements a task that, every
-   * 30 seconds+, fetches failed communications from the database
-   * and tries to send the OCRed file to the client
+   * Sends reply to client and updates the state of the reply in the
+   * database. If the reply fails, the next attempt is delayed with an
+   * exponential backoff, until the maximum number of attempts is reached.
+   * Replies to hosts whose circuit is open are not attempted, and replies
+   * slower than callback.breaker.slow.time count as failures of the host
    *
+   * @param request to be replied to the client
    * @return {void}
    */
-  @Scheduled(fixedDelay = 30000L)
-  public void processReplyQueue(){
-      List<OCRRequest> requests = ocrRequestRepository.getAllFailedCommunicationRequests();
-      logger.debug("Successfully fetched {} communication failed requests", requests.size());
-
-      // tries to reply to the client of each request
-      for(OCRRequest req : requests) {
-        replyToRequest(req);
+  public void replyToRequest(OCRRequest request){
+      CircuitBreaker circuitBreaker = circuitBreakers.computeIfAbsent(getCallbackHost(request.getCallbackEndpoint()),
+        host -> new CircuitBreaker(callbackBreakerFailures, callbackBreakerOpenTime));
+
+      if(!circuitBreaker.allowRequest()){
+        // the host keeps failing, waits for the circuit to be tried again
+        request.failedToCommunicated();
+        request.setNextCallbackDate(new Date(circuitBreaker.getRetryTimeMillis()));
+        logger.info("Circuit open for the host of {}, reply postponed", request.getId());
+      }else{
+        long start = System.currentTimeMillis();
+        boolean replied = sendReply(request);
+        long elapsed = System.currentTimeMillis() - start;
+
+        if(replied && elapsed <= callbackBreakerSlowTime){
+          circuitBreaker.recordSuccess();
+        }else if(replied){
+          // the reply was received, but a host this slow holds the callback threads
+          logger.warn("Reply to requester of {} took {} ms", request.getId(), elapsed);
+          circuitBreaker.recordFailure();
+        }else{
+          circuitBreaker.recordFailure();
+          scheduleRetry(request);
+        }
       }
+
+      ocrRequestRepository.updateRequest(request);
   }
 
   /**
-   * Sends reply to client and updates request in the database
+   * Counts a failed reply and sets when it will be retried, or marks
+   * the request as dead if the maximum number of attempts is reached
    *
-   * @param request to be replied to the client
+   * @param request that failed to be replied
    * @return {void}
    */
-  public void replyToRequest(OCRRequest request){
-      sendReply(request);
-      ocrRequestRepository.updateRequest(request);
+  private void scheduleRetry(OCRRequest request){
+    int attempts = request.getCallbackAttempts() + 1;
+    request.setCallbackAttempts(attempts);
+
+    if(attempts >= callbackRetryMaxAttempts){
+      request.setCallbackDead(true);
+      request.setNextCallbackDate(null);
+      logger.error("Gave up replying to requester of {} after {} attempts", request.getId(), attempts);
+      return;
+    }
+
+    // doubles the delay at each attempt, randomized between half and the whole
+    // delay so that replies to a host that was down are not retried all at once
+    long delay = Math.min(callbackRetryMaxDelay, callbackRetryInitialDelay << Math.min(attempts - 1, 30));
+    delay = delay / 2 + (long) (JITTER.nextDouble() * (delay - delay / 2));
+    request.setNextCallbackDate(new Date(System.currentTimeMillis() + delay));
+  }
+
+  /**
+   * Gets the host (and port) of a callback endpoint
+   *
+   * @param endpoint callback URL
+   * @return {String} host of the endpoint, or the endpoint itself if it is not a valid URL
+   */
+  public static String getCallbackHost(String endpoint){
+    try {
+      String authority = URI.create(endpoint).getAuthority();
+      return authority != null ? authority.toLowerCase() : endpoint;
+    } catch (Exception ex) {
+      return String.valueOf(endpoint);
+    }
   }
 
   /**
    * Sends reply to client
    *
    * @param request to be replied to the client
-   * @return {void}
+   * @return {boolean} true if the client received the reply
    */
-  private void sendReply(OCRRequest request) {
+  private boolean sendReply(OCRRequest request) {
 
     logger.debug("Attempting to reply to requester of {}", request.getId());
 
@@ -90,15 +162,8 @@ public class OCRCallbackService {
     String basicAuthString = new String(base64Credentials);
     headers.add("Authorization", "Basic " + basicAuthString);
 
-    // create temp File
+    // only needed when the OCRed file has to be fetched from the database
     File tempFile = null;
-    try {
-      tempFile = File.createTempFile(request.getToken(), ".pdf");
-    } catch (IOException ex) {
-      request.failedToCommunicated();
-      logger.error("Failed to communicate to requester of {}. Reason: {}", request.getId(), ex.getMessage());
-      return;
-    }
 
     try {
       // creates a form to be sent to the client
@@ -109,8 +174,20 @@ public class OCRCallbackService {
       requestForm.add("statusMessage", request.getStatusMessage());
 
       if(request.getStatusCode() == 1) {
-        FileUtils.writeByteArrayToFile(tempFile, request.getOcredFileByteArray());
-        requestForm.add("file", new FileSystemResource(tempFile));
+        File ocredFile = request.getOcredFile();
+        if(ocredFile != null && ocredFile.isFile()) {
+          // the file written by the worker is streamed as it is
+          requestForm.add("file", new FileSystemResource(ocredFile));
+        } else if(request.getOcredFileByteArray() != null) {
+          requestForm.add("file", new NamedByteArrayResource(request.getOcredFileByteArray(), request.getToken() + ".pdf"));
+        } else {
+          // requests fetched by the retry job come without their file, which is
+          // streamed from the database to a temporary file
+          tempFile = File.createTempFile(request.getToken(), ".pdf");
+          if(!ocrRequestRepository.copyOcredFile(request.getId(), tempFile))
+            throw new IOException("the OCRed file is no longer available");
+          requestForm.add("file", new FileSystemResource(tempFile));
+        }
       }
 
       HttpEntity<MultiValueMap<String, Object>> httpRequest = new HttpEntity<>(requestForm, headers);
@@ -136,7 +213,49 @@ public class OCRCallbackService {
 
     }finally {
       // delete temp file
-      tempFile.delete();
+      if(tempFile != null)
+        tempFile.delete();
+    }
+
+    return request.isCommunicated();
+  }
+
+  // byte array sent as a file part of the form
+  private static class NamedByteArrayResource extends ByteArrayResource {
+    private final String filename;
+
+    private NamedByteArrayResource(byte[] byteArray, String filename) {
+      super(byteArray);
+      this.filename = filename;
+    }
+
+    @Override
+    public String getFilename() {
+      return filename;
     }
   }
+
+  public void setCallbackRetryMaxAttempts(int callbackRetryMaxAttempts) {
+    this.callbackRetryMaxAttempts = callbackRetryMaxAttempts;
+  }
+
+  public void setCallbackRetryInitialDelay(long callbackRetryInitialDelay) {
+    this.callbackRetryInitialDelay = callbackRetryInitialDelay;
+  }
+
+  public void setCallbackRetryMaxDelay(long callbackRetryMaxDelay) {
+    this.callbackRetryMaxDelay = callbackRetryMaxDelay;
+  }
+
+  public void setCallbackBreakerFailures(int callbackBreakerFailures) {
+    this.callbackBreakerFailures = callbackBreakerFailures;
+  }
+
+  public void setCallbackBreakerOpenTime(long callbackBreakerOpenTime) {
+    this.callbackBreakerOpenTime = callbackBreakerOpenTime;
+  }
+
+  public void setCallbackBreakerSlowTime(long callbackBreakerSlowTime) {
+    this.callbackBreakerSlowTime = callbackBreakerSlowTime;
+  }
 }
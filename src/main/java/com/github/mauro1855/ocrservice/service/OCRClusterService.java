@@ -0,0 +1,311 @@
+package com.github.mauro1855.ocrservice.service;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.repository.OCRNodeRepository;
+import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import com.github.mauro1855.ocrservice.worker.OCRRequestWorker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the pending requests between the nodes of a cluster using the
+ * same database (clustered mode). Each node leases batches of requests,
+ * processes them in its own thread pool and renews their leases until
+ * they are processed; the requests of a node that stops renewing them
+ * are claimed by the other nodes once the leases expire
+ * <p>
+ * Nodes also send heartbeats: the leases of a node that stops sending
+ * them are released by the orphan scan of the other nodes, so that its
+ * requests are claimed without waiting for the leases to expire
+ * <p>
+ * The jobs of the cluster run in their own scheduler, one thread each, so
+ * that the other scheduled jobs of the service (replies to slow clients...)
+ * never delay the heartbeats and lease renewals past their time-outs
+ * <p>
+ * Clients waiting for a request (long-poll and server-sent events) may be
+ * connected to another node than the one processing it: the requests they
+ * wait for are regularly read from the database to notify them
+ */
+@Service
+public class OCRClusterService {
+
+  private static Logger logger = LoggerFactory.getLogger(OCRClusterService.class);
+
+  @Autowired
+  private OCRRequestWorker ocrRequestWorker;
+
+  @Autowired
+  private OCRRequestRepository ocrRequestRepository;
+
+  @Autowired
+  private OCRNodeRepository ocrNodeRepository;
+
+  @Autowired
+  private ExecutorService priorityExecutor;
+
+  @Autowired
+  private OCRCompletionNotifier ocrCompletionNotifier;
+
+  @Value("${cluster.enabled}")
+  private boolean clusterEnabled;
+
+  @Value("${cluster.node.id}")
+  private String nodeId;
+
+  @Value("${cluster.max.leased.requests}")
+  private int maxLeasedRequests;
+
+  @Value("${cluster.lease.duration}")
+  private long leaseDuration;
+
+  @Value("${cluster.node.timeout}")
+  private long nodeTimeout;
+
+  @Value("${cluster.claim.interval}")
+  private long claimInterval;
+
+  @Value("${cluster.lease.renew.interval}")
+  private long leaseRenewInterval;
+
+  @Value("${cluster.heartbeat.interval}")
+  private long heartbeatInterval;
+
+  @Value("${cluster.orphan.scan.interval}")
+  private long orphanScanInterval;
+
+  @Value("${cluster.completion.poll.interval}")
+  private long completionPollInterval;
+
+  private ScheduledExecutorService clusterScheduler;
+
+  // requests leased by this node and submitted to the thread pool
+  private final Set<Long> leasedRequests = ConcurrentHashMap.newKeySet();
+
+  @PostConstruct
+  public void init(){
+    if(nodeId == null || nodeId.isEmpty())
+      nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    if(!clusterEnabled)
+      return;
+
+    logger.info("Clustered mode enabled, node id {}", nodeId);
+
+    // the node is registered before it leases requests, or the other nodes would release its leases as orphans
+    heartbeat();
+
+    clusterScheduler = Executors.newScheduledThreadPool(5, runnable -> {
+      Thread thread = new Thread(runnable, "ocr-cluster");
+      thread.setDaemon(true);
+      return thread;
+    });
+    schedule(this::heartbeat, 0L, heartbeatInterval);
+    schedule(this::renewLeases, leaseRenewInterval);
+    schedule(this::claimRequests, claimInterval);
+    schedule(this::releaseOrphanRequests, orphanScanInterval);
+    schedule(this::pollCompletedRequests, completionPollInterval);
+  }
+
+  // runs a job of the cluster regularly; a failure is logged, and the job runs again after the delay
+  private void schedule(Runnable job, long delay){
+    schedule(job, delay, delay);
+  }
+
+  private void schedule(Runnable job, long initialDelay, long delay){
+    clusterScheduler.scheduleWithFixedDelay(() -> {
+      try {
+        job.run();
+      } catch (Exception ex) {
+        logger.error("Cluster job failed: {}", ex.getMessage());
+      }
+    }, initialDelay, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Releases the leases of the requests that were not processed,
+   * so that the other nodes claim them without waiting for them to expire
+   *
+   * @return {void}
+   */
+  @PreDestroy
+  public void shutdown(){
+    if(!clusterEnabled)
+      return;
+
+    if(clusterScheduler != null)
+      clusterScheduler.shutdownNow();
+    try {
+      int released = ocrRequestRepository.releaseLeases(nodeId);
+      ocrNodeRepository.removeNode(nodeId);
+      logger.info("Released {} leased requests", released);
+    } catch (Exception ex) {
+      logger.error("Could not release the leased requests: {}", ex.getMessage());
+    }
+  }
+
+  /**
+   * Leases a new request to this node before it is inserted,
+   * so that no other node claims it
+   *
+   * @param request not inserted yet
+   * @return {void}
+   */
+  public void leaseNewRequest(OCRRequest request){
+    request.setLeaseOwner(nodeId);
+    request.setLeaseExpirationDate(getLeaseExpirationDate());
+  }
+
+  /**
+   * Submits a request leased to this node to the priority
+   * thread pool, unless it was already submitted
+   *
+   * @param request leased to this node
+   * @return {void}
+   */
+  public void submitLeasedRequest(OCRRequest request){
+    if(leasedRequests.add(request.getId()))
+      priorityExecutor.submit(ocrRequestWorker.getRunnable(request));
+  }
+
+  /**
+   * Claims pending requests, up to the maximum number of requests
+   * a node holds, and submits them to the priority thread pool.
+   * Requests that were processed are forgotten
+   *
+   * @return {void}
+   */
+  public void claimRequests(){
+    if(!clusterEnabled)
+      return;
+
+    // requests submitted after this point are never forgotten by this run
+    Set<Long> knownRequests = new HashSet<>(leasedRequests);
+
+    int claimed = 0;
+    int freeSlots = maxLeasedRequests - knownRequests.size();
+    if(freeSlots > 0)
+      claimed = ocrRequestRepository.claimRequests(nodeId, getLeaseExpirationDate(), freeSlots);
+
+    List<OCRRequest> requests = ocrRequestRepository.getLeasedRequests(nodeId);
+    for(OCRRequest request : requests){
+      knownRequests.remove(request.getId());
+      submitLeasedRequest(request);
+    }
+
+    // processed, or stopped
+    leasedRequests.removeAll(knownRequests);
+
+    if(claimed > 0)
+      logger.info("Claimed {} pending requests", claimed);
+  }
+
+  /**
+   * Extends the leases of the requests of this node
+   * that are waiting in the queue or being processed
+   *
+   * @return {void}
+   */
+  public void renewLeases(){
+    if(!clusterEnabled)
+      return;
+
+    int renewed = ocrRequestRepository.renewLeases(nodeId, getLeaseExpirationDate());
+    logger.debug("Renewed {} leases", renewed);
+  }
+
+  /**
+   * Records that this node is alive
+   *
+   * @return {void}
+   */
+  public void heartbeat(){
+    if(!clusterEnabled)
+      return;
+
+    ocrNodeRepository.heartbeat(nodeId);
+  }
+
+  /**
+   * Releases the leases of the nodes that stopped sending
+   * heartbeats (crashed, or cut from the database), so that their
+   * requests are claimed again by the live nodes
+   *
+   * @return {void}
+   */
+  public void releaseOrphanRequests(){
+    if(!clusterEnabled)
+      return;
+
+    Date deadline = new Date(System.currentTimeMillis() - nodeTimeout);
+    int released = ocrRequestRepository.releaseOrphanLeases(deadline);
+    int removed = ocrNodeRepository.removeDeadNodes(deadline);
+
+    if(released > 0 || removed > 0)
+      logger.warn("Released {} requests of {} dead nodes", released, removed);
+  }
+
+  /**
+   * Notifies the clients waiting on this node for requests
+   * that were processed, possibly by another node
+   *
+   * @return {void}
+   */
+  public void pollCompletedRequests(){
+    if(!clusterEnabled)
+      return;
+
+    for(Long requestId : ocrCompletionNotifier.getAwaitedRequests()){
+      OCRRequest request = ocrRequestRepository.getRequest(requestId);
+      if(request != null && request.getStatusCode() != 0)
+        ocrCompletionNotifier.requestCompleted(request);
+    }
+  }
+
+  private Date getLeaseExpirationDate(){
+    return new Date(System.currentTimeMillis() + leaseDuration);
+  }
+
+  public boolean isClusterEnabled() {
+    return clusterEnabled;
+  }
+
+  public void setClusterEnabled(boolean clusterEnabled) {
+    this.clusterEnabled = clusterEnabled;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public void setNodeId(String nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  public void setMaxLeasedRequests(int maxLeasedRequests) {
+    this.maxLeasedRequests = maxLeasedRequests;
+  }
+
+  public void setLeaseDuration(long leaseDuration) {
+    this.leaseDuration = leaseDuration;
+  }
+
+  public void setNodeTimeout(long nodeTimeout) {
+    this.nodeTimeout = nodeTimeout;
+  }
+}
@@ -0,0 +1,79 @@
+package com.github.mauro1855.ocrservice.service;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Notifies the clients waiting for a request (long-poll and
+ * server-sent events) as soon as it is processed. Only the requests
+ * processed by this node are notified right away; in clustered mode,
+ * the requests processed by the other nodes are found by polling the
+ * database (see {@link OCRClusterService})
+ */
+@Service
+public class OCRCompletionNotifier {
+
+  private static Logger logger = LoggerFactory.getLogger(OCRCompletionNotifier.class);
+
+  // listeners by request id
+  private final ConcurrentMap<Long, List<Consumer<OCRRequest>>> listeners = new ConcurrentHashMap<>();
+
+  /**
+   * Registers a listener called once when the request is processed.
+   * As the request may be processed while the listener is registered,
+   * callers must check the request status after registering
+   *
+   * @param requestId of the request
+   * @param listener called with the processed request
+   * @return {void}
+   */
+  public void addListener(Long requestId, Consumer<OCRRequest> listener){
+    listeners.computeIfAbsent(requestId, id -> new CopyOnWriteArrayList<>()).add(listener);
+  }
+
+  /**
+   * Gets the requests that clients are waiting for
+   *
+   * @return {Set} ids of the requests with listeners
+   */
+  public Set<Long> getAwaitedRequests(){
+    return new HashSet<>(listeners.keySet());
+  }
+
+  public void removeListener(Long requestId, Consumer<OCRRequest> listener){
+    listeners.computeIfPresent(requestId, (id, requestListeners) -> {
+      requestListeners.remove(listener);
+      return requestListeners.isEmpty() ? null : requestListeners;
+    });
+  }
+
+  /**
+   * Calls the listeners of a request that was processed
+   *
+   * @param request that was processed
+   * @return {void}
+   */
+  public void requestCompleted(OCRRequest request){
+    List<Consumer<OCRRequest>> requestListeners = listeners.remove(request.getId());
+    if(requestListeners == null)
+      return;
+
+    for(Consumer<OCRRequest> listener : requestListeners){
+      try {
+        listener.accept(request);
+      } catch (Exception ex) {
+        logger.warn("Could not notify completion of request {}: {}", request.getId(), ex.getMessage());
+      }
+    }
+  }
+}
@@ -2,16 +2,17 @@ package com.github.mauro1855.ocrservice.service;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
 import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import com.github.mauro1855.ocrservice.util.OCRThreadPoolExecutor;
 import com.github.mauro1855.ocrservice.worker.OCRRequestWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 
 /**
  * Created by mauro1855 on 01/12/2016.
@@ -28,16 +29,30 @@ public class OCRRequestService
   private OCRRequestRepository ocrRequestRepository;
 
   @Autowired
-  private ExecutorService priorityExecutor;
+  private OCRThreadPoolExecutor priorityExecutor;
+
+  @Autowired
+  private OCRCompletionNotifier ocrCompletionNotifier;
+
+  @Autowired
+  private OCRClusterService ocrClusterService;
 
   @Resource(name = "isRunningTests")
   private boolean isRunningTests;
 
+  static final String CANCELLED_MESSAGE = "Cancelled by the client";
+
+  @Value("${restore.page.size}")
+  private int restorePageSize;
+
   /**
    * Gets all unprocessed requests and adds them to the
    * priority thread pool
    * <p>
-   * This method is run when the program starts
+   * This method is run when the program starts. Requests are
+   * fetched page by page and without their files (the worker
+   * fetches the file when it picks up the request). In clustered
+   * mode, the pending requests are claimed by the cluster service instead
    *
    * @return {void}
    */
@@ -46,35 +61,85 @@ public class OCRRequestService
   {
     if(isRunningTests) return;
 
-    // Fetches all unprocessed requests from database
-    List<OCRRequest> requests = ocrRequestRepository.getAllUnprocessedRequests();
+    if(ocrClusterService.isClusterEnabled()){
+      logger.info("Clustered mode: unprocessed requests are claimed by the nodes of the cluster");
+      return;
+    }
 
-    logger.info("Successfully fetched {} unprocessed requests", requests.size());
+    long lastId = 0L;
+    int restored = 0;
+    List<OCRRequest> requests;
+    do {
+      // Fetches the next page of unprocessed requests from database
+      requests = ocrRequestRepository.getUnprocessedRequests(lastId, restorePageSize);
 
-    // For every request, submits to the priority thread pool for processing
-    for (OCRRequest req : requests) {
-      priorityExecutor.submit(ocrRequestWorker.getRunnable(req));
-    }
+      // For every request, submits to the priority thread pool for processing
+      for (OCRRequest req : requests) {
+        priorityExecutor.submit(ocrRequestWorker.getRunnable(req));
+        lastId = req.getId();
+      }
+      restored += requests.size();
+    } while(!requests.isEmpty() && requests.size() == restorePageSize);
+
+    logger.info("Successfully restored {} unprocessed requests", restored);
   }
 
   /**
    * Registers new OCR requests in the DB and submits
-   * the OCR task to the priority thread pool
+   * the OCR task to the priority thread pool. In clustered mode,
+   * the request is leased to this node when it is inserted
    *
    * @return {Long} new request Id
    */
   public Long registerNewOCRRequest(OCRRequest ocrRequest)
   {
+    if(ocrClusterService.isClusterEnabled())
+      ocrClusterService.leaseNewRequest(ocrRequest);
+
     ocrRequestRepository.createNewRequest(ocrRequest);
 
     // While the request is in the queue, we remove the file bytes
     // (if we have thousands of files in the queue, it's better if
     // the file bytes are not in memory)
     ocrRequest.setFileToOCRByteArray(null);
+    ocrRequest.setFileToOCRStream(null);
 
     // Submit the request to the queue
-    priorityExecutor.submit(ocrRequestWorker.getRunnable(ocrRequest));
+    if(ocrClusterService.isClusterEnabled())
+      ocrClusterService.submitLeasedRequest(ocrRequest);
+    else
+      priorityExecutor.submit(ocrRequestWorker.getRunnable(ocrRequest));
 
     return ocrRequest.getId();
   }
+
+  /**
+   * Cancels a request that was not processed yet. The request is
+   * stopped in the DB (so that no node processes it), and removed from
+   * the queue, or its OCR is stopped if it is being processed
+   * <p>
+   * In clustered mode, a request being processed by another node
+   * is not stopped, but its result is discarded
+   *
+   * @param request to cancel
+   * @return {boolean} false if the request was already processed
+   */
+  public boolean cancelRequest(OCRRequest request)
+  {
+    if(!ocrRequestRepository.stopRequest(request.getId(), CANCELLED_MESSAGE))
+      return false;
+
+    if(priorityExecutor.cancel(request.getId()))
+      logger.info("Cancelled request {}, removed from the queue", request.getId());
+    else if(ocrRequestWorker.cancel(request.getId()))
+      logger.info("Cancelled request {}, its processing was stopped", request.getId());
+    else
+      logger.info("Cancelled request {}", request.getId());
+
+    // wakes up the clients waiting for the request
+    request.setStatusCode(-1);
+    request.setStatusMessage(CANCELLED_MESSAGE);
+    ocrCompletionNotifier.requestCompleted(request);
+    return true;
+  }
 }
@@ -0,0 +1,151 @@
+package com.github.mauro1855.ocrservice.service;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.repository.OCRResultCacheRepository;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Avoids OCRing the same document twice: results are cached by
+ * content hash and OCR command, and identical requests that arrive
+ * while the first one is being OCRed wait for its result
+ */
+@Service
+public class OCRResultCacheService {
+
+  private static Logger logger = LoggerFactory.getLogger(OCRResultCacheService.class);
+
+  @Autowired
+  private OCRResultCacheRepository ocrResultCacheRepository;
+
+  @Value("${ocr.cache.enabled}")
+  private boolean cacheEnabled;
+
+  @Value("${ocr.cache.max.size}")
+  private long cacheMaxSize;
+
+  @Value("${ocr.cache.max.entry.size}")
+  private long cacheMaxEntrySize;
+
+  // requests waiting for the request in progress with the same cache key
+  private final Map<String, List<OCRRequest>> inFlightRequests = new HashMap<>();
+
+  /**
+   * Builds the key of the result of a document, which depends
+   * on the document content and on the command used to OCR it
+   *
+   * @param contentHash of the document
+   * @param commandSignature description of the OCR command
+   * @return {String} cache key, or null if the cache is disabled
+   */
+  public String getCacheKey(String contentHash, String commandSignature){
+    if(!cacheEnabled || contentHash == null)
+      return null;
+
+    return DigestUtils.sha256Hex(contentHash + "|" + commandSignature);
+  }
+
+  /**
+   * Registers the request as the one OCRing the document with the given
+   * cache key. If an identical document is already being OCRed, the
+   * request is attached to it instead and will get its result
+   *
+   * @param cacheKey of the document
+   * @param request to be processed
+   * @return {boolean} true if the request must be processed, false if it was attached
+   */
+  public synchronized boolean startProcessing(String cacheKey, OCRRequest request){
+    List<OCRRequest> followers = inFlightRequests.get(cacheKey);
+    if(followers != null){
+      followers.add(request);
+      logger.info("Request {} attached to identical request in progress", request.getId());
+      return false;
+    }
+
+    inFlightRequests.put(cacheKey, new ArrayList<>());
+    return true;
+  }
+
+  /**
+   * Marks the document with the given cache key as processed
+   *
+   * @param cacheKey of the document
+   * @return {List} requests that were attached while it was being processed
+   */
+  public synchronized List<OCRRequest> finishProcessing(String cacheKey){
+    List<OCRRequest> followers = inFlightRequests.remove(cacheKey);
+    return followers != null ? followers : Collections.emptyList();
+  }
+
+  /**
+   * Copies a cached OCR result to a file
+   *
+   * @param cacheKey of the document
+   * @param target file to write
+   * @return {boolean} false if the result is not cached (or can't be read)
+   */
+  public boolean copyCachedResult(String cacheKey, File target){
+    try {
+      if(ocrResultCacheRepository.copyResult(cacheKey, target))
+        return true;
+    } catch (Exception ex) {
+      logger.warn("Could not read result cache: {}", ex.getMessage());
+    }
+    target.delete();
+    return false;
+  }
+
+  /**
+   * Caches an OCR result, unless it is bigger than ocr.cache.max.entry.size,
+   * and evicts the least recently used results if the cache became too big
+   *
+   * @param cacheKey of the document
+   * @param ocredFile the OCRed file
+   * @return {void}
+   */
+  public void cacheResult(String cacheKey, File ocredFile){
+    if(ocredFile == null || ocredFile.length() > Math.min(cacheMaxEntrySize, cacheMaxSize))
+      return;
+
+    try(InputStream ocredFileStream = new FileInputStream(ocredFile)) {
+      ocrResultCacheRepository.putResult(cacheKey, ocredFileStream, ocredFile.length());
+      int evicted = ocrResultCacheRepository.evictLeastRecentlyUsed(cacheMaxSize);
+      logger.debug("Cached result {} ({} evicted)", cacheKey, evicted);
+    } catch (Exception ex) {
+      logger.warn("Could not write result cache: {}", ex.getMessage());
+    }
+  }
+
+  public boolean isCacheEnabled() {
+    return cacheEnabled;
+  }
+
+  public void setCacheEnabled(boolean cacheEnabled) {
+    this.cacheEnabled = cacheEnabled;
+  }
+
+  public long getCacheMaxSize() {
+    return cacheMaxSize;
+  }
+
+  public void setCacheMaxSize(long cacheMaxSize) {
+    this.cacheMaxSize = cacheMaxSize;
+  }
+
+  public void setCacheMaxEntrySize(long cacheMaxEntrySize) {
+    this.cacheMaxEntrySize = cacheMaxEntrySize;
+  }
+}
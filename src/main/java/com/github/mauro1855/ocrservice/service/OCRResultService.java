@@ -0,0 +1,153 @@
+package com.github.mauro1855.ocrservice.service;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+ * Gives the clients access to their requests (pull mode). Results
+ * are copied once from the database to the results folder, from
+ * where they are sent to the clients, and removed after some time
+ */
+@Service
+public class OCRResultService {
+
+  private static Logger logger = LoggerFactory.getLogger(OCRResultService.class);
+
+  @Autowired
+  private OCRRequestRepository ocrRequestRepository;
+
+  @Value("${ocr.results.dir}")
+  private String resultsDir;
+
+  @Value("${ocr.results.retention}")
+  private long resultsRetention;
+
+  private File resultsFolder;
+
+  @PostConstruct
+  public void init(){
+    resultsFolder = resultsDir == null || resultsDir.isEmpty()
+      ? new File(System.getProperty("java.io.tmpdir"), "ocr-results") : new File(resultsDir);
+
+    if(!resultsFolder.isDirectory() && !resultsFolder.mkdirs())
+      logger.error("Could not create results folder {}", resultsFolder.getAbsolutePath());
+  }
+
+  /**
+   * Gets a request, checking the token the client received
+   * when the request was accepted
+   *
+   * @param requestId of the request
+   * @param requestToken of the request
+   * @return {OCRRequest} the request without its files, or null if it does not exist or the token is wrong
+   */
+  public OCRRequest getRequest(Long requestId, String requestToken){
+    if(requestToken == null)
+      return null;
+
+    OCRRequest request = ocrRequestRepository.getRequest(requestId);
+    if(request == null)
+      return null;
+
+    // constant time comparison, so that the token can't be guessed from the response time
+    boolean validToken = MessageDigest.isEqual(request.getToken().getBytes(StandardCharsets.UTF_8),
+      requestToken.getBytes(StandardCharsets.UTF_8));
+    return validToken ? request : null;
+  }
+
+  /**
+   * Gets the file of the OCRed document of a request, copying
+   * it from the database the first time it is requested
+   *
+   * @param request successfully processed
+   * @return {File} the OCRed file, or null if it is no longer available
+   */
+  public File getResultFile(OCRRequest request) throws IOException {
+    File resultFile = new File(resultsFolder, request.getId() + ".pdf");
+    if(resultFile.isFile())
+      return resultFile;
+
+    // written aside and moved, so that concurrent downloads never see a partial file
+    File tempFile = File.createTempFile("result_" + request.getId() + "_", ".tmp", resultsFolder);
+    try {
+      if(!ocrRequestRepository.copyOcredFile(request.getId(), tempFile))
+        return null;
+      Files.move(tempFile.toPath(), resultFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tempFile.delete();
+    }
+    return resultFile;
+  }
+
+  /**
+   * Builds the entity tag of the result of a request. The result
+   * never changes once the request is processed
+   *
+   * @param request successfully processed
+   * @return {String} quoted entity tag
+   */
+  public String getETag(OCRRequest request){
+    long endDate = request.getRequestOCREndDate() != null ? request.getRequestOCREndDate().getTime() : 0L;
+    return "\"" + request.getId() + "-" + endDate + "\"";
+  }
+
+  /**
+   * Marks the result of a pull mode request as communicated once
+   * it was downloaded, so its files are removed from the database
+   * (the copy in the results folder is kept until it expires)
+   *
+   * @param request that was downloaded
+   * @return {void}
+   */
+  public void resultDownloaded(OCRRequest request){
+    if(request.hasCallback() || request.isCommunicated())
+      return;
+
+    request.communicated();
+    ocrRequestRepository.updateRequest(request);
+    logger.info("Result of request {} downloaded by the client", request.getId());
+  }
+
+  /**
+   * Removes the results that were copied to the results
+   * folder longer than the retention time ago
+   *
+   * @return {void}
+   */
+  @Scheduled(fixedDelay = 3600000L)
+  public void removeExpiredResults(){
+    File[] files = resultsFolder.listFiles();
+    if(files == null)
+      return;
+
+    long expiration = System.currentTimeMillis() - resultsRetention;
+    int removed = 0;
+    for(File file : files){
+      if(file.lastModified() < expiration && file.delete())
+        removed++;
+    }
+    logger.debug("Removed {} expired results", removed);
+  }
+
+  public void setResultsDir(String resultsDir) {
+    this.resultsDir = resultsDir;
+  }
+
+  public void setResultsRetention(long resultsRetention) {
+    this.resultsRetention = resultsRetention;
+  }
+}
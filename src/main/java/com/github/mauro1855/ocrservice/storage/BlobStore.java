@@ -0,0 +1,44 @@
+package com.github.mauro1855.ocrservice.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Storage of the files of the requests (the file to OCR and the OCRed
+ * file). Files are always streamed in and out of the store, they are
+ * never held in memory
+ */
+public interface BlobStore {
+
+    enum BlobType { FILE_TO_OCR, OCRED_FILE }
+
+    /**
+     * Stores a file of a request, replacing the previous one
+     *
+     * @param requestId of the request
+     * @param type of the file
+     * @param content of the file (not closed)
+     * @param size of the file in bytes
+     * @return {void}
+     */
+    void put(Long requestId, BlobType type, InputStream content, long size) throws IOException;
+
+    /**
+     * Copies a file of a request to a file on disk
+     *
+     * @param requestId of the request
+     * @param type of the file
+     * @param target file to write
+     * @return {boolean} false if the request has no such file
+     */
+    boolean copyTo(Long requestId, BlobType type, File target) throws IOException;
+
+    /**
+     * Removes all the files of a request
+     *
+     * @param requestId of the request
+     * @return {void}
+     */
+    void delete(Long requestId);
+}
@@ -0,0 +1,209 @@
+package com.github.mauro1855.ocrservice.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.SingleColumnRowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Stores the files of the requests in a local folder, named after the
+ * SHA-256 of their content and sharded in two levels of sub folders
+ * (ab/cd/abcd...). Identical files are stored once. The database only
+ * keeps the references of the requests to the files, in the
+ * ocr_request_blobs table; a file is removed with its last reference.
+ * <p>
+ * A reference is written before its file is checked, and a file is only
+ * removed after the transaction that dropped its reference committed, in a
+ * transaction of its own that counts the references with a locking read:
+ * the count waits for the uncommitted references of concurrent uploads, and
+ * the uploads that come after it wait for the file to be removed (and then
+ * write it again). This relies on the gap locks of the default REPEATABLE
+ * READ isolation of MySQL.
+ * <p>
+ * Files are read through memory mappings, in regions of at most
+ * MAP_REGION_SIZE bytes.
+ */
+public class FileSystemBlobStore implements BlobStore {
+
+    private static Logger logger = LoggerFactory.getLogger(FileSystemBlobStore.class);
+
+    private static final String GET_BLOB_KEY = "SELECT blob_key FROM ocr_request_blobs WHERE request_id = :requestId AND blob_type = :blobType";
+
+    private static final String GET_REQUEST_BLOB_KEYS = "SELECT blob_key FROM ocr_request_blobs WHERE request_id = :requestId";
+
+    private static final String UPSERT_BLOB = "INSERT INTO ocr_request_blobs (request_id, blob_type, blob_key, blob_size) " +
+            "VALUES (:requestId, :blobType, :blobKey, :blobSize) " +
+            "ON DUPLICATE KEY UPDATE blob_key = VALUES(blob_key), blob_size = VALUES(blob_size)";
+
+    private static final String DELETE_REQUEST_BLOBS = "DELETE FROM ocr_request_blobs WHERE request_id = :requestId";
+
+    private static final String COUNT_BLOB_REFERENCES = "SELECT COUNT(*) FROM ocr_request_blobs WHERE blob_key = :blobKey FOR UPDATE";
+
+    private static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+
+    // a file is only added and removed while holding the lock of its key (never while waiting for the database)
+    private static final int LOCK_STRIPES = 64;
+
+    private final NamedParameterJdbcTemplate ocrServiceJdbcTemplate;
+    private final TransactionTemplate releaseTransaction;
+    private final File root;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public FileSystemBlobStore(NamedParameterJdbcTemplate ocrServiceJdbcTemplate, PlatformTransactionManager transactionManager,
+                               File root) {
+        this.ocrServiceJdbcTemplate = ocrServiceJdbcTemplate;
+        this.releaseTransaction = new TransactionTemplate(transactionManager);
+        this.releaseTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.root = root;
+        for(int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new Object();
+
+        if(!root.isDirectory() && !root.mkdirs())
+            throw new IllegalStateException("Could not create blob store folder " + root.getAbsolutePath());
+    }
+
+    @Override
+    public void put(Long requestId, BlobType type, InputStream content, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        // the file is hashed while it is written aside, then moved to its place
+        File tempFile = File.createTempFile("blob_", ".tmp", root);
+        try {
+            MySQLBlobStore.writeToFile(new DigestInputStream(new CloseShieldInputStream(content), digest), tempFile);
+            String blobKey = Hex.encodeHexString(digest.digest());
+            long blobSize = tempFile.length();
+            String previousKey = getBlobKey(requestId, type);
+
+            // the reference first: a file being removed is then written again
+            MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "requestId", requestId)
+                    .addValue( "blobType", type.name())
+                    .addValue( "blobKey", blobKey)
+                    .addValue( "blobSize", blobSize);
+            ocrServiceJdbcTemplate.update(UPSERT_BLOB, parameters);
+
+            synchronized (getLock(blobKey)) {
+                File blobFile = getBlobFile(blobKey);
+                if(!blobFile.exists()) {
+                    Files.createDirectories(blobFile.getParentFile().toPath());
+                    Files.move(tempFile.toPath(), blobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+
+            if(previousKey != null && !previousKey.equals(blobKey))
+                release(previousKey);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    @Override
+    public boolean copyTo(Long requestId, BlobType type, File target) throws IOException {
+        String blobKey = getBlobKey(requestId, type);
+        if(blobKey == null)
+            return false;
+
+        File blobFile = getBlobFile(blobKey);
+        if(!blobFile.isFile()) {
+            logger.error("Missing file {} of request {}", blobFile.getAbsolutePath(), requestId);
+            return false;
+        }
+
+        try(FileChannel inputChannel = FileChannel.open(blobFile.toPath(), StandardOpenOption.READ);
+            FileChannel outputChannel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = inputChannel.size();
+            for(long position = 0; position < size; position += MAP_REGION_SIZE) {
+                MappedByteBuffer region = inputChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_REGION_SIZE, size - position));
+                while(region.hasRemaining())
+                    outputChannel.write(region);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void delete(Long requestId) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "requestId", requestId);
+        List<String> blobKeys = ocrServiceJdbcTemplate.query(GET_REQUEST_BLOB_KEYS, parameters, new SingleColumnRowMapper<>(String.class));
+        ocrServiceJdbcTemplate.update(DELETE_REQUEST_BLOBS, parameters);
+
+        for(String blobKey : blobKeys)
+            release(blobKey);
+    }
+
+    /**
+     * Removes a file if no request references it anymore, once the
+     * current transaction (if any) committed
+     *
+     * @param blobKey of the file
+     * @return {void}
+     */
+    private void release(String blobKey) {
+        if(!TransactionSynchronizationManager.isSynchronizationActive()) {
+            releaseUnreferenced(blobKey);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                releaseUnreferenced(blobKey);
+            }
+        });
+    }
+
+    // counts the references and removes the file in the same transaction, the count locking out new references
+    private void releaseUnreferenced(String blobKey) {
+        releaseTransaction.execute(status -> {
+            Integer references = ocrServiceJdbcTemplate.queryForObject(COUNT_BLOB_REFERENCES,
+                    new MapSqlParameterSource().addValue( "blobKey", blobKey), Integer.class);
+            if(references != null && references == 0) {
+                synchronized (getLock(blobKey)) {
+                    if(!getBlobFile(blobKey).delete())
+                        logger.warn("Could not remove blob {}", blobKey);
+                }
+            }
+            return null;
+        });
+    }
+
+    private String getBlobKey(Long requestId, BlobType type) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "requestId", requestId)
+                .addValue( "blobType", type.name());
+        List<String> blobKeys = ocrServiceJdbcTemplate.query(GET_BLOB_KEY, parameters, new SingleColumnRowMapper<>(String.class));
+        return blobKeys.isEmpty() ? null : blobKeys.get(0);
+    }
+
+    File getBlobFile(String blobKey) {
+        return new File(new File(new File(root, blobKey.substring(0, 2)), blobKey.substring(2, 4)), blobKey);
+    }
+
+    private Object getLock(String blobKey) {
+        return locks[(blobKey.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+}
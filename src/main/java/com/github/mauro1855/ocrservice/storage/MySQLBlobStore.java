@@ -0,0 +1,100 @@
+package com.github.mauro1855.ocrservice.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Types;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.support.SqlLobValue;
+
+/**
+ * Stores the files of the requests as blobs of the ocr_request_payloads
+ * table, so that status queries on ocr_requests never read them
+ */
+public class MySQLBlobStore implements BlobStore {
+
+    private static final String UPSERT_PAYLOAD = "INSERT INTO ocr_request_payloads (request_id, %1$s) VALUES (:requestId, :content) " +
+            "ON DUPLICATE KEY UPDATE %1$s = VALUES(%1$s)";
+
+    private static final String GET_PAYLOAD = "SELECT %s FROM ocr_request_payloads WHERE request_id = :requestId";
+
+    private static final String DELETE_PAYLOAD = "DELETE FROM ocr_request_payloads WHERE request_id = :requestId";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final NamedParameterJdbcTemplate ocrServiceJdbcTemplate;
+
+    public MySQLBlobStore(NamedParameterJdbcTemplate ocrServiceJdbcTemplate) {
+        this.ocrServiceJdbcTemplate = ocrServiceJdbcTemplate;
+    }
+
+    @Override
+    public void put(Long requestId, BlobType type, InputStream content, long size) {
+        // bound as a stream, which the driver sends in chunks
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "requestId", requestId)
+                .addValue( "content", new SqlLobValue(content, (int) size), Types.BLOB);
+        ocrServiceJdbcTemplate.update(String.format(UPSERT_PAYLOAD, getColumn(type)), parameters);
+    }
+
+    @Override
+    public boolean copyTo(Long requestId, BlobType type, File target) throws IOException {
+        String column = getColumn(type);
+        MapSqlParameterSource parameters = new MapSqlParameterSource().addValue( "requestId", requestId);
+        try {
+            Boolean copied = ocrServiceJdbcTemplate.query(String.format(GET_PAYLOAD, column), parameters, (ResultSetExtractor<Boolean>) resultSet -> {
+                if(!resultSet.next())
+                    return false;
+
+                try(InputStream payloadStream = resultSet.getBinaryStream(column)) {
+                    if(payloadStream == null)
+                        return false;
+                    writeToFile(payloadStream, target);
+                    return true;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            return Boolean.TRUE.equals(copied);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    @Override
+    public void delete(Long requestId) {
+        ocrServiceJdbcTemplate.update(DELETE_PAYLOAD, new MapSqlParameterSource().addValue( "requestId", requestId));
+    }
+
+    /**
+     * Copies a stream to a file through a fixed size buffer
+     *
+     * @param input stream to copy
+     * @param target file to write
+     * @return {void}
+     */
+    public static void writeToFile(InputStream input, File target) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        try(ReadableByteChannel inputChannel = Channels.newChannel(input);
+            FileChannel outputChannel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(inputChannel.read(buffer) != -1) {
+                buffer.flip();
+                while(buffer.hasRemaining())
+                    outputChannel.write(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    private static String getColumn(BlobType type) {
+        return type == BlobType.FILE_TO_OCR ? "file_to_ocr" : "ocred_file";
+    }
+}
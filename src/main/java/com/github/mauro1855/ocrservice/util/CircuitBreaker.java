@@ -0,0 +1,75 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker guarding calls to an unreliable endpoint.
+ * <p>
+ * After a number of consecutive failures the circuit opens and calls
+ * are refused for a while. Then a single trial call is allowed (half
+ * open): it closes the circuit if it succeeds, and opens it again if
+ * it fails.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openDurationMillis;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedMillis;
+
+    public CircuitBreaker(int failureThreshold, long openDurationMillis) {
+        this(failureThreshold, openDurationMillis, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(int failureThreshold, long openDurationMillis, LongSupplier clock) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationMillis = openDurationMillis;
+        this.clock = clock;
+    }
+
+    /**
+     * Checks if a call can be made. When the open duration is over,
+     * the first caller gets the trial call
+     *
+     * @return {boolean} true if the call can be made
+     */
+    public synchronized boolean allowRequest() {
+        if(state == State.CLOSED)
+            return true;
+
+        if(state == State.OPEN && clock.getAsLong() - openedMillis >= openDurationMillis) {
+            state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if(state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedMillis = clock.getAsLong();
+        }
+    }
+
+    /**
+     * @return {long} time (ms) from which the trial call is allowed
+     */
+    public synchronized long getRetryTimeMillis() {
+        return state == State.CLOSED ? clock.getAsLong() : openedMillis + openDurationMillis;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
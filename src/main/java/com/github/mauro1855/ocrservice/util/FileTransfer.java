@@ -0,0 +1,171 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends files as HTTP responses without copying them through the heap.
+ * <p>
+ * When the container supports it (Tomcat NIO connector), the file is
+ * handed over to Tomcat, which sends it with the sendfile system call.
+ * Otherwise the file channel is transferred to the response stream.
+ * Conditional (If-None-Match, If-Range) and single byte range requests
+ * are supported.
+ */
+public final class FileTransfer {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final long[] FULL_FILE = new long[0];
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Sends a file as the response of a GET or HEAD request
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param file to send
+     * @param contentType of the file
+     * @param etag strong entity tag of the file (quoted)
+     * @return {void}
+     */
+    public static void sendFile(HttpServletRequest request, HttpServletResponse response, File file, String contentType,
+                                String etag) throws IOException {
+        sendFile(request, response, file, contentType, etag, true);
+    }
+
+    /**
+     * Sends a file as the response of a GET or HEAD request, and tells whether
+     * the client got the whole file: the response body was written up to the
+     * last byte, from the first one or resuming a download (If-Range). The body
+     * is only known to be written without sendfile, which sends it once the
+     * request is handled
+     *
+     * @param request HTTP request
+     * @param response HTTP response
+     * @param file to send
+     * @param contentType of the file
+     * @param etag strong entity tag of the file (quoted)
+     * @param sendfile true to let Tomcat send the file when it supports it
+     * @return {boolean} true if the body was written and completed the download of the file
+     */
+    public static boolean sendFile(HttpServletRequest request, HttpServletResponse response, File file, String contentType,
+                                   String etag, boolean sendfile) throws IOException {
+        long length = file.length();
+        response.setHeader("ETag", etag);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        if(matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return false;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String ifRange = request.getHeader("If-Range");
+        String range = request.getHeader("Range");
+        if(range != null && (ifRange == null || ifRange.equals(etag))) {
+            long[] bounds = parseRange(range, length);
+            if(bounds == null) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader("Content-Range", "bytes */" + length);
+                return false;
+            }
+            if(bounds != FULL_FILE) {
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        response.setContentType(contentType);
+        response.setHeader("Content-Length", Long.toString(end - start + 1));
+        if("HEAD".equalsIgnoreCase(request.getMethod()) || end < start)
+            return false;
+
+        if(sendfile && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            // Tomcat sends the file once the request is handled
+            request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, end + 1);
+            return false;
+        }
+
+        long position = start;
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel output = Channels.newChannel(response.getOutputStream());
+            while(position <= end) {
+                long transferred = channel.transferTo(position, end + 1 - position, output);
+                if(transferred <= 0)
+                    break; // file was truncated
+                position += transferred;
+            }
+        }
+        // fails if the client went away
+        response.flushBuffer();
+
+        return position == length && (start == 0 || request.getHeader("If-Range") != null);
+    }
+
+    /**
+     * Parses a Range header
+     *
+     * @param range header value
+     * @param length of the file
+     * @return {long[]} first and last byte of the range, FULL_FILE if the header
+     * is ignored (not a single byte range), or null if it can't be satisfied
+     */
+    static long[] parseRange(String range, long length) {
+        if(!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+            return FULL_FILE;
+
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if(dash < 0)
+            return FULL_FILE;
+
+        try {
+            long start;
+            long end;
+            if(dash == 0) {
+                // suffix range: the last n bytes
+                long suffix = Long.parseLong(spec.substring(1));
+                if(suffix <= 0)
+                    return null;
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if(start >= length || end < start)
+                return null;
+            return new long[] {start, end};
+        } catch (NumberFormatException ex) {
+            return FULL_FILE;
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if(ifNoneMatch == null)
+            return false;
+        for(String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if(tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag))
+                return true;
+        }
+        return false;
+    }
+}
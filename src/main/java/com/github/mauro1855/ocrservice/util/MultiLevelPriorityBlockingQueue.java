@@ -0,0 +1,706 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Blocking queue of tasks with one level per priority (priorities are
+ * TINYINT, -128 to 127). The non-empty levels are tracked in a bitmap,
+ * so the highest one is found without scanning. Within a level, the
+ * shortest job goes first (smallest size, see {@link PriorityRunnable#getSize()}),
+ * then the oldest one: offer and poll are O(log n) in the size of the level.
+ * <p>
+ * Optionally, tasks are aged: a task that waited for the aging interval
+ * in its level is promoted to the level above, so that a continuous
+ * flow of high priority tasks (or of shorter jobs) can't starve the
+ * other ones forever. A task is promoted a limited number of levels
+ * above its own priority ({@link #setMaxAgingLevels(int)}), so that
+ * old tasks don't overtake the ones of a much higher priority.
+ * <p>
+ * Optionally, tasks are split in size lanes, each with threads of the
+ * pool reserved for it: a task is only handed to a worker if the threads
+ * reserved for the other lanes stay available, so that big jobs can't
+ * hold all the threads while small ones wait. The executor must report
+ * the end of the tasks ({@link #taskFinished(Runnable)}). The highest
+ * priority wins across lanes, then the shortest job.
+ * <p>
+ * Optionally, tasks are also split in priority bands ({@link #setPriorityBands(int[], int[], int[])}),
+ * each with a minimum of threads reserved for it and a maximum it may use.
+ * The threads reserved for a band that it does not use are lent to the bands
+ * of higher priority, never to the lower ones: urgent tasks always find a free
+ * thread, even when long low priority tasks arrived first. A band that lent its
+ * threads gets the next free one while it has waiting tasks. A thread may count
+ * both for a lane and for a band.
+ * <p>
+ * Cancelled tasks are removed lazily: they are dropped when they reach
+ * the head of their level, so cancelling a task is O(1). Until then
+ * they are still counted in the size of the queue.
+ */
+public class MultiLevelPriorityBlockingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final int MIN_PRIORITY = Byte.MIN_VALUE;
+    private static final int LEVELS = 256;
+
+    // shortest job first, then first in first out
+    private static final Comparator<Node> SHORTEST_FIRST = Comparator.comparingLong((Node node) -> node.size)
+            .thenComparingLong(node -> node.sequence);
+
+    private final Lane[] lanes;
+    private Band[] bands = {new Band(MIN_PRIORITY, 0, 0)};
+    private Partition[] partitions;
+    private final int threads;
+    private final int levelInitialSize;
+    private final long agingIntervalMillis;
+    private int maxAgingLevels = LEVELS;
+    private final LongSupplier clock;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // tasks handed to a worker and not finished yet, with their lane and band
+    private final Map<Runnable, Partition> runningTasks = new IdentityHashMap<>();
+
+    private int count = 0;
+    private long sequence = 0;
+    private long nextAgingMillis;
+
+    public MultiLevelPriorityBlockingQueue(int levelInitialSize, long agingIntervalMillis) {
+        this(levelInitialSize, agingIntervalMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * @param levelInitialSize initial size of each priority level
+     * @param agingIntervalMillis time after which a waiting task is promoted one priority level (0 to disable)
+     * @param laneSizeLimits sizes from which a task goes to the next lane, in increasing order (one lane if empty)
+     * @param laneReservedThreads threads reserved for each lane (one more value than the size limits)
+     * @param threads number of threads of the pool
+     */
+    public MultiLevelPriorityBlockingQueue(int levelInitialSize, long agingIntervalMillis, long[] laneSizeLimits,
+                                           int[] laneReservedThreads, int threads) {
+        this(levelInitialSize, agingIntervalMillis, laneSizeLimits, laneReservedThreads, threads, System::currentTimeMillis);
+    }
+
+    MultiLevelPriorityBlockingQueue(int levelInitialSize, long agingIntervalMillis, LongSupplier clock) {
+        this(levelInitialSize, agingIntervalMillis, new long[0], new int[] {0}, Integer.MAX_VALUE, clock);
+    }
+
+    MultiLevelPriorityBlockingQueue(int levelInitialSize, long agingIntervalMillis, long[] laneSizeLimits,
+                                    int[] laneReservedThreads, int threads, LongSupplier clock) {
+        if(laneReservedThreads.length != laneSizeLimits.length + 1)
+            throw new IllegalArgumentException("Expected " + (laneSizeLimits.length + 1) + " lane reservations, got "
+                    + laneReservedThreads.length);
+
+        int reservedThreads = 0;
+        this.lanes = new Lane[laneReservedThreads.length];
+        for(int lane = 0; lane < lanes.length; lane++) {
+            long sizeLimit = lane < laneSizeLimits.length ? laneSizeLimits[lane] : Long.MAX_VALUE;
+            if(lane > 0 && sizeLimit <= lanes[lane - 1].sizeLimit)
+                throw new IllegalArgumentException("Lane size limits must be increasing");
+            if(laneReservedThreads[lane] < 0)
+                throw new IllegalArgumentException("Lane reservations can't be negative");
+            lanes[lane] = new Lane(sizeLimit, laneReservedThreads[lane]);
+            reservedThreads += laneReservedThreads[lane];
+        }
+        for(Lane lane : lanes) {
+            // the threads reserved for the other lanes must leave at least one for the lane
+            if(reservedThreads - lane.reservedThreads >= threads || reservedThreads > threads)
+                throw new IllegalArgumentException(reservedThreads + " threads reserved for the lanes, the pool has " + threads);
+        }
+
+        this.threads = threads;
+        this.levelInitialSize = levelInitialSize;
+        this.agingIntervalMillis = agingIntervalMillis;
+        this.clock = clock;
+        this.nextAgingMillis = clock.getAsLong() + agingIntervalMillis;
+        this.partitions = partition();
+    }
+
+    /**
+     * Splits the tasks in priority bands, each with threads reserved for it.
+     * Must be called before the first task is queued
+     *
+     * @param priorityLimits priorities from which a task goes to the next band, in increasing order (one band if empty)
+     * @param minThreads threads reserved for each band, lent to the bands of higher priority while unused (one more value than the limits)
+     * @param maxThreads maximum threads used by each band, 0 for no maximum (one more value than the limits)
+     * @return {void}
+     */
+    public void setPriorityBands(int[] priorityLimits, int[] minThreads, int[] maxThreads) {
+        if(minThreads.length != priorityLimits.length + 1 || maxThreads.length != priorityLimits.length + 1)
+            throw new IllegalArgumentException("Expected " + (priorityLimits.length + 1) + " band reservations and maximums, got "
+                    + minThreads.length + " and " + maxThreads.length);
+
+        Band[] newBands = new Band[minThreads.length];
+        for(int band = 0; band < newBands.length; band++) {
+            int minPriority = band == 0 ? MIN_PRIORITY : priorityLimits[band - 1];
+            if(band > 0 && minPriority <= newBands[band - 1].minPriority)
+                throw new IllegalArgumentException("Band priority limits must be increasing");
+            if(minThreads[band] < 0 || maxThreads[band] < 0 || maxThreads[band] > 0 && maxThreads[band] < minThreads[band])
+                throw new IllegalArgumentException("Invalid threads for band " + band + ": minimum " + minThreads[band]
+                        + ", maximum " + maxThreads[band]);
+            newBands[band] = new Band(minPriority, minThreads[band], maxThreads[band]);
+        }
+
+        // the threads reserved for the bands above a band must leave at least one for it
+        int reservedAbove = 0;
+        for(int band = newBands.length - 1; band >= 0; band--) {
+            if(reservedAbove >= threads)
+                throw new IllegalArgumentException(reservedAbove + " threads reserved above band " + band + ", the pool has " + threads);
+            reservedAbove += newBands[band].minThreads;
+        }
+        if(reservedAbove > threads)
+            throw new IllegalArgumentException(reservedAbove + " threads reserved for the bands, the pool has " + threads);
+
+        lock.lock();
+        try {
+            if(count > 0 || !runningTasks.isEmpty())
+                throw new IllegalStateException("Priority bands must be set before the first task");
+            this.bands = newBands;
+            this.partitions = partition();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Limits how far a task is promoted by aging: a task never goes
+     * more than maxAgingLevels levels above its own priority (there
+     * is no limit by default). Applies to the tasks queued afterwards
+     *
+     * @param maxAgingLevels maximum number of levels a task is promoted
+     * @return {void}
+     */
+    public void setMaxAgingLevels(int maxAgingLevels) {
+        if(maxAgingLevels < 0)
+            throw new IllegalArgumentException("The maximum aging levels can't be negative");
+
+        lock.lock();
+        try {
+            this.maxAgingLevels = maxAgingLevels;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // one partition per lane and band
+    private Partition[] partition() {
+        Partition[] newPartitions = new Partition[lanes.length * bands.length];
+        for(int lane = 0; lane < lanes.length; lane++) {
+            for(int band = 0; band < bands.length; band++)
+                newPartitions[lane * bands.length + band] = new Partition(lanes[lane], bands[band]);
+        }
+        return newPartitions;
+    }
+
+    /**
+     * Gets the priority of a task of the queue
+     *
+     * @param task
+     * @return {int} priority of the task, 0 if it has none
+     */
+    public static int getPriority(Runnable task) {
+        if(task instanceof PriorityFuture)
+            return ((PriorityFuture<?>) task).getPriority();
+        if(task instanceof PriorityRunnable)
+            return ((PriorityRunnable) task).getPriority();
+        return 0;
+    }
+
+    /**
+     * Gets the size of a task of the queue
+     *
+     * @param task
+     * @return {long} size of the task, 0 if it has none
+     */
+    public static long getSize(Runnable task) {
+        if(task instanceof PriorityFuture)
+            return ((PriorityFuture<?>) task).getSize();
+        if(task instanceof PriorityRunnable)
+            return ((PriorityRunnable) task).getSize();
+        return 0L;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if(task == null)
+            throw new NullPointerException();
+
+        int priority = getPriority(task);
+        int level = Math.max(0, Math.min(LEVELS - 1, priority - MIN_PRIORITY));
+        long size = getSize(task);
+        lock.lock();
+        try {
+            Node node = new Node(task, size, sequence++, clock.getAsLong(), Math.min(LEVELS - 1, level + maxAgingLevels));
+            partitionOf(size, priority).add(node, level);
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Runnable task;
+            while((task = dequeue(true)) == null)
+                notEmpty.await();
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Runnable task;
+            while((task = dequeue(true)) == null) {
+                if(nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the end of a task taken from the queue, which frees
+     * a thread for its lane and band. Called by the executor after each task
+     *
+     * @param task that finished
+     * @return {void}
+     */
+    public void taskFinished(Runnable task) {
+        if(!hasReservations())
+            return;
+
+        lock.lock();
+        try {
+            Partition partition = runningTasks.remove(task);
+            if(partition != null) {
+                partition.lane.running--;
+                partition.band.running--;
+                // a task of a lane or band that was full may start now
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Partition partition = nextPartition(false);
+            return partition == null ? null : partition.first().task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks if the queue is empty, dropping the cancelled tasks at its head: the
+     * executor checks the queue is empty to stop its threads when it shuts down
+     */
+    @Override
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            Partition partition;
+            while((partition = nextPartition(false)) != null) {
+                Node node = partition.first();
+                if(!isCancelled(node.task))
+                    return false;
+                partition.remove(node);
+                count--;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object task) {
+        lock.lock();
+        try {
+            for(Partition partition : partitions) {
+                for(int level = 0; level < LEVELS; level++) {
+                    if(partition.levels[level] == null)
+                        continue;
+                    for(Node node : partition.levels[level].bySize) {
+                        if(node.task.equals(task)) {
+                            partition.remove(node);
+                            count--;
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+        if(collection == this)
+            throw new IllegalArgumentException();
+
+        lock.lock();
+        try {
+            // the tasks are not run, the reservations of the lanes and bands don't apply
+            int drained = 0;
+            Runnable task;
+            while(drained < maxElements && (task = dequeue(false)) != null) {
+                collection.add(task);
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterator over a snapshot of the queue, lane by lane and band by band, from the highest to the lowest level
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot = new ArrayList<>();
+        lock.lock();
+        try {
+            for(Partition partition : partitions) {
+                for(int level = LEVELS - 1; level >= 0; level--) {
+                    if(partition.levels[level] != null) {
+                        for(Node node : partition.levels[level].bySize)
+                            snapshot.add(node.task);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Iterator<Runnable> snapshotIterator = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return snapshotIterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                last = snapshotIterator.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if(last == null)
+                    throw new IllegalStateException();
+                MultiLevelPriorityBlockingQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    // cancelled tasks are dropped on the way. Returns null if the queue is empty, or if the
+    // tasks of the queue can't start (lanes or bands without free thread). Must be called holding the lock
+    private Runnable dequeue(boolean toRun) {
+        while(count > 0) {
+            age();
+            Partition partition = nextPartition(toRun);
+            if(partition == null)
+                return null;
+
+            Node node = partition.first();
+            partition.remove(node);
+            count--;
+            if(isCancelled(node.task))
+                continue;
+
+            if(toRun && hasReservations()) {
+                partition.lane.running++;
+                partition.band.running++;
+                runningTasks.put(node.task, partition);
+            }
+            return node.task;
+        }
+        return null;
+    }
+
+    // partition of the next task: a band below its reserved threads (that lent them), then the highest
+    // level, then the shortest job. Must be called holding the lock
+    private Partition nextPartition(boolean toRun) {
+        Partition next = null;
+        int nextLevel = -1;
+        boolean nextOwed = false;
+        for(Partition partition : partitions) {
+            int level = partition.highestNonEmptyLevel();
+            boolean owed = toRun && partition.band.running < partition.band.minThreads;
+            if(level < 0 || nextOwed && !owed || toRun && !(canStart(partition.lane) && canStart(partition.band)))
+                continue;
+            if(owed && !nextOwed || level > nextLevel
+                    || level == nextLevel && SHORTEST_FIRST.compare(partition.first(), next.first()) < 0) {
+                next = partition;
+                nextLevel = level;
+                nextOwed = owed;
+            }
+        }
+        return next;
+    }
+
+    private boolean hasReservations() {
+        return lanes.length > 1 || bands.length > 1;
+    }
+
+    // a task of the lane can start if the threads reserved for the other lanes (and not used by them) remain free
+    private boolean canStart(Lane lane) {
+        if(lanes.length == 1)
+            return true;
+
+        int busyThreads = lane.running + 1;
+        for(Lane other : lanes) {
+            if(other != lane)
+                busyThreads += Math.max(other.running, other.reservedThreads);
+        }
+        return busyThreads <= threads;
+    }
+
+    // a task of the band can start if the band is below its maximum, and if the threads
+    // reserved for the bands of higher priority (and not used by them) remain free
+    private boolean canStart(Band band) {
+        if(bands.length == 1)
+            return true;
+        if(band.maxThreads > 0 && band.running >= band.maxThreads)
+            return false;
+
+        int busyThreads = runningTasks.size() + 1;
+        for(Band other : bands) {
+            if(other.minPriority > band.minPriority)
+                busyThreads += Math.max(0, other.minThreads - other.running);
+        }
+        return busyThreads <= threads;
+    }
+
+    private Partition partitionOf(long size, int priority) {
+        int lane = lanes.length - 1;
+        while(lane > 0 && size < lanes[lane - 1].sizeLimit)
+            lane--;
+        int band = bands.length - 1;
+        while(band > 0 && priority < bands[band].minPriority)
+            band--;
+        return partitions[lane * bands.length + band];
+    }
+
+    private static boolean isCancelled(Runnable task) {
+        return task instanceof Future && ((Future<?>) task).isCancelled();
+    }
+
+    // promotes the tasks that waited for the aging interval in their level;
+    // the tasks of a level that can still be promoted are also kept by age, so
+    // only their heads need to be checked. Must be called holding the lock
+    private void age() {
+        if(agingIntervalMillis <= 0)
+            return;
+
+        long now = clock.getAsLong();
+        if(now < nextAgingMillis)
+            return;
+
+        for(Partition partition : partitions) {
+            // from the top, so that a task is promoted only once per pass
+            for(int level = LEVELS - 2; level >= 0; level--) {
+                Level queue = partition.levels[level];
+                if(queue == null)
+                    continue;
+
+                Node node;
+                while((node = queue.oldest()) != null && now - node.enteredLevelMillis >= agingIntervalMillis) {
+                    partition.remove(node);
+                    node.enteredLevelMillis = now;
+                    partition.add(node, level + 1);
+                }
+            }
+        }
+        nextAgingMillis = now + Math.max(1L, agingIntervalMillis / 2);
+    }
+
+    // A size lane: the threads reserved for it, and the threads running its tasks
+    private static class Lane {
+        private final long sizeLimit;
+        private final int reservedThreads;
+        private int running = 0;
+
+        private Lane(long sizeLimit, int reservedThreads) {
+            this.sizeLimit = sizeLimit;
+            this.reservedThreads = reservedThreads;
+        }
+    }
+
+    // A priority band: the threads reserved for it, the threads it may use, and the threads running its tasks
+    private static class Band {
+        private final int minPriority;
+        private final int minThreads;
+        private final int maxThreads;
+        private int running = 0;
+
+        private Band(int minPriority, int minThreads, int maxThreads) {
+            this.minPriority = minPriority;
+            this.minThreads = minThreads;
+            this.maxThreads = maxThreads;
+        }
+    }
+
+    // The tasks of a lane and band, by priority level
+    private class Partition {
+        private final Lane lane;
+        private final Band band;
+        private final Level[] levels = new Level[LEVELS];
+        private final long[] nonEmptyLevels = new long[LEVELS / 64];
+
+        private Partition(Lane lane, Band band) {
+            this.lane = lane;
+            this.band = band;
+        }
+
+        private void add(Node node, int level) {
+            if(levels[level] == null)
+                // the tasks of the top level are never aged
+                levels[level] = new Level(agingIntervalMillis > 0 && level < LEVELS - 1 ? new ArrayDeque<>(levelInitialSize) : null);
+            node.level = level;
+            levels[level].bySize.add(node);
+            if(levels[level].byAge != null && level < node.maxLevel)
+                levels[level].byAge.addLast(node);
+            nonEmptyLevels[level >> 6] |= 1L << (level & 63);
+        }
+
+        private void remove(Node node) {
+            Level queue = levels[node.level];
+            queue.bySize.remove(node);
+            if(queue.bySize.isEmpty()) {
+                nonEmptyLevels[node.level >> 6] &= ~(1L << (node.level & 63));
+                if(queue.byAge != null)
+                    queue.byAge.clear();
+            }
+            node.level = -1;
+        }
+
+        // next task of the partition, which must not be empty
+        private Node first() {
+            return levels[highestNonEmptyLevel()].bySize.first();
+        }
+
+        private int highestNonEmptyLevel() {
+            for(int word = nonEmptyLevels.length - 1; word >= 0; word--) {
+                if(nonEmptyLevels[word] != 0)
+                    return (word << 6) + 63 - Long.numberOfLeadingZeros(nonEmptyLevels[word]);
+            }
+            return -1;
+        }
+    }
+
+    // The tasks of a priority level of a partition, by size, and by age when they are aged
+    private static class Level {
+        private final TreeSet<Node> bySize = new TreeSet<>(SHORTEST_FIRST);
+        private final ArrayDeque<Node> byAge;
+
+        private Level(ArrayDeque<Node> byAge) {
+            this.byAge = byAge;
+        }
+
+        // oldest task of the level; the tasks that left the level are forgotten on the way
+        private Node oldest() {
+            if(byAge == null || bySize.isEmpty())
+                return null;
+
+            Node node;
+            while((node = byAge.peekFirst()) != null && !bySize.contains(node))
+                byAge.pollFirst();
+            return node;
+        }
+    }
+
+    // A task in the queue, with the time it entered its current level and the highest level aging promotes it to
+    private static class Node {
+        private final Runnable task;
+        private final long size;
+        private final long sequence;
+        private final int maxLevel;
+        private long enteredLevelMillis;
+        private int level = -1;
+
+        private Node(Runnable task, long size, long sequence, long enteredLevelMillis, int maxLevel) {
+            this.task = task;
+            this.size = size;
+            this.sequence = sequence;
+            this.enteredLevelMillis = enteredLevelMillis;
+            this.maxLevel = maxLevel;
+        }
+    }
+}
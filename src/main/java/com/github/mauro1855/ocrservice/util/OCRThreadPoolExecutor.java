@@ -1,25 +1,262 @@
 package com.github.mauro1855.ocrservice.util;
 
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Created by smasue on 12/20/16.
  */
 public class OCRThreadPoolExecutor extends ThreadPoolExecutor
 {
+  private static Logger logger = LoggerFactory.getLogger(OCRThreadPoolExecutor.class);
+
+  // tasks waiting in the queue, by request id
+  private final ConcurrentMap<Long, PriorityFuture<?>> queuedTasks = new ConcurrentHashMap<>();
+
+  // tasks run by the threads of the pool, by thread
+  private final ConcurrentMap<Thread, PriorityFuture<?>> runningTasks = new ConcurrentHashMap<>();
+
+  private final MultiLevelPriorityBlockingQueue queue;
+
+  // preemption (disabled without registry): priority from which a task suspends the tool of a lower priority one
+  private ProcessRegistry processRegistry;
+  private int preemptionPriority;
+  private ExecutorService preemptionExecutor;
+
   public OCRThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, int queueInitialSize)
   {
-    super(corePoolSize, maximumPoolSize, keepAliveTime, unit, new PriorityBlockingQueue<>(queueInitialSize, PriorityFuture.comparator));
+    this(corePoolSize, maximumPoolSize, keepAliveTime, unit, queueInitialSize, 0L);
+  }
+
+  /**
+   * @param queueInitialSize initial size of each priority level of the queue
+   * @param agingIntervalMillis time after which a waiting task is promoted one priority level (0 to disable)
+   */
+  public OCRThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, int queueInitialSize,
+                               long agingIntervalMillis)
+  {
+    this(corePoolSize, maximumPoolSize, keepAliveTime, unit, queueInitialSize, agingIntervalMillis, new long[0], new int[] {0});
+  }
+
+  /**
+   * Thread pool whose tasks are split in size lanes, each with threads reserved
+   * for it (see {@link MultiLevelPriorityBlockingQueue}), so that big files can't
+   * hold all the threads while small ones wait. The threads are started right away,
+   * so that every task goes through the queue and its reservations
+   *
+   * @param queueInitialSize initial size of each priority level of the queue
+   * @param agingIntervalMillis time after which a waiting task is promoted one priority level (0 to disable)
+   * @param laneSizeLimits sizes (bytes) from which a task goes to the next lane, in increasing order (one lane if empty)
+   * @param laneReservedThreads threads reserved for each lane (one more value than the size limits)
+   */
+  public OCRThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit, int queueInitialSize,
+                               long agingIntervalMillis, long[] laneSizeLimits, int[] laneReservedThreads)
+  {
+    this(corePoolSize, maximumPoolSize, keepAliveTime, unit, new MultiLevelPriorityBlockingQueue(queueInitialSize, agingIntervalMillis,
+      laneSizeLimits, laneReservedThreads, maximumPoolSize));
+    if(laneSizeLimits.length > 0)
+      prestartAllCoreThreads();
+  }
+
+  private OCRThreadPoolExecutor(int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                                MultiLevelPriorityBlockingQueue queue)
+  {
+    super(corePoolSize, maximumPoolSize, keepAliveTime, unit, queue);
+    this.queue = queue;
+  }
+
+  /**
+   * Splits the tasks in priority bands, each with threads reserved for it (see
+   * {@link MultiLevelPriorityBlockingQueue}), so that urgent tasks don't wait for
+   * long low priority ones to finish. The threads are started right away, so that
+   * every task goes through the queue and its reservations.
+   * Must be called before the first task is submitted
+   *
+   * @param priorityLimits priorities from which a task goes to the next band, in increasing order (one band if empty)
+   * @param minThreads threads reserved for each band, lent to the bands of higher priority while unused (one more value than the limits)
+   * @param maxThreads maximum threads used by each band, 0 for no maximum (one more value than the limits)
+   * @return {void}
+   */
+  public void setPriorityBands(int[] priorityLimits, int[] minThreads, int[] maxThreads)
+  {
+    queue.setPriorityBands(priorityLimits, minThreads, maxThreads);
+    if(priorityLimits.length > 0)
+      prestartAllCoreThreads();
+  }
+
+  /**
+   * Limits how far a waiting task is promoted by aging (see
+   * {@link MultiLevelPriorityBlockingQueue#setMaxAgingLevels(int)})
+   *
+   * @param maxAgingLevels maximum number of levels a task is promoted above its priority
+   * @return {void}
+   */
+  public void setMaxAgingLevels(int maxAgingLevels)
+  {
+    queue.setMaxAgingLevels(maxAgingLevels);
+  }
+
+  /**
+   * Lets urgent tasks preempt the running ones: when an urgent task must wait
+   * because all the threads are busy, the external tool of the lowest priority
+   * running task is suspended (SIGSTOP on its process group, see {@link ProcessGroup}),
+   * the urgent task runs right away on a thread of its own, then the suspended
+   * tool is resumed (SIGCONT). The urgent task only runs if a tool was suspended,
+   * so the number of tools running stays the number of threads: each tool is
+   * suspended for one urgent task at most, and there are at most as many
+   * preemption threads as threads in the pool
+   *
+   * @param preemptionPriority priority from which a task preempts the tasks of lower priority
+   * @param processRegistry process groups of the tools run by the threads
+   * @return {void}
+   */
+  public void setPreemption(int preemptionPriority, ProcessRegistry processRegistry)
+  {
+    this.preemptionPriority = preemptionPriority;
+    this.preemptionExecutor = new ThreadPoolExecutor(0, getMaximumPoolSize(), 60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+      runnable -> {
+        Thread thread = new Thread(runnable, "ocr-preemption");
+        thread.setDaemon(true);
+        return thread;
+      });
+    this.processRegistry = processRegistry;
+  }
+
+  @Override
+  public void execute(Runnable command)
+  {
+    super.execute(command);
+    if(processRegistry != null && command instanceof PriorityFuture)
+      preemptFor((PriorityFuture<?>) command);
+  }
+
+  // runs an urgent task that waits for a thread on the processor of the tool
+  // of the lowest priority running task, suspended meanwhile
+  private synchronized void preemptFor(PriorityFuture<?> task)
+  {
+    if(task.getPriority() < preemptionPriority || getActiveCount() < getMaximumPoolSize() || isShutdown())
+      return;
+
+    ProcessGroup suspended = null;
+    PriorityFuture<?> preempted = null;
+    for(Map.Entry<Thread, PriorityFuture<?>> running : runningTasks.entrySet())
+    {
+      ProcessGroup processGroup = processRegistry.get(running.getKey());
+      int priority = running.getValue().getPriority();
+      if(processGroup != null && !processGroup.isSuspended() && priority < task.getPriority()
+        && (preempted == null || priority < preempted.getPriority()))
+      {
+        suspended = processGroup;
+        preempted = running.getValue();
+      }
+    }
+
+    // the task may have been taken by a thread meanwhile
+    if(suspended == null || !queue.remove(task))
+      return;
+    if(!suspended.suspend())
+    {
+      queue.offer(task);
+      return;
+    }
+
+    ProcessGroup toResume = suspended;
+    try
+    {
+      preemptionExecutor.execute(() -> {
+        try
+        {
+          task.run();
+        }
+        finally
+        {
+          toResume.resume();
+        }
+      });
+    }
+    catch(RejectedExecutionException ex)
+    {
+      // no preemption thread left (or shutting down): the task waits for a thread of the pool
+      suspended.resume();
+      queue.offer(task);
+      return;
+    }
+
+    logger.info("Suspended the tool of request {} (priority {}) to run request {} (priority {})", preempted.getRequestId(),
+      preempted.getPriority(), task.getRequestId(), task.getPriority());
+    if(task.getRequestId() != null)
+      queuedTasks.remove(task.getRequestId(), task);
+  }
+
+  @Override
+  public void shutdown()
+  {
+    super.shutdown();
+    if(preemptionExecutor != null)
+      preemptionExecutor.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow()
+  {
+    if(preemptionExecutor != null)
+      preemptionExecutor.shutdownNow();
+    return super.shutdownNow();
   }
 
   @Override
   protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value)
   {
     RunnableFuture<T> newTaskFor = super.newTaskFor(runnable, value);
-    return new PriorityFuture<>(newTaskFor, ((PriorityRunnable) runnable).getPriority(), ((PriorityRunnable) runnable).getDate());
+    PriorityRunnable priorityRunnable = (PriorityRunnable) runnable;
+    PriorityFuture<T> future = new PriorityFuture<>(newTaskFor, priorityRunnable.getPriority(), priorityRunnable.getDate(),
+      priorityRunnable.getRequestId(), priorityRunnable.getSize());
+
+    if(future.getRequestId() != null)
+      queuedTasks.put(future.getRequestId(), future);
+    return future;
   }
-  
+
+  @Override
+  protected void beforeExecute(Thread thread, Runnable runnable)
+  {
+    if(runnable instanceof PriorityFuture && ((PriorityFuture<?>) runnable).getRequestId() != null)
+      queuedTasks.remove(((PriorityFuture<?>) runnable).getRequestId(), runnable);
+    if(runnable instanceof PriorityFuture)
+      runningTasks.put(thread, (PriorityFuture<?>) runnable);
+    super.beforeExecute(thread, runnable);
+  }
+
+  @Override
+  protected void afterExecute(Runnable runnable, Throwable throwable)
+  {
+    super.afterExecute(runnable, throwable);
+    runningTasks.remove(Thread.currentThread());
+    queue.taskFinished(runnable);
+  }
+
+  /**
+   * Cancels the task of a request that is still waiting in the queue.
+   * The task is only marked as cancelled, the queue drops it when it
+   * reaches its head, so this is O(1) whatever the size of the queue
+   *
+   * @param requestId of the request
+   * @return {boolean} false if the request is not waiting in the queue
+   */
+  public boolean cancel(Long requestId)
+  {
+    PriorityFuture<?> future = queuedTasks.remove(requestId);
+    return future != null && future.cancel(false);
+  }
+
 }
@@ -15,11 +15,23 @@ public class PriorityFuture<T> implements RunnableFuture<T> {
   private RunnableFuture<T> src;
   private int priority;
   private Date date;
+  private Long requestId;
+  private long size;
 
   public PriorityFuture(RunnableFuture<T> other, int priority, Date date) {
+    this(other, priority, date, null);
+  }
+
+  public PriorityFuture(RunnableFuture<T> other, int priority, Date date, Long requestId) {
+    this(other, priority, date, requestId, 0L);
+  }
+
+  public PriorityFuture(RunnableFuture<T> other, int priority, Date date, Long requestId, long size) {
     this.src = other;
     this.priority = priority;
     this.date = date;
+    this.requestId = requestId;
+    this.size = size;
   }
 
   public int getPriority() {
@@ -30,12 +42,20 @@ public class PriorityFuture<T> implements RunnableFuture<T> {
     return date;
   }
 
+  public Long getRequestId() {
+    return requestId;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
   public boolean cancel(boolean mayInterruptIfRunning) {
     return src.cancel(mayInterruptIfRunning);
   }
 
   public boolean isCancelled() {
-    return src.isCancelled();
+    return src != null && src.isCancelled();
   }
 
   public boolean isDone() {
@@ -54,7 +74,7 @@ public class PriorityFuture<T> implements RunnableFuture<T> {
     src.run();
   }
 
-  // Comparator of priorities and start dates of Runnable tasks
+  // Comparator of priorities, sizes (shortest first) and start dates of Runnable tasks
   public static Comparator<Runnable> comparator = (o1, o2) -> {
     if (o1 == null && o2 == null)
       return 0;
@@ -66,10 +86,15 @@ public class PriorityFuture<T> implements RunnableFuture<T> {
       int p1 = ((PriorityFuture<?>) o1).getPriority();
       int p2 = ((PriorityFuture<?>) o2).getPriority();
 
+      long s1 = ((PriorityFuture<?>) o1).getSize();
+      long s2 = ((PriorityFuture<?>) o2).getSize();
+
       if(p1 != p2){
         return p1 < p2 ? 1 : -1;
+      }else if(s1 != s2){
+        return s1 < s2 ? -1 : 1;
       }else{
-        return ((PriorityFuture<?>) o1).getDate().after(((PriorityFuture<?>) o2).getDate()) ? 1 : -1;
+        return Long.compare(((PriorityFuture<?>) o1).getDate().getTime(), ((PriorityFuture<?>) o2).getDate().getTime());
       }
     }
   };
@@ -10,4 +10,25 @@ public interface PriorityRunnable extends Runnable {
   int getPriority();
   Date getDate();
 
+  /**
+   * Gets the request processed by the task, so that the
+   * task can be cancelled while it is waiting in the queue
+   *
+   * @return {Long} id of the request, null if the task can't be cancelled
+   */
+  default Long getRequestId() {
+    return null;
+  }
+
+  /**
+   * Gets the size of the job (bytes of the file to OCR), which chooses
+   * its size lane in the queue, and its order among the tasks of the same
+   * priority (shortest first)
+   *
+   * @return {long} size of the job, 0 if unknown
+   */
+  default long getSize() {
+    return 0L;
+  }
+
 }
@@ -0,0 +1,349 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * External process started in its own process group (with setsid), so
+ * that the tools it starts in turn (ghostscript, tesseract...) are killed
+ * with it instead of being left running.
+ * <p>
+ * The group of a process can be written to a pid file while it runs:
+ * the groups left by a run of the service that crashed are found through
+ * these files and killed at the next startup ({@link #reapOrphans(File)}).
+ * A group can also be suspended (SIGSTOP) and resumed (SIGCONT), the time
+ * it spent suspended is kept so that it doesn't count toward its time-out.
+ * Process groups need setsid and kill (Linux and most Unix systems),
+ * elsewhere only the process itself is killed.
+ */
+public class ProcessGroup {
+
+    private static Logger logger = LoggerFactory.getLogger(ProcessGroup.class);
+
+    public static final String PID_FILE_EXTENSION = ".pid";
+
+    // time given to the processes of a group to exit after SIGTERM, before SIGKILL
+    private static final long KILL_GRACE_MILLIS = 5000L;
+
+    private static final String SETSID = findSetsid();
+    private static final String OWNER_PID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
+    private final Process process;
+    private final Long groupId;
+    private final File pidFile;
+
+    // time the group was suspended at (0 while it runs), total time it was suspended, last time it was resumed
+    private long suspendedAtMillis = 0L;
+    private long suspendedMillis = 0L;
+    private long resumedAtMillis = 0L;
+    // once destroyed or finished, the group id may be reused by other processes
+    private boolean closed = false;
+
+    private ProcessGroup(Process process, Long groupId, File pidFile) {
+        this.process = process;
+        this.groupId = groupId;
+        this.pidFile = pidFile;
+    }
+
+    /**
+     * Starts a command, in a new process group if asked and supported
+     *
+     * @param runtime used to start the command
+     * @param command to execute
+     * @param newGroup true to start the command in its own process group
+     * @param pidFile file where the group is written while it runs (none if null)
+     * @return {ProcessGroup} the started process
+     * @throws IOException if the command could not be started
+     */
+    public static ProcessGroup exec(Runtime runtime, String command, boolean newGroup, File pidFile) throws IOException {
+        if(!newGroup || SETSID == null)
+            return new ProcessGroup(runtime.exec(command), null, null);
+
+        // setsid execs the command, which keeps the pid and leads the new group
+        Process process = runtime.exec(SETSID + " " + command);
+        Long groupId = getPid(process);
+        if(groupId == null)
+            logger.warn("Could not find the pid of {}, the processes it starts won't be killed with it", command);
+        if(groupId == null || pidFile == null)
+            return new ProcessGroup(process, groupId, null);
+
+        try {
+            FileUtils.writeStringToFile(pidFile, groupId + " " + OWNER_PID + "\n" + command, "UTF-8");
+        } catch (IOException ex) {
+            logger.warn("Could not write pid file {}: {}", pidFile, ex.getMessage());
+            return new ProcessGroup(process, groupId, null);
+        }
+        return new ProcessGroup(process, groupId, pidFile);
+    }
+
+    public static boolean isSupported() {
+        return SETSID != null;
+    }
+
+    public Process getProcess() {
+        return process;
+    }
+
+    public Long getGroupId() {
+        return groupId;
+    }
+
+    /**
+     * Kills the process and the processes it started: SIGTERM first,
+     * then SIGKILL for those still running after a grace period
+     * (without process group, only the process itself is killed)
+     *
+     * @return {void}
+     */
+    public void destroy() {
+        boolean interrupted = false;
+        try {
+            if(groupId == null) {
+                process.destroy();
+                if(!process.waitFor(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS))
+                    process.destroyForcibly();
+                return;
+            }
+
+            boolean suspended;
+            synchronized (this) {
+                suspended = suspendedAtMillis > 0;
+            }
+            signal("TERM", "-" + groupId);
+            // a suspended group only handles SIGTERM once it is resumed
+            if(suspended)
+                signal("CONT", "-" + groupId);
+            try {
+                process.waitFor(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+            // the tools started by the process may ignore SIGTERM, or outlive it
+            signal("KILL", "-" + groupId);
+        } catch (InterruptedException ex) {
+            interrupted = true;
+            logger.warn("Impossible to kill process.");
+        } finally {
+            close();
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Suspends the processes of the group (SIGSTOP), to free their processor
+     * for a more urgent job. Only a process in its own group can be suspended
+     *
+     * @return {boolean} true if the group was suspended
+     */
+    public synchronized boolean suspend() {
+        if(groupId == null || closed || suspendedAtMillis > 0 || !process.isAlive())
+            return false;
+
+        try {
+            if(!signal("STOP", "-" + groupId))
+                return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        suspendedAtMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Resumes the processes of a suspended group (SIGCONT). Nothing is sent
+     * once the group was destroyed, its id may belong to another group
+     *
+     * @return {void}
+     */
+    public synchronized void resume() {
+        if(suspendedAtMillis == 0)
+            return;
+
+        try {
+            if(!closed)
+                signal("CONT", "-" + groupId);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        long now = System.currentTimeMillis();
+        suspendedMillis += now - suspendedAtMillis;
+        suspendedAtMillis = 0L;
+        resumedAtMillis = now;
+    }
+
+    public synchronized boolean isSuspended() {
+        return suspendedAtMillis > 0;
+    }
+
+    /**
+     * Gets the time the group spent suspended, including the current suspension
+     *
+     * @return {long} time in milliseconds
+     */
+    public synchronized long getSuspendedMillis() {
+        return suspendedMillis + (suspendedAtMillis > 0 ? System.currentTimeMillis() - suspendedAtMillis : 0L);
+    }
+
+    /**
+     * Gets the last time the group was resumed
+     *
+     * @return {long} time in milliseconds, 0 if it was never suspended
+     */
+    public synchronized long getResumedMillis() {
+        return resumedAtMillis;
+    }
+
+    /**
+     * Forgets a process that finished (removes its pid file)
+     *
+     * @return {void}
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        if(pidFile != null)
+            FileUtils.deleteQuietly(pidFile);
+    }
+
+    /**
+     * Kills the process groups written to the pid files of a folder by
+     * other runs of the service that are not running anymore, and removes
+     * the pid files. Groups of running services are left untouched
+     *
+     * @param dir folder of the pid files
+     * @return {int} number of process groups killed
+     */
+    public static int reapOrphans(File dir) {
+        File[] pidFiles = dir.listFiles((folder, name) -> name.endsWith(PID_FILE_EXTENSION));
+        if(pidFiles == null || SETSID == null)
+            return 0;
+
+        int reaped = 0;
+        for(File pidFile : pidFiles) {
+            try {
+                String[] lines = FileUtils.readFileToString(pidFile, "UTF-8").split("\n", 2);
+                String[] ids = lines[0].trim().split(" ");
+                String groupId = ids[0];
+                String ownerPid = ids.length > 1 ? ids[1] : null;
+
+                // a pid file of a service that is still running
+                if(ownerPid != null && !ownerPid.equals(OWNER_PID) && isAlive(ownerPid))
+                    continue;
+
+                if(isAlive("-" + groupId) && isGroupOf(groupId, lines.length > 1 ? lines[1] : "")) {
+                    logger.warn("Killing process group {} left by a previous run: {}", groupId, lines.length > 1 ? lines[1] : "");
+                    signal("KILL", "-" + groupId);
+                    reaped++;
+                }
+            } catch (IOException | RuntimeException ex) {
+                logger.warn("Could not read pid file {}: {}", pidFile, ex.getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return reaped;
+            }
+            FileUtils.deleteQuietly(pidFile);
+        }
+        return reaped;
+    }
+
+    // Checks the leader of the group still runs the command, in case its pid was reused.
+    // If the leader exited (or /proc is not available), the remaining processes are trusted
+    private static boolean isGroupOf(String groupId, String command) throws IOException {
+        File cmdline = new File("/proc/" + groupId + "/cmdline");
+        if(!cmdline.exists() || command.trim().isEmpty())
+            return true;
+
+        String[] arguments = command.trim().split("\\s+");
+        String leaderCommand = FileUtils.readFileToString(cmdline, "UTF-8").replace('\0', ' ');
+        return leaderCommand.contains(arguments[arguments.length - 1]);
+    }
+
+    /**
+     * Checks whether a process is running (another run of the service,
+     * for instance). Without kill (outside of Unix), a process is never
+     * reported as running
+     *
+     * @param pid of the process
+     * @return {boolean} true if the process is running
+     */
+    public static boolean isRunning(String pid) {
+        try {
+            return isAlive(pid);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    private static boolean isAlive(String target) throws InterruptedException {
+        return signal("0", target);
+    }
+
+    // Sends a signal with kill, to a process or to a group (negative id)
+    private static boolean signal(String signal, String target) throws InterruptedException {
+        try {
+            Process kill = new ProcessBuilder("kill", "-" + signal, "--", target)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.to(new File("/dev/null")))
+                    .start();
+            if(!kill.waitFor(KILL_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+                kill.destroy();
+                return false;
+            }
+            return kill.exitValue() == 0;
+        } catch (IOException ex) {
+            logger.warn("Could not send SIG{} to {}: {}", signal, target, ex.getMessage());
+            return false;
+        }
+    }
+
+    // Pid of a process: Process.pid() from Java 9 (looked up on Process, the implementation
+    // classes are not accessible), the pid field of UNIXProcess in Java 8
+    static Long getPid(Process process) {
+        Method pidMethod;
+        try {
+            pidMethod = Process.class.getMethod("pid");
+        } catch (NoSuchMethodException ex) {
+            pidMethod = null;
+        }
+
+        if(pidMethod != null) {
+            try {
+                return ((Number) pidMethod.invoke(process)).longValue();
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                // not supported by this process
+                return null;
+            }
+        }
+
+        try {
+            Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return ((Number) pid.get(process)).longValue();
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static String findSetsid() {
+        if(!SystemUtils.IS_OS_UNIX)
+            return null;
+
+        for(String path : new String[] {"/usr/bin/setsid", "/bin/setsid", "/usr/local/bin/setsid"}) {
+            if(new File(path).canExecute())
+                return path;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,315 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the output of external processes in a single shared thread, so that
+ * their pipes never fill up (which would block them) without starting two
+ * threads per process. The standard output is discarded (or its lines are
+ * handed to the caller), the last bytes of the standard error are kept to
+ * explain failures.
+ * <p>
+ * The streams of a process cannot be selected in Java, so the pump polls
+ * them: each round reads the bytes available in every stream, and sleeps a
+ * few milliseconds when there was nothing to read. A process is forgotten
+ * once it exited and its streams are drained.
+ * <p>
+ * The pump also tracks the progress of the processes: the last time they
+ * wrote a line matching their progress pattern (a page done, for instance),
+ * or the last time they wrote anything when they have no progress pattern.
+ */
+public class ProcessOutputPump {
+
+    private static Logger logger = LoggerFactory.getLogger(ProcessOutputPump.class);
+
+    private static final ProcessOutputPump SHARED = new ProcessOutputPump(20L);
+
+    private final long pollIntervalMillis;
+    private final List<ProcessOutput> outputs = new CopyOnWriteArrayList<>();
+    private Thread thread;
+
+    public ProcessOutputPump(long pollIntervalMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    public static ProcessOutputPump getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Starts reading the output of a process
+     *
+     * @param process whose output is read
+     * @param errorTailSize number of bytes kept from the end of the standard error
+     * @return {ProcessOutput} output of the process
+     */
+    public ProcessOutput register(Process process, int errorTailSize) {
+        return register(process, errorTailSize, null);
+    }
+
+    /**
+     * Starts reading the output of a process, tracking its progress
+     *
+     * @param process whose output is read
+     * @param errorTailSize number of bytes kept from the end of the standard error
+     * @param progressPattern lines of the output that show progress (any output if null)
+     * @return {ProcessOutput} output of the process
+     */
+    public ProcessOutput register(Process process, int errorTailSize, Pattern progressPattern) {
+        return register(new ProcessOutput(process, errorTailSize, progressPattern, null));
+    }
+
+    /**
+     * Starts reading the output of a process, handing the lines of its standard
+     * output to the caller (in the pump thread), which tracks their progress
+     * ({@link ProcessOutput#lineRead(String)})
+     *
+     * @param process whose output is read
+     * @param errorTailSize number of bytes kept from the end of the standard error
+     * @param progressPattern lines of the output that show progress (any output if null)
+     * @param outputLines receives the lines of the standard output
+     * @return {ProcessOutput} output of the process
+     */
+    public ProcessOutput register(Process process, int errorTailSize, Pattern progressPattern, Consumer<String> outputLines) {
+        return register(new ProcessOutput(process, errorTailSize, progressPattern, outputLines));
+    }
+
+    private ProcessOutput register(ProcessOutput output) {
+        outputs.add(output);
+
+        synchronized (this) {
+            if(thread == null) {
+                thread = new Thread(this::pump, "process-output-pump");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            notifyAll();
+        }
+        return output;
+    }
+
+    int getProcessCount() {
+        return outputs.size();
+    }
+
+    private void pump() {
+        while(true) {
+            boolean read = false;
+            for(ProcessOutput output : outputs) {
+                read |= output.read();
+                if(output.isClosed())
+                    outputs.remove(output);
+            }
+
+            if(!read) {
+                synchronized (this) {
+                    try {
+                        // waits for a new process when there is none
+                        wait(outputs.isEmpty() ? 0L : pollIntervalMillis);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Output of a process read by the pump
+     */
+    public static class ProcessOutput {
+
+        private static final int MAX_LINE_LENGTH = 1024;
+
+        private final Process process;
+        private final InputStream output;
+        private final InputStream error;
+        private final byte[] buffer = new byte[8192];
+        private final Pattern progressPattern;
+        private final Consumer<String> outputLines;
+
+        // line being written to each stream, checked against the progress pattern (or handed to the caller)
+        private final ByteArrayOutputStream outputLine = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream errorLine = new ByteArrayOutputStream();
+        private volatile long lastProgressMillis = System.currentTimeMillis();
+
+        // last bytes of the standard error (ring buffer)
+        private final byte[] errorTail;
+        private int errorTailEnd = 0;
+        private boolean errorTailFull = false;
+        private boolean closed = false;
+
+        private ProcessOutput(Process process, int errorTailSize, Pattern progressPattern, Consumer<String> outputLines) {
+            this.process = process;
+            this.output = process.getInputStream();
+            this.error = process.getErrorStream();
+            this.errorTail = new byte[errorTailSize];
+            this.progressPattern = progressPattern;
+            this.outputLines = outputLines;
+        }
+
+        /**
+         * Gets the last time the process showed progress (registration time if it never did)
+         *
+         * @return {long} time in milliseconds
+         */
+        public long getLastProgressMillis() {
+            return lastProgressMillis;
+        }
+
+        /**
+         * Starts tracking the progress of a new job of the process
+         *
+         * @return {void}
+         */
+        public void resetProgress() {
+            lastProgressMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Records progress made by the process, for output lines handed to the caller
+         *
+         * @param line written by the process
+         * @return {void}
+         */
+        public void lineRead(String line) {
+            if(progressPattern == null || progressPattern.matcher(line).find())
+                lastProgressMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * Gets the end of the standard error of the process, after
+         * reading what the process wrote so far
+         *
+         * @return {String} last bytes of the standard error, trimmed
+         */
+        public synchronized String getErrorTail() {
+            read();
+
+            byte[] tail;
+            if(errorTailFull) {
+                tail = new byte[errorTail.length];
+                System.arraycopy(errorTail, errorTailEnd, tail, 0, errorTail.length - errorTailEnd);
+                System.arraycopy(errorTail, 0, tail, errorTail.length - errorTailEnd, errorTailEnd);
+            } else {
+                tail = new byte[errorTailEnd];
+                System.arraycopy(errorTail, 0, tail, 0, errorTailEnd);
+            }
+            return new String(tail, StandardCharsets.UTF_8).trim();
+        }
+
+        /**
+         * Forgets the standard error written so far, so that the
+         * tail only shows what a new job of the process wrote
+         *
+         * @return {void}
+         */
+        public synchronized void clearErrorTail() {
+            read();
+            errorTailEnd = 0;
+            errorTailFull = false;
+        }
+
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        // Reads the available bytes (without blocking), closes the streams once the process exited and they are drained
+        private synchronized boolean read() {
+            if(closed)
+                return false;
+
+            boolean exited = !process.isAlive();
+            try {
+                boolean read = readAvailable(output, outputLine, outputLines) | readAvailable(error, errorLine, null);
+                if(!read && exited)
+                    close();
+                return read;
+            } catch (IOException ex) {
+                logger.debug("Could not read process output: {}", ex.getMessage());
+                close();
+                return false;
+            }
+        }
+
+        // the lines of the standard output go to the line handler, if any
+        private boolean readAvailable(InputStream stream, ByteArrayOutputStream line, Consumer<String> lineHandler)
+                throws IOException {
+            if(stream == null)
+                return false;
+
+            boolean read = false;
+            int available;
+            while((available = stream.available()) > 0) {
+                int count = stream.read(buffer, 0, Math.min(available, buffer.length));
+                if(count <= 0)
+                    break;
+                if(stream == error)
+                    appendToErrorTail(count);
+                readLines(count, line, lineHandler);
+                read = true;
+            }
+            return read;
+        }
+
+        // checks the complete lines read against the progress pattern, or hands them to the line handler
+        private void readLines(int count, ByteArrayOutputStream line, Consumer<String> lineHandler) {
+            if(progressPattern == null) {
+                lastProgressMillis = System.currentTimeMillis();
+                if(lineHandler == null)
+                    return;
+            }
+
+            for(int i = 0; i < count; i++) {
+                byte b = buffer[i];
+                if(b == '\n' || b == '\r') {
+                    if(line.size() > 0) {
+                        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                        if(lineHandler != null)
+                            lineHandler.accept(text);
+                        else
+                            lineRead(text);
+                    }
+                    line.reset();
+                } else if(line.size() < MAX_LINE_LENGTH) {
+                    line.write(b);
+                }
+            }
+        }
+
+        private void appendToErrorTail(int count) {
+            if(errorTail.length == 0)
+                return;
+
+            for(int i = Math.max(0, count - errorTail.length); i < count; i++) {
+                errorTail[errorTailEnd++] = buffer[i];
+                if(errorTailEnd == errorTail.length) {
+                    errorTailEnd = 0;
+                    errorTailFull = true;
+                }
+            }
+        }
+
+        private void close() {
+            closed = true;
+            closeQuietly(output);
+            closeQuietly(error);
+        }
+
+        private static void closeQuietly(InputStream stream) {
+            try {
+                if(stream != null)
+                    stream.close();
+            } catch (IOException ex) {}
+        }
+    }
+}
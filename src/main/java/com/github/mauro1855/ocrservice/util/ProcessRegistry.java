@@ -0,0 +1,54 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process groups of the external tools being run, by the thread waiting for
+ * them: the executor finds through it the tool of a running task, to suspend
+ * it while a more urgent task uses its processor.
+ * <p>
+ * Only processes in their own group are registered, the long-lived processes
+ * shared by the threads (pool mode) are not.
+ */
+public class ProcessRegistry {
+
+    private static final ProcessRegistry SHARED = new ProcessRegistry();
+
+    private final ConcurrentMap<Thread, ProcessGroup> processGroups = new ConcurrentHashMap<>();
+
+    public static ProcessRegistry getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Registers the process group run by the current thread
+     *
+     * @param processGroup run by the current thread
+     * @return {void}
+     */
+    public void register(ProcessGroup processGroup) {
+        if(processGroup.getGroupId() != null)
+            processGroups.put(Thread.currentThread(), processGroup);
+    }
+
+    /**
+     * Forgets the process group run by the current thread, once it finished
+     *
+     * @param processGroup run by the current thread
+     * @return {void}
+     */
+    public void unregister(ProcessGroup processGroup) {
+        processGroups.remove(Thread.currentThread(), processGroup);
+    }
+
+    /**
+     * Gets the process group run by a thread
+     *
+     * @param thread
+     * @return {ProcessGroup} process group run by the thread, null if none
+     */
+    public ProcessGroup get(Thread thread) {
+        return processGroups.get(thread);
+    }
+}
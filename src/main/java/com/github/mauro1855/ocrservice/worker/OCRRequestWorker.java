@@ -1,23 +1,47 @@
 package com.github.mauro1855.ocrservice.worker;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.engine.OCREngine;
+import com.github.mauro1855.ocrservice.engine.OCRResult;
 import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
-import com.github.mauro1855.ocrservice.service.OCRCallbackService;
+import com.github.mauro1855.ocrservice.service.OCRCallbackDispatcher;
+import com.github.mauro1855.ocrservice.service.OCRCompletionNotifier;
+import com.github.mauro1855.ocrservice.service.OCRResultCacheService;
 import com.github.mauro1855.ocrservice.util.PriorityRunnable;
+import com.github.mauro1855.ocrservice.util.ProcessGroup;
 import java.util.Date;
-
-import com.github.mauro1855.ocrservice.util.StreamConsumer;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang.SystemUtils;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.multipdf.Splitter;
+import org.apache.pdfbox.pdmodel.PDDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 /**
  * Created by mauro1855 on 01/12/2016.
@@ -27,38 +51,129 @@ public class OCRRequestWorker {
 
   private static Logger logger = LoggerFactory.getLogger(OCRRequestWorker.class);
 
+  // each run of the service keeps its files in a folder of its own, named after its pid
+  private static final String RUN_ID = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+
   private static final String TEMP_DIR = getTempDir();
-  private static final String VAR_DOCKER_SHARE_FOLDER = "!!folder!!";
+
+  // <id>.pdf, <id>_ocr.pdf and the chunks <id>_<n>.pdf, <id>_<n>_ocr.pdf
+  private static final Pattern TEMP_FILE_PATTERN = Pattern.compile("\\d+(_\\d+)?(_ocr)?\\.pdf");
+
+  // attempts of a chunk that fails for a transient reason, before the whole request is retried later
+  private static final int CHUNK_MAX_ATTEMPTS = 3;
+
+  @Autowired
+  private OCRCallbackDispatcher ocrCallbackDispatcher;
 
   @Autowired
-  private OCRCallbackService ocrCallbackService;
+  private OCRCompletionNotifier ocrCompletionNotifier;
 
   @Autowired
   private OCRRequestRepository ocrRequestRepository;
 
   @Autowired
-  private Runtime runtime;
+  private OCRResultCacheService ocrResultCacheService;
 
-  @Value("${ocr.command}")
-  private String ocrCommand;
-  @Value("${ocr.extra.commands}")
-  private String ocrExtraCommands;
-  @Value("${ocr.output.required}")
-  private boolean ocrOutputRequired;
-  @Value("${ocr.output.file.prefix.command}")
-  private String ocrOutputFilePrefixCommand;
+  @Autowired
+  private OCREngine ocrEngine;
 
+  @Autowired
+  private ExecutorService priorityExecutor;
+
+  // requests being processed, by id
+  private final ConcurrentMap<Long, RunningRequest> runningRequests = new ConcurrentHashMap<>();
+
+  // queues the requests to retry again once their delay is over
+  private ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "ocr-retry");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Value("${ocr.max.processing.attempts}")
+  private int maxProcessingAttempts;
+
+  @Value("${ocr.retry.initial.delay}")
+  private long ocrRetryInitialDelay;
+  @Value("${ocr.retry.max.delay}")
+  private long ocrRetryMaxDelay;
+  @Value("${ocr.retry.priority.penalty}")
+  private int ocrRetryPriorityPenalty;
+
+  @Value("${ocr.split.enabled}")
+  private boolean ocrSplitEnabled;
+  @Value("${ocr.split.min.pages}")
+  private int ocrSplitMinPages;
+  @Value("${ocr.split.pages}")
+  private int ocrSplitPages;
+
+  /**
+   * Gets the folder of the temporary files of the requests processed
+   * by this run of the service (java temp folder/ocr-service/pid)
+   *
+   * @return {String} path of the folder, with a trailing separator
+   */
   public static String getTempDir(){
-    String javaTemp = System.getProperty("java.io.tmpdir");
-    String lastCharacter = javaTemp.substring(javaTemp.length()-1);
-    if(lastCharacter.compareTo("/") == 0 || lastCharacter.compareTo("\\") == 0)
-      return javaTemp;
-    else if(javaTemp.contains("/"))
-      return javaTemp + "/";
-    else if(javaTemp.contains("\\"))
-      return javaTemp + "\\";
+    File tempDir = new File(getTempRoot(), RUN_ID);
+    if(!tempDir.isDirectory() && !tempDir.mkdirs())
+      logger.error("Could not create temporary folder {}", tempDir.getAbsolutePath());
+    return tempDir.getAbsolutePath() + File.separator;
+  }
+
+  private static File getTempRoot(){
+    return new File(System.getProperty("java.io.tmpdir"), "ocr-service");
+  }
+
+  /**
+   * Kills the OCR processes left running by previous runs that crashed,
+   * and removes the temporary files of the requests they were processing:
+   * the folders of the runs that are not running anymore, and the files of
+   * this folder older than this run (a previous run with the same pid).
+   * The files of other runs of the service that are still running, and of
+   * other applications, are left untouched
+   *
+   * @return {void}
+   */
+  @PostConstruct
+  public void cleanTempDir(){
+    // the pid files of the pooled processes are in the java temp folder, with the pid of their run
+    int reaped = ProcessGroup.reapOrphans(new File(System.getProperty("java.io.tmpdir")));
+    int removed = 0;
+
+    File[] runDirs = getTempRoot().listFiles(File::isDirectory);
+    for(File runDir : runDirs != null ? runDirs : new File[0]){
+      if(runDir.getName().equals(RUN_ID) || ProcessGroup.isRunning(runDir.getName()))
+        continue;
+
+      reaped += ProcessGroup.reapOrphans(runDir);
+      File[] staleFiles = runDir.listFiles();
+      removed += staleFiles != null ? staleFiles.length : 0;
+      FileUtils.deleteQuietly(runDir);
+    }
+
+    File tempDir = new File(TEMP_DIR);
+    reaped += ProcessGroup.reapOrphans(tempDir);
 
-    return javaTemp;
+    long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+    File[] staleFiles = tempDir.listFiles((dir, name) -> TEMP_FILE_PATTERN.matcher(name).matches());
+    for(File staleFile : staleFiles != null ? staleFiles : new File[0]){
+      if(staleFile.lastModified() < startTime && staleFile.delete())
+        removed++;
+    }
+
+    if(reaped > 0 || removed > 0)
+      logger.warn("Killed {} OCR processes and removed {} temporary files left by a previous run", reaped, removed);
+  }
+
+  /**
+   * Forgets the requests waiting to be retried, which are
+   * still pending and queued again at the next startup
+   *
+   * @return {void}
+   */
+  @PreDestroy
+  public void shutdown(){
+    retryScheduler.shutdownNow();
   }
 
   /**
@@ -69,10 +184,22 @@ public class OCRRequestWorker {
    * @return {Runnable} task for thread pool
    */
   public Runnable getRunnable(OCRRequest request) {
+    return getRunnable(request, request.getPriority());
+  }
+
+  /**
+   * Creates a Runnable task that implements the multiple
+   * steps for OCRing the request, queued with the given priority
+   *
+   * @param request
+   * @param priority in the queue, which may differ from the priority of the request
+   * @return {Runnable} task for thread pool
+   */
+  public Runnable getRunnable(OCRRequest request, int priority) {
     return new PriorityRunnable() {
       @Override
       public int getPriority() {
-        return request.getPriority();
+        return priority;
       }
 
       @Override
@@ -80,119 +207,370 @@ public class OCRRequestWorker {
         return request.getRequestCreationDate();
       }
 
+      @Override
+      public Long getRequestId() {
+        return request.getId();
+      }
+
+      @Override
+      public long getSize() {
+        return request.getFileToOCRSize();
+      }
+
       @Override
       public void run() {
-        logger.info("Started processing request {} with priority {}", request.getId(), request.getPriority());
+        startRunning(request.getId());
+        try {
+          processRequest(request);
+        } finally {
+          stopRunning(request.getId());
+        }
+      }
+    };
+  }
 
-        // Gets the full request object (this way we get the file bytes again)
-        request.setFileToOCRByteArray(ocrRequestRepository.getRequest(request.getId()).getFileToOCRByteArray());
+  /**
+   * Cancels the processing of a request: the threads processing it
+   * are interrupted, which stops the OCR, and its result is not kept
+   *
+   * @param requestId of the request
+   * @return {boolean} false if the request is not being processed
+   */
+  public boolean cancel(Long requestId){
+    boolean[] running = {false};
+    runningRequests.computeIfPresent(requestId, (id, runningRequest) -> {
+      runningRequest.cancelled = true;
+      runningRequest.threads.forEach(Thread::interrupt);
+      running[0] = true;
+      return runningRequest;
+    });
+    return running[0];
+  }
 
-        // Marks the request as started in memory
-        request.startOCR();
+  private boolean isCancelled(Long requestId){
+    RunningRequest runningRequest = runningRequests.get(requestId);
+    return runningRequest != null && runningRequest.cancelled;
+  }
 
-        // the following cycle will try to OCR the file
-        // a maximum of 3 times until it gets OCRed
-        int i = 0;
-        do {
+  private void startRunning(Long requestId){
+    runningRequests.compute(requestId, (id, runningRequest) -> {
+      if(runningRequest == null)
+        runningRequest = new RunningRequest();
+      runningRequest.threads.add(Thread.currentThread());
+      return runningRequest;
+    });
+  }
 
-          if(request.getStatusCode() == -1){
-            logger.debug("Retrying OCR of request {}", request.getId());
-          }
+  private void stopRunning(Long requestId){
+    runningRequests.computeIfPresent(requestId, (id, runningRequest) -> {
+      runningRequest.threads.remove(Thread.currentThread());
+      return runningRequest.threads.isEmpty() ? null : runningRequest;
+    });
 
-          // processes the request
-          processOCRRequest(request);
-          i++;
-        } while(request.getStatusCode() != 1 && i < 3);
+    // a cancellation must not interrupt the next task of the thread
+    Thread.interrupted();
+  }
 
-        // marks the request as ended in memory
-        request.endOCR();
-        logger.info("Finished OCRing request {} in {} ms", request.getId(), request.getOCRDuration());
+  /**
+   * Implements the multiple steps for OCRing the request
+   *
+   * @param request
+   * @return {void}
+   */
+  private void processRequest(OCRRequest request){
+    logger.info("Started processing request {} with priority {}", request.getId(), request.getPriority());
+
+    // Marks the request as started, unless it was processed, stopped or claimed by another node meanwhile
+    request.startOCR();
+    if(!ocrRequestRepository.startProcessing(request)){
+      logger.info("Request {} is no longer pending on this node, skipped", request.getId());
+      return;
+    }
 
-        // updates request in database and sends reply to client
-        ocrRequestRepository.updateRequest(request);
-        ocrCallbackService.replyToRequest(request);
+    // a request whose previous attempts never finished (the node died) is abandoned after a few attempts
+    if(request.getProcessingAttempts() > maxProcessingAttempts){
+      abandonRequest(request);
+      return;
+    }
+
+    // if an identical document is being OCRed, waits for its result instead
+    String cacheKey = ocrResultCacheService.getCacheKey(request.getContentHash(), ocrEngine.getSignature());
+    if(cacheKey != null && !ocrResultCacheService.startProcessing(cacheKey, request)){
+      return;
+    }
+
+    boolean completed = false;
+    boolean stopped = false;
+    boolean retried = false;
+    try {
+      File cachedResult = new File(TEMP_DIR + request.getId().toString() + "_ocr.pdf");
+      if(cacheKey != null && ocrResultCacheService.copyCachedResult(cacheKey, cachedResult)){
+        // the document was already OCRed with the same command
+        request.setOcredFile(cachedResult);
+        request.setStatusCode(1);
+        request.setStatusMessage("Successfully OCRed");
+        logger.info("Request {} answered from the result cache", request.getId());
+      }else if(request.getProcessingAttempts() > 1 && recoverOcredFile(request)){
+        // a previous attempt stored the OCRed file but did not finish
+        logger.info("Request {} completed with the OCRed file of a previous attempt", request.getId());
+      }else{
+        OCRResult result = ocrRequest(request);
+        if(result.isTransient() && isRetryable(request)){
+          // the request goes back to the queue, so that the thread is free for other requests
+          retried = true;
+          retryLater(request, result.getMessage());
+          return;
+        }
+
+        if(cacheKey != null && request.getStatusCode() == 1)
+          ocrResultCacheService.cacheResult(cacheKey, request.getOcredFile());
       }
-    };
+
+      // marks the request as ended in memory, with its reply claimed by this node
+      request.endOCR();
+      ocrCallbackDispatcher.claimReply(request);
+      logger.info("Finished OCRing request {} in {} ms", request.getId(), request.getOCRDuration());
+
+      // updates request in database and wakes up the clients waiting for it
+      if(!ocrRequestRepository.updateRequest(request)){
+        logger.info("Request {} was cancelled or claimed by another node, its result is discarded", request.getId());
+        stopped = true;
+        return;
+      }
+      ocrCompletionNotifier.requestCompleted(request);
+      completed = true;
+
+    } finally {
+      if(cacheKey != null){
+        // identical requests that were waiting get the same result, or are
+        // processed on their own if this request was cancelled or is retried later
+        List<OCRRequest> followers = ocrResultCacheService.finishProcessing(cacheKey);
+        for(OCRRequest follower : followers){
+          if(stopped || retried)
+            priorityExecutor.submit(getRunnable(follower));
+          else
+            completeWithResultOf(follower, request);
+        }
+      }
+
+      // queues the reply to the client, which is sent from the OCRed file
+      // (the dispatcher removes it once it is no longer needed)
+      if(completed)
+        ocrCallbackDispatcher.dispatch(request);
+      else if(request.getOcredFile() != null)
+        request.getOcredFile().delete();
+    }
   }
 
   /**
-   * Processes the OCR Request, including calling the external tool to
-   * perform OCR on file
+   * Fails a request that was started too many times without
+   * finishing, so that a file that kills the nodes is not retried forever
    *
    * @param request
    * @return {void}
    */
-  private void processOCRRequest(OCRRequest request){
+  private void abandonRequest(OCRRequest request){
+    logger.error("Request {} abandoned after {} processing attempts", request.getId(), request.getProcessingAttempts());
+    request.setStatusCode(-1);
+    request.setStatusMessage("Abandoned after " + request.getProcessingAttempts() + " processing attempts");
+    request.endOCR();
+    ocrCallbackDispatcher.claimReply(request);
+
+    if(!ocrRequestRepository.updateRequest(request))
+      return;
+    ocrCompletionNotifier.requestCompleted(request);
+    ocrCallbackDispatcher.dispatch(request);
+  }
+
+  /**
+   * Gets the OCRed file stored by a previous attempt that did not
+   * finish, so that the request is not OCRed twice
+   *
+   * @param request
+   * @return {boolean} false if no OCRed file was stored
+   */
+  private boolean recoverOcredFile(OCRRequest request){
+    File targetFile = new File(TEMP_DIR + request.getId().toString() + "_ocr.pdf");
+    try {
+      if(!ocrRequestRepository.copyOcredFile(request.getId(), targetFile))
+        return false;
+    } catch (Exception ex) {
+      logger.error("Could not read the OCRed file of request {}: {}", request.getId(), ex.getMessage());
+      targetFile.delete();
+      return false;
+    }
 
-    // creates temporary files
-    String sourceFileName = request.getId().toString() + ".pdf";
-    String targetFileName = sourceFileName.replace(".pdf", "_ocr.pdf");
+    // already stored, it is not written again
+    request.setOcredFile(targetFile);
+    request.clearDirtyFields();
+    request.setStatusCode(1);
+    request.setStatusMessage("Successfully OCRed");
+    return true;
+  }
 
-    File sourceFile = new File(TEMP_DIR + sourceFileName);
-    File targetFile = new File(TEMP_DIR + targetFileName);
+  /**
+   * Checks if a request that failed for a transient reason can be
+   * retried: it was not cancelled, and was not started too many times
+   *
+   * @param request
+   * @return {boolean} true if the request can be retried
+   */
+  private boolean isRetryable(OCRRequest request){
+    return !isCancelled(request.getId()) && request.getProcessingAttempts() < maxProcessingAttempts;
+  }
 
-    try {
-      FileUtils.writeByteArrayToFile(sourceFile, request.getFileToOCRByteArray());
-    } catch (IOException e) {
-      logger.error("Could not create temp file: {}", e.getMessage());
-      request.setStatusCode(-1);
+  /**
+   * Puts a request that failed for a transient reason back in the queue
+   * after a delay, which doubles at each attempt, with a lower priority
+   * at each attempt so that fresh requests are processed first. The request
+   * stays pending meanwhile, with the reason of the retry as its message
+   *
+   * @param request
+   * @param failureMessage message of the failure
+   * @return {void}
+   */
+  private void retryLater(OCRRequest request, String failureMessage){
+    int attempts = Math.max(1, request.getProcessingAttempts());
+    long delay = Math.min(ocrRetryMaxDelay, ocrRetryInitialDelay << Math.min(attempts - 1, 30));
+    int priority = request.getPriority() - ocrRetryPriorityPenalty * attempts;
+
+    request.setStatusCode(0);
+    request.setStatusMessage("Retrying after a failure: " + failureMessage);
+    if(!ocrRequestRepository.updateRequest(request)){
+      logger.info("Request {} was cancelled, it is not retried", request.getId());
       return;
     }
+
+    logger.warn("Request {} failed ({}), retried in {} ms with priority {}", request.getId(), failureMessage, delay, priority);
+    retryScheduler.schedule(() -> {
+      try {
+        priorityExecutor.submit(getRunnable(request, priority));
+      } catch (RejectedExecutionException ex) {
+        logger.warn("Could not queue request {} again, it will be retried at the next startup", request.getId());
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * OCRs the file of the request, once: a failure is not retried here,
+   * transient failures are retried later by the caller
+   *
+   * @param request
+   * @return {OCRResult} outcome of the OCR, also set in the request
+   */
+  private OCRResult ocrRequest(OCRRequest request){
+
+    // streams the file from the database to a temporary file
+    File sourceFile = new File(TEMP_DIR + request.getId().toString() + ".pdf");
+    try {
+      if(!ocrRequestRepository.copyFileToOCR(request.getId(), sourceFile))
+        return failed(request, OCRResult.error("The file of the request " + request.getId() + " could not be found"));
+    } catch (Exception ex) {
+      logger.error("Could not create temp file: {}", ex.getMessage());
+      sourceFile.delete();
+      return failed(request, OCRResult.transientError("An internal error occured while processing the request "
+          + request.getId()));
+    }
     logger.debug("Created temporary source file: {}", sourceFile.getAbsolutePath());
 
-    String processedSourcePath;
-    String processedTargetPath;
-    String processedCommand;
-
-    // checks if docker is being run
-    // if so, modifications to the command need to be made
-    if(ocrCommand.contains("docker")) {
-      logger.debug("Docker detected in command for " + SystemUtils.OS_NAME);
-      processedCommand = ocrCommand.replace(VAR_DOCKER_SHARE_FOLDER, TEMP_DIR);
-      processedSourcePath = sourceFileName;
-      processedTargetPath = targetFileName;
-    }else{
-      processedCommand = ocrCommand;
-      processedSourcePath = TEMP_DIR + sourceFileName;
-      processedTargetPath = TEMP_DIR + targetFileName;
+    try {
+      // big files are split and OCRed in parallel
+      OCRResult result = ocrSplitEnabled ? processOCRRequestInChunks(request, sourceFile) : null;
+      if(result != null)
+        return result;
+
+      // processes the request
+      return processOCRRequest(request, sourceFile);
+
+    } finally {
+      sourceFile.delete();
+    }
+  }
+
+  // marks a request as failed with the message of the failure
+  private static OCRResult failed(OCRRequest request, OCRResult result){
+    request.setStatusCode(-1);
+    request.setStatusMessage(result.getMessage());
+    return result;
+  }
+
+  /**
+   * Completes a request that was waiting for an identical
+   * request with the outcome of the latter
+   *
+   * @param follower request that was waiting
+   * @param request request that was processed
+   * @return {void}
+   */
+  private void completeWithResultOf(OCRRequest follower, OCRRequest request){
+    try {
+      follower.setRequestOCRStartDate(request.getRequestOCRStartDate());
+      follower.endOCR();
+      ocrCallbackDispatcher.claimReply(follower);
+      follower.setStatusCode(request.getStatusCode());
+      follower.setStatusMessage(request.getStatusMessage());
+      if(request.getOcredFile() != null)
+        follower.setOcredFile(shareOcredFile(request.getOcredFile(), follower));
+      logger.info("Finished request {} with the result of identical request {}", follower.getId(), request.getId());
+
+      if(!ocrRequestRepository.updateRequest(follower)){
+        logger.info("Request {} was cancelled, its result is discarded", follower.getId());
+        if(follower.getOcredFile() != null)
+          follower.getOcredFile().delete();
+        return;
+      }
+      ocrCompletionNotifier.requestCompleted(follower);
+      ocrCallbackDispatcher.dispatch(follower);
+    } catch (Exception ex) {
+      logger.error("Could not complete request {}: {}", follower.getId(), ex.getMessage());
+      if(follower.getOcredFile() != null)
+        follower.getOcredFile().delete();
+    }
+  }
+
+  /**
+   * Gives a request its own name for an OCRed file, so that each reply
+   * removes its file independently. The file is hard linked when the
+   * file system allows it, and copied otherwise
+   *
+   * @param ocredFile OCRed file of the request that was processed
+   * @param follower request that was waiting for it
+   * @return {File} OCRed file of the follower
+   */
+  private File shareOcredFile(File ocredFile, OCRRequest follower) throws IOException {
+    File followerFile = new File(TEMP_DIR + follower.getId().toString() + "_ocr.pdf");
+    Files.deleteIfExists(followerFile.toPath());
+    try {
+      Files.createLink(followerFile.toPath(), ocredFile.toPath());
+    } catch (IOException | UnsupportedOperationException ex) {
+      Files.copy(ocredFile.toPath(), followerFile.toPath());
     }
+    return followerFile;
+  }
 
-    String commandToExecute = processedCommand + " " + ocrExtraCommands + " " +
-        processedSourcePath;
+  /**
+   * Processes the OCR Request, including calling the external tool to
+   * perform OCR on file. The OCRed file is left on disk and set in the
+   * request, so that it is streamed to the database
+   *
+   * @param request
+   * @param sourceFile file to OCR
+   * @return {OCRResult} outcome of the OCR
+   */
+  private OCRResult processOCRRequest(OCRRequest request, File sourceFile){
 
-    if(ocrOutputRequired)
-      commandToExecute += " " + ocrOutputFilePrefixCommand + " " + processedTargetPath;
+    File targetFile = new File(TEMP_DIR + request.getId().toString() + "_ocr.pdf");
 
-    Process process = null;
+    OCRResult result;
     try {
-      // executes the command to call the external tool
-      // waits for a maximum of 5 minutes for the OCR
-      logger.debug("Calling external tool to OCR...");
-      logger.trace("... on command {}", commandToExecute);
-
-      process = runtime.exec(commandToExecute);
-
-      // Reads the streams from the process so it doesn't block the process
-      StreamConsumer processOutput = new StreamConsumer(process.getInputStream());
-      StreamConsumer processError = new StreamConsumer(process.getErrorStream());
-      processOutput.start();
-      processError.start();
-
-      if(!process.waitFor(10, TimeUnit.MINUTES) ){
-        // if process doesn't finish before the timeout
-        // request status to -1, sets a failure message and aborts process
-        logger.warn("Request {} is taking too much time - aborting", request.getId());
-        request.setStatusCode(-1);
-        request.setStatusMessage("Request " + request.getId() + " exceeded the 10 minute time-out.");
-      }else if(process.exitValue() != 0){
-        // if process did not exited with success code then set
-        // request status to -1, sets a failure message and returns
-        logger.error("An error occurred running the tool for request {}", request.getId());
-        request.setStatusCode(-1);
-        request.setStatusMessage("An internal error occured while processing the request " + request.getId());
+      result = ocrEngine.ocr(sourceFile, targetFile, "request " + request.getId());
+
+      if(!result.isSuccess()){
+        // the OCR failed, request status to -1 with the failure message
+        failed(request, result);
       }else {
-        // otherwise it sets the request as successful and the OCRed content in the request
-        request.setOcredFileByteArray(FileUtils.readFileToByteArray(targetFile));
+        // otherwise it sets the request as successful and the OCRed file in the request
+        request.setOcredFile(targetFile);
         request.setStatusCode(1);
         request.setStatusMessage("Successfully OCRed");
       }
@@ -200,62 +578,273 @@ public class OCRRequestWorker {
     }catch(Exception ex){
       // if an exception occurred, then marks the request status code as -1
       // and a failure message
-      logger.error("An error occurred running the tool for request {}:{}", request.getId(), ex.getMessage());
-      request.setStatusCode(-1);
-      request.setStatusMessage("An internal error occured while processing the request " + request.getId());
+      logger.error("An error occurred reading the result of request {}:{}", request.getId(), ex.getMessage());
+      result = failed(request, OCRResult.transientError("An internal error occured while processing the request "
+          + request.getId()));
 
     }finally{
+      // delete temp file, unless it is the result
+      if(request.getStatusCode() != 1 && targetFile.exists()){
+        targetFile.delete();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Splits the file of the request in chunks of pages, OCRs the chunks
+   * in parallel in the thread pool and merges the results. A chunk that
+   * fails for a transient reason is retried on its own (the chunks that
+   * succeeded are kept), a maximum of 3 times. Once all the chunks are done,
+   * the request fails if a chunk still failed, permanently if any chunk
+   * failed permanently
+   *
+   * @param request
+   * @param sourceFile file to OCR
+   * @return {OCRResult} outcome of the OCR, null if the file is too small to be split (nothing was done)
+   */
+  private OCRResult processOCRRequestInChunks(OCRRequest request, File sourceFile){
+
+    File targetFile = new File(TEMP_DIR + request.getId().toString() + "_ocr.pdf");
+    List<OCRChunk> chunks = new ArrayList<>();
+
+    OCRResult result;
+    try {
+      // splits the file in chunks of pages (pages are kept on disk, not in memory)
+      try(PDDocument document = PDDocument.load(sourceFile, MemoryUsageSetting.setupTempFileOnly())){
+        int pageCount = document.getNumberOfPages();
+        if(pageCount < ocrSplitMinPages)
+          return null;
+
+        Splitter splitter = new Splitter();
+        splitter.setSplitAtPage(ocrSplitPages);
+        splitter.setMemoryUsageSetting(MemoryUsageSetting.setupTempFileOnly());
+        List<PDDocument> parts = splitter.split(document);
+
+        for(int n = 0; n < parts.size(); n++){
+          try(PDDocument part = parts.get(n)){
+            int firstPage = n * ocrSplitPages + 1;
+            int lastPage = Math.min(firstPage + ocrSplitPages - 1, pageCount);
+            OCRChunk chunk = new OCRChunk(request.getId() + "_" + n + ".pdf",
+                "request " + request.getId() + " (pages " + firstPage + "-" + lastPage + ")");
+            part.save(TEMP_DIR + chunk.sourceFileName);
+            chunks.add(chunk);
+          }
+        }
+      }
+      logger.debug("Split request {} in {} chunks", request.getId(), chunks.size());
 
-      if(process != null && process.isAlive()){
-        logger.debug("Process is still alive. Killing...");
-        process.destroy();
+      // the chunks are queued in the pool, but this thread processes chunks as well,
+      // so it never waits for a chunk that is still in the queue
+      for(OCRChunk chunk : chunks.subList(1, chunks.size())){
         try {
-          process.waitFor();
-        } catch (InterruptedException e) {
-          logger.warn("Impossible to kill process.");
+          priorityExecutor.submit(getChunkRunnable(request, chunk));
+        } catch (RejectedExecutionException ex) {
+          logger.warn("Could not queue {}, processing it in the current thread", chunk.description);
         }
       }
-      // delete temp files
-      if(sourceFile.exists()){
-        sourceFile.delete();
+      for(OCRChunk chunk : chunks){
+        if(isCancelled(request.getId()))
+          break;
+        processChunk(request.getId(), chunk);
+      }
+
+      // the first failure, unless a later chunk failed permanently
+      // (the chunks left after a cancellation are not waited for)
+      OCRResult failure = null;
+      for(OCRChunk chunk : chunks){
+        if(chunk.claimed.compareAndSet(false, true)){
+          failure = OCRResult.error("The processing of the request " + request.getId() + " was cancelled");
+          continue;
+        }
+        chunk.done.await();
+        if(!chunk.result.isSuccess() && (failure == null || failure.isTransient() && !chunk.result.isTransient()))
+          failure = chunk.result;
+      }
+
+      if(failure != null){
+        result = failed(request, failure);
+      }else{
+        // merges the OCRed chunks, in order
+        PDFMergerUtility merger = new PDFMergerUtility();
+        for(OCRChunk chunk : chunks){
+          merger.addSource(new File(TEMP_DIR + chunk.targetFileName));
+        }
+        merger.setDestinationFileName(targetFile.getAbsolutePath());
+        merger.mergeDocuments(MemoryUsageSetting.setupTempFileOnly());
+
+        request.setOcredFile(targetFile);
+        request.setStatusCode(1);
+        request.setStatusMessage("Successfully OCRed");
+        result = OCRResult.success();
       }
 
-      if(targetFile.exists()){
+    }catch(Exception ex){
+      logger.error("An error occurred processing request {} in chunks:{}", request.getId(), ex.getMessage());
+      result = failed(request, OCRResult.transientError("An internal error occured while processing the request "
+          + request.getId()));
+
+    }finally{
+      // chunks still in the queue are not processed anymore (after a cancellation)
+      for(OCRChunk chunk : chunks){
+        chunk.claimed.set(true);
+      }
+
+      // delete temp files
+      for(OCRChunk chunk : chunks){
+        new File(TEMP_DIR + chunk.sourceFileName).delete();
+        new File(TEMP_DIR + chunk.targetFileName).delete();
+      }
+      if(request.getStatusCode() != 1 && targetFile.exists()){
         targetFile.delete();
       }
+    }
+
+    return result;
+  }
+
+  /**
+   * Creates a task for the thread pool that OCRs a chunk
+   * of a request, with the priority of the request
+   *
+   * @param request
+   * @param chunk
+   * @return {Runnable} task for thread pool
+   */
+  private Runnable getChunkRunnable(OCRRequest request, OCRChunk chunk){
+    long chunkSize = new File(TEMP_DIR + chunk.sourceFileName).length();
+    return new PriorityRunnable() {
+      @Override
+      public int getPriority() {
+        return request.getPriority();
+      }
+
+      @Override
+      public Date getDate() {
+        return request.getRequestCreationDate();
+      }
+
+      @Override
+      public long getSize() {
+        return chunkSize;
+      }
+
+      @Override
+      public void run() {
+        startRunning(request.getId());
+        try {
+          processChunk(request.getId(), chunk);
+        } finally {
+          stopRunning(request.getId());
+        }
+      }
+    };
+  }
 
+  /**
+   * OCRs a chunk, if it was not picked up by another thread yet, retrying
+   * it right away after a transient failure (unless the request was cancelled)
+   *
+   * @param requestId id of the request the chunk belongs to
+   * @param chunk
+   * @return {void}
+   */
+  private void processChunk(Long requestId, OCRChunk chunk){
+    if(!chunk.claimed.compareAndSet(false, true))
+      return;
+
+    try {
+      int attempts = 0;
+      do {
+        if(isCancelled(requestId)){
+          chunk.result = OCRResult.error("The processing of the " + chunk.description + " was cancelled");
+          break;
+        }
+        if(attempts > 0)
+          logger.debug("Retrying OCR of {} after a failure: {}", chunk.description, chunk.result.getMessage());
+        try {
+          chunk.result = ocrEngine.ocr(new File(TEMP_DIR + chunk.sourceFileName), new File(TEMP_DIR + chunk.targetFileName),
+              chunk.description);
+        } catch (Exception ex) {
+          chunk.result = OCRResult.transientError("An internal error occured while processing the " + chunk.description);
+        }
+      } while(chunk.result.isTransient() && ++attempts < CHUNK_MAX_ATTEMPTS);
+    } finally {
+      chunk.done.countDown();
     }
   }
 
-  public String getOcrCommand() {
-    return ocrCommand;
+  // A request being processed, with the threads working on it
+  private static class RunningRequest {
+    private final Set<Thread> threads = new HashSet<>();
+    private volatile boolean cancelled;
+  }
+
+  // A chunk of pages of a request, OCRed as a separate task
+  private static class OCRChunk {
+    private final String sourceFileName;
+    private final String targetFileName;
+    private final String description;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile OCRResult result;
+
+    private OCRChunk(String sourceFileName, String description) {
+      this.sourceFileName = sourceFileName;
+      this.targetFileName = sourceFileName.replace(".pdf", "_ocr.pdf");
+      this.description = description;
+    }
+  }
+
+  public int getMaxProcessingAttempts() {
+    return maxProcessingAttempts;
+  }
+
+  public void setMaxProcessingAttempts(int maxProcessingAttempts) {
+    this.maxProcessingAttempts = maxProcessingAttempts;
+  }
+
+  public boolean isOcrSplitEnabled() {
+    return ocrSplitEnabled;
+  }
+
+  public void setOcrSplitEnabled(boolean ocrSplitEnabled) {
+    this.ocrSplitEnabled = ocrSplitEnabled;
+  }
+
+  public int getOcrSplitMinPages() {
+    return ocrSplitMinPages;
+  }
+
+  public void setOcrSplitMinPages(int ocrSplitMinPages) {
+    this.ocrSplitMinPages = ocrSplitMinPages;
   }
 
-  public void setOcrCommand(String ocrCommand) {
-    this.ocrCommand = ocrCommand;
+  public int getOcrSplitPages() {
+    return ocrSplitPages;
   }
 
-  public String getOcrExtraCommands() {
-    return ocrExtraCommands;
+  public void setOcrSplitPages(int ocrSplitPages) {
+    this.ocrSplitPages = ocrSplitPages;
   }
 
-  public void setOcrExtraCommands(String ocrExtraCommands) {
-    this.ocrExtraCommands = ocrExtraCommands;
+  public void setOcrRetryInitialDelay(long ocrRetryInitialDelay) {
+    this.ocrRetryInitialDelay = ocrRetryInitialDelay;
   }
 
-  public boolean isOcrOutputRequired() {
-    return ocrOutputRequired;
+  public void setOcrRetryMaxDelay(long ocrRetryMaxDelay) {
+    this.ocrRetryMaxDelay = ocrRetryMaxDelay;
   }
 
-  public void setOcrOutputRequired(boolean ocrOutputRequired) {
-    this.ocrOutputRequired = ocrOutputRequired;
+  public void setOcrRetryPriorityPenalty(int ocrRetryPriorityPenalty) {
+    this.ocrRetryPriorityPenalty = ocrRetryPriorityPenalty;
   }
 
-  public String getOcrOutputFilePrefixCommand() {
-    return ocrOutputFilePrefixCommand;
+  public OCREngine getOcrEngine() {
+    return ocrEngine;
   }
 
-  public void setOcrOutputFilePrefixCommand(String ocrOutputFilePrefixCommand) {
-    this.ocrOutputFilePrefixCommand = ocrOutputFilePrefixCommand;
+  public void setOcrEngine(OCREngine ocrEngine) {
+    this.ocrEngine = ocrEngine;
   }
 }
@@ -1,6 +1,5 @@
 package com.github.mauro1855.ocrservice.config;
 
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import com.github.mauro1855.ocrservice.util.OCRThreadPoolExecutor;
@@ -28,7 +27,7 @@ public class AppConfig {
     }
 
     @Bean
-    public ThreadPoolExecutor threadPoolExecutor(@Value("${pool.nb.threads}") int nbThread, @Value("${pool.queue.initial.size}") int 
+    public OCRThreadPoolExecutor threadPoolExecutor(@Value("${pool.nb.threads}") int nbThread, @Value("${pool.queue.initial.size}") int 
       queueInitialSize) {
         return new OCRThreadPoolExecutor(nbThread, nbThread, 0L, TimeUnit.MILLISECONDS, queueInitialSize);
     }
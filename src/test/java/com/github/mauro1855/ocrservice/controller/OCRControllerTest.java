@@ -1,10 +1,20 @@
 package com.github.mauro1855.ocrservice.controller;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.service.OCRCompletionNotifier;
 import com.github.mauro1855.ocrservice.service.OCRRequestService;
+import com.github.mauro1855.ocrservice.service.OCRResultService;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.function.Consumer;
+
+import org.apache.commons.codec.digest.DigestUtils;
 import org.json.JSONObject;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
@@ -13,6 +23,9 @@ import org.mockito.Spy;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
 
 import static org.junit.Assert.*;
@@ -26,13 +39,23 @@ public class OCRControllerTest {
     @Mock
     private OCRRequestService ocrRequestService;
 
+    @Mock
+    private OCRResultService ocrResultService;
+
+    @Mock
+    private OCRCompletionNotifier ocrCompletionNotifier;
+
     @InjectMocks
     @Spy
     private OCRController ocrController;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        ocrController.setStatusMaxWait(30);
     }
 
     @Test
@@ -56,7 +79,8 @@ public class OCRControllerTest {
         MultipartFile mockFile = mock(MultipartFile.class);
 
         when(mockFile.getContentType()).thenReturn("application/pdf");
-        when(mockFile.getBytes()).thenReturn("Test".getBytes());
+        when(mockFile.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream("Test".getBytes()));
+        when(mockFile.getSize()).thenReturn(4L);
         when(ocrRequestService.registerNewOCRRequest(any(OCRRequest.class))).thenReturn(null);
 
         ResponseEntity<String> result = ocrController.registerNewOCRRequest("test", (short) 1, "/test", HttpMethod.POST, mockFile);
@@ -76,7 +100,8 @@ public class OCRControllerTest {
         ArgumentCaptor<OCRRequest> argumentCaptor = ArgumentCaptor.forClass(OCRRequest.class);
 
         when(mockFile.getContentType()).thenReturn("application/pdf");
-        when(mockFile.getBytes()).thenReturn("Test".getBytes());
+        when(mockFile.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream("Test".getBytes()));
+        when(mockFile.getSize()).thenReturn(4L);
         when(ocrRequestService.registerNewOCRRequest(any(OCRRequest.class))).thenReturn(2L);
 
         ResponseEntity<String> result = ocrController.registerNewOCRRequest("test", (short) 1, "/test", HttpMethod.POST, mockFile);
@@ -87,6 +112,9 @@ public class OCRControllerTest {
         assertEquals("/test", argumentCaptor.getValue().getCallbackEndpoint());
         assertEquals((short) 1, (short) argumentCaptor.getValue().getPriority());
         assertEquals(HttpMethod.POST, argumentCaptor.getValue().getCallbackMethod());
+        assertEquals(4L, argumentCaptor.getValue().getFileToOCRSize());
+        assertEquals(DigestUtils.sha256Hex("Test"), argumentCaptor.getValue().getContentHash());
+        verify(mockFile, never()).getBytes();
         assertTrue(body.getBoolean("success"));
         assertEquals(2L, body.getLong("requestId"));
         assertEquals("The request was accepted", body.get("message"));
@@ -99,4 +127,172 @@ public class OCRControllerTest {
         return new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, "Test".getBytes());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test_registerNewOCRRequest_callbackEndpointWithoutMethod() throws Exception {
+        MultipartFile mockFile = mock(MultipartFile.class);
+        when(mockFile.getContentType()).thenReturn("application/pdf");
+
+        ResponseEntity<String> result = ocrController.registerNewOCRRequest("test", (short) 1, "/test", null, mockFile);
+
+        assertEquals(HttpStatus.BAD_REQUEST, result.getStatusCode());
+        verify(ocrRequestService, never()).registerNewOCRRequest(any(OCRRequest.class));
+    }
+
+    @Test
+    public void test_getOCRRequestStatus_wrongToken() throws Exception {
+        when(ocrResultService.getRequest(2L, "wrong")).thenReturn(null);
+
+        DeferredResult<ResponseEntity<String>> result = ocrController.getOCRRequestStatus(2L, "wrong", 0);
+
+        assertEquals(HttpStatus.NOT_FOUND, ((ResponseEntity<?>) result.getResult()).getStatusCode());
+    }
+
+    @Test
+    public void test_getOCRRequestStatus_waitsForCompletion() throws Exception {
+        OCRRequest request = processedRequest((short) 0);
+        when(ocrResultService.getRequest(2L, "token")).thenReturn(request);
+        ArgumentCaptor<Consumer> listenerCaptor = ArgumentCaptor.forClass(Consumer.class);
+
+        DeferredResult<ResponseEntity<String>> result = ocrController.getOCRRequestStatus(2L, "token", 10);
+        assertFalse(result.hasResult());
+
+        verify(ocrCompletionNotifier).addListener(eq(2L), listenerCaptor.capture());
+        OCRRequest processed = processedRequest((short) 1);
+        listenerCaptor.getValue().accept(processed);
+
+        ResponseEntity<?> response = (ResponseEntity<?>) result.getResult();
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(1, new JSONObject((String) response.getBody()).getInt("statusCode"));
+    }
+
+    @Test
+    public void test_getOCRResult_notProcessed() throws Exception {
+        when(ocrResultService.getRequest(2L, "token")).thenReturn(processedRequest((short) 0));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        ocrController.getOCRResult(2L, "token", new MockHttpServletRequest("GET", "/ocr/request/2/result"), response);
+
+        assertEquals(409, response.getStatus());
+        verify(ocrResultService, never()).getResultFile(any(OCRRequest.class));
+    }
+
+    @Test
+    public void test_getOCRResult_range() throws Exception {
+        OCRRequest request = processedRequest((short) 1);
+        File resultFile = folder.newFile("2.pdf");
+        FileUtils.writeStringToFile(resultFile, "0123456789", "UTF-8");
+        when(ocrResultService.getRequest(2L, "token")).thenReturn(request);
+        when(ocrResultService.getResultFile(request)).thenReturn(resultFile);
+        when(ocrResultService.getETag(request)).thenReturn("\"2-1\"");
+
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest("GET", "/ocr/request/2/result");
+        httpRequest.addHeader("Range", "bytes=2-5");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ocrController.getOCRResult(2L, "token", httpRequest, response);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("2345", response.getContentAsString());
+        assertEquals("bytes 2-5/10", response.getHeader("Content-Range"));
+        verify(ocrResultService, never()).resultDownloaded(request);
+
+        response = new MockHttpServletResponse();
+        ocrController.getOCRResult(2L, "token", new MockHttpServletRequest("GET", "/ocr/request/2/result"), response);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("0123456789", response.getContentAsString());
+        assertEquals("\"2-1\"", response.getHeader("ETag"));
+        verify(ocrResultService).resultDownloaded(request);
+    }
+
+    @Test
+    public void test_getOCRResult_markedDownloadedOnceWritten() throws Exception {
+        OCRRequest request = processedRequest((short) 1);
+        File resultFile = folder.newFile("2.pdf");
+        FileUtils.writeStringToFile(resultFile, "0123456789", "UTF-8");
+        when(ocrResultService.getRequest(2L, "token")).thenReturn(request);
+        when(ocrResultService.getResultFile(request)).thenReturn(resultFile);
+        when(ocrResultService.getETag(request)).thenReturn("\"2-1\"");
+
+        // sendfile would only send the body after the request is handled
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest("GET", "/ocr/request/2/result");
+        httpRequest.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ocrController.getOCRResult(2L, "token", httpRequest, response);
+
+        assertEquals("0123456789", response.getContentAsString());
+        assertNull(httpRequest.getAttribute("org.apache.tomcat.sendfile.filename"));
+        verify(ocrResultService).resultDownloaded(request);
+    }
+
+    @Test
+    public void test_getOCRResult_resumedDownload() throws Exception {
+        OCRRequest request = processedRequest((short) 1);
+        File resultFile = folder.newFile("2.pdf");
+        FileUtils.writeStringToFile(resultFile, "0123456789", "UTF-8");
+        when(ocrResultService.getRequest(2L, "token")).thenReturn(request);
+        when(ocrResultService.getResultFile(request)).thenReturn(resultFile);
+        when(ocrResultService.getETag(request)).thenReturn("\"2-1\"");
+
+        MockHttpServletRequest httpRequest = new MockHttpServletRequest("GET", "/ocr/request/2/result");
+        httpRequest.addHeader("Range", "bytes=0-5");
+        ocrController.getOCRResult(2L, "token", httpRequest, new MockHttpServletResponse());
+        verify(ocrResultService, never()).resultDownloaded(request);
+
+        // the rest of the file, resuming the download
+        httpRequest = new MockHttpServletRequest("GET", "/ocr/request/2/result");
+        httpRequest.addHeader("Range", "bytes=6-");
+        httpRequest.addHeader("If-Range", "\"2-1\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ocrController.getOCRResult(2L, "token", httpRequest, response);
+
+        assertEquals("6789", response.getContentAsString());
+        verify(ocrResultService).resultDownloaded(request);
+    }
+
+    @Test
+    public void test_cancelOCRRequest() throws Exception {
+        OCRRequest request = processedRequest((short) 0);
+        when(ocrResultService.getRequest(2L, "token")).thenReturn(request);
+        when(ocrRequestService.cancelRequest(request)).thenReturn(true);
+
+        ResponseEntity<String> result = ocrController.cancelOCRRequest(2L, "token");
+
+        assertEquals(HttpStatus.OK, result.getStatusCode());
+        verify(ocrRequestService).cancelRequest(request);
+    }
+
+    @Test
+    public void test_cancelOCRRequest_wrongToken() throws Exception {
+        when(ocrResultService.getRequest(2L, "wrong")).thenReturn(null);
+
+        ResponseEntity<String> result = ocrController.cancelOCRRequest(2L, "wrong");
+
+        assertEquals(HttpStatus.NOT_FOUND, result.getStatusCode());
+        verify(ocrRequestService, never()).cancelRequest(any(OCRRequest.class));
+    }
+
+    @Test
+    public void test_cancelOCRRequest_alreadyProcessed() throws Exception {
+        when(ocrResultService.getRequest(2L, "token")).thenReturn(processedRequest((short) 1));
+
+        ResponseEntity<String> result = ocrController.cancelOCRRequest(2L, "token");
+
+        assertEquals(HttpStatus.CONFLICT, result.getStatusCode());
+        verify(ocrRequestService, never()).cancelRequest(any(OCRRequest.class));
+
+        // processed between the lookup and the cancellation
+        OCRRequest request = processedRequest((short) 0);
+        when(ocrResultService.getRequest(2L, "token")).thenReturn(request);
+        when(ocrRequestService.cancelRequest(request)).thenReturn(false);
+
+        assertEquals(HttpStatus.CONFLICT, ocrController.cancelOCRRequest(2L, "token").getStatusCode());
+    }
+
+    private OCRRequest processedRequest(short statusCode){
+        OCRRequest request = new OCRRequest("test", null, null, (short) 1, (byte[]) null);
+        request.setId(2L);
+        request.setStatusCode(statusCode);
+        return request;
+    }
+
+}
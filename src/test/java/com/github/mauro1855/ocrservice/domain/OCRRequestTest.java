@@ -1,6 +1,7 @@
 package com.github.mauro1855.ocrservice.domain;
 
 import java.util.Date;
+import java.util.EnumSet;
 import org.junit.Before;
 import org.junit.Test;
 import org.springframework.http.HttpMethod;
@@ -40,6 +41,30 @@ public class OCRRequestTest {
         assertNotEquals(null, ocrRequest.getRequestOCREndDate());
     }
 
+    @Test
+    public void test_replyDue(){
+        ocrRequest.clearDirtyFields();
+        Date nextCallbackDate = new Date();
+
+        ocrRequest.replyDue(nextCallbackDate);
+
+        assertTrue(ocrRequest.isCommunicationAttempted());
+        assertFalse(ocrRequest.isCommunicated());
+        assertEquals(nextCallbackDate, ocrRequest.getNextCallbackDate());
+        assertEquals(EnumSet.of(OCRRequest.Field.COMMUNICATION_ATTEMPTED, OCRRequest.Field.NEXT_CALLBACK_DATE),
+                ocrRequest.getDirtyFields());
+    }
+
+    @Test
+    public void test_replyDue_pullMode(){
+        OCRRequest pullRequest = new OCRRequest("test", null, null, (short) 1, "Test".getBytes());
+
+        pullRequest.replyDue(new Date());
+
+        assertFalse(pullRequest.isCommunicationAttempted());
+        assertNull(pullRequest.getNextCallbackDate());
+    }
+
     @Test
     public void test_getOCRDuration(){
         ocrRequest.setRequestOCRStartDate(new Date());
@@ -68,4 +93,18 @@ public class OCRRequestTest {
         assertTrue(ocrRequest.isCommunicationAttempted());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test_dirtyFields(){
+        ocrRequest.clearDirtyFields();
+        assertTrue(ocrRequest.getDirtyFields().isEmpty());
+
+        ocrRequest.startOCR();
+        ocrRequest.setStatusCode((short) 1);
+
+        assertEquals(EnumSet.of(OCRRequest.Field.OCR_START_DATE, OCRRequest.Field.STATUS_CODE), ocrRequest.getDirtyFields());
+
+        ocrRequest.clearDirtyFields();
+        assertTrue(ocrRequest.getDirtyFields().isEmpty());
+    }
+
+}
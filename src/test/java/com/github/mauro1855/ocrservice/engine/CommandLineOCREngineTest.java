@@ -0,0 +1,217 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import com.github.mauro1855.ocrservice.util.ProcessGroup;
+import com.github.mauro1855.ocrservice.util.ProcessRegistry;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.endsWith;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CommandLineOCREngineTest {
+
+    @Mock
+    private Runtime runtime;
+
+    @Mock
+    private Process process;
+
+    private File folder;
+    private File sourceFile;
+    private File targetFile;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        folder = new File(System.getProperty("java.io.tmpdir"), "ocr-engine-test");
+        sourceFile = new File(folder, "250.pdf");
+        targetFile = new File(folder, "250_result.pdf");
+        when(process.getInputStream()).thenReturn(new ByteArrayInputStream("Test".getBytes()));
+        when(process.getErrorStream()).thenReturn(new ByteArrayInputStream("Test".getBytes()));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(folder);
+    }
+
+    @Test
+    public void test_buildCommand() {
+        CommandLineOCREngine engine = new CommandLineOCREngine(runtime, "pypdfocr", "-l eng", false, "");
+
+        assertEquals("pypdfocr -l eng " + sourceFile.getAbsolutePath(), engine.buildCommand(sourceFile, targetFile));
+    }
+
+    @Test
+    public void test_buildCommand_outputRequired() {
+        CommandLineOCREngine engine = new CommandLineOCREngine(runtime, "ocrmypdf", "-l eng", true, "--output");
+
+        assertEquals("ocrmypdf -l eng " + sourceFile.getAbsolutePath() + " --output " + targetFile.getAbsolutePath(),
+            engine.buildCommand(sourceFile, targetFile));
+    }
+
+    @Test
+    public void test_buildCommand_docker() {
+        DockerOCREngine engine = new DockerOCREngine(runtime, "docker run -v !!folder!!:/home/docker ocr", "-l eng", false, "");
+
+        assertEquals("docker run -v " + folder.getAbsolutePath() + File.separator + ":/home/docker ocr -l eng 250.pdf",
+            engine.buildCommand(sourceFile, targetFile));
+    }
+
+    @Test
+    public void test_ocr_outputIsMovedToTarget() throws Exception {
+        CommandLineOCREngine engine = new CommandLineOCREngine(runtime, "pypdfocr", "-l eng", false, "");
+        FileUtils.writeStringToFile(new File(folder, "250_ocr.pdf"), "OCRed");
+        when(runtime.exec(any(String.class))).thenReturn(process);
+        when(process.waitFor(any(Long.class), any())).thenReturn(true);
+        when(process.exitValue()).thenReturn(0);
+
+        OCRResult result = engine.ocr(sourceFile, targetFile, "request 250");
+
+        assertTrue(result.isSuccess());
+        assertEquals("OCRed", FileUtils.readFileToString(targetFile));
+    }
+
+    @Test
+    public void test_ocr_toolFailed() throws Exception {
+        CommandLineOCREngine engine = new CommandLineOCREngine(runtime, "pypdfocr", "-l eng", false, "");
+        when(runtime.exec(any(String.class))).thenReturn(process);
+        when(process.waitFor(any(Long.class), any())).thenReturn(true);
+        when(process.exitValue()).thenReturn(2);
+
+        OCRResult result = engine.ocr(sourceFile, targetFile, "request 250");
+
+        assertEquals(OCRResult.Status.ERROR, result.getStatus());
+        assertFalse(result.isTransient());
+        // the end of the standard error of the tool explains the failure
+        assertEquals("An internal error occured while processing the request 250: Test", result.getMessage());
+    }
+
+    @Test
+    public void test_ocr_toolKilled() throws Exception {
+        CommandLineOCREngine engine = new CommandLineOCREngine(runtime, "pypdfocr", "-l eng", false, "");
+        when(runtime.exec(any(String.class))).thenReturn(process);
+        when(process.waitFor(any(Long.class), any())).thenReturn(true);
+        when(process.exitValue()).thenReturn(137);
+
+        OCRResult result = engine.ocr(sourceFile, targetFile, "request 250");
+
+        // killed by a signal (SIGKILL), another attempt may succeed
+        assertEquals(OCRResult.Status.ERROR, result.getStatus());
+        assertTrue(result.isTransient());
+    }
+
+    @Test
+    public void test_ocr_toolCouldNotStart() throws Exception {
+        CommandLineOCREngine engine = new CommandLineOCREngine(runtime, "pypdfocr", "-l eng", false, "");
+        when(runtime.exec(any(String.class))).thenThrow(new IOException("not found"));
+
+        OCRResult result = engine.ocr(sourceFile, targetFile, "request 250");
+
+        assertEquals(OCRResult.Status.ERROR, result.getStatus());
+        assertTrue(result.isTransient());
+    }
+
+    @Test
+    public void test_ocr_processGroup() throws Exception {
+        assumeTrue(ProcessGroup.isSupported());
+        CommandLineOCREngine engine = new CommandLineOCREngine(Runtime.getRuntime(), "sh", "-c true", false, "");
+        engine.setProcessGroups(true);
+        FileUtils.writeStringToFile(new File(folder, "250_ocr.pdf"), "OCRed");
+
+        OCRResult result = engine.ocr(sourceFile, targetFile, "request 250");
+
+        // the pid file of the group is removed once the tool finished
+        assertTrue(result.isSuccess());
+        assertFalse(new File(sourceFile.getPath() + ProcessGroup.PID_FILE_EXTENSION).exists());
+    }
+
+    @Test
+    public void test_ocr_processGroupStartsToolWithSetsid() throws Exception {
+        assumeTrue(ProcessGroup.isSupported());
+        CommandLineOCREngine engine = new CommandLineOCREngine(runtime, "pypdfocr", "-l eng", false, "");
+        engine.setProcessGroups(true);
+        when(runtime.exec(any(String.class))).thenReturn(process);
+        when(process.waitFor(any(Long.class), any())).thenReturn(true);
+        when(process.exitValue()).thenReturn(2);
+
+        engine.ocr(sourceFile, targetFile, "request 250");
+
+        verify(runtime).exec(endsWith("setsid pypdfocr -l eng " + sourceFile.getAbsolutePath()));
+    }
+
+    @Test
+    public void test_ocr_stalledToolIsAborted() throws Exception {
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+        File script = new File(folder, "stall.sh");
+        FileUtils.writeStringToFile(script, "echo 'page 1'\nsleep 60\n");
+        CommandLineOCREngine engine = new CommandLineOCREngine(Runtime.getRuntime(), "sh", script.getAbsolutePath(), false, "");
+        engine.setTimeoutPolicy(new OCRTimeoutPolicy(60000L, 0L, 60000L, 300L, null));
+
+        long start = System.currentTimeMillis();
+        OCRResult result = engine.ocr(sourceFile, targetFile, "request 250");
+
+        // aborted without waiting for the time-out
+        assertEquals(OCRResult.Status.TIMEOUT, result.getStatus());
+        assertTrue(result.getMessage().startsWith("Request 250 made no progress for 1 second"));
+        assertTrue(System.currentTimeMillis() - start < 10000L);
+    }
+
+    @Test
+    public void test_ocr_suspendedTimeIsNotCounted() throws Exception {
+        assumeTrue(ProcessGroup.isSupported());
+        File script = new File(folder, "sleep.sh");
+        FileUtils.writeStringToFile(script, "sleep 0.6\n");
+        CommandLineOCREngine engine = new CommandLineOCREngine(Runtime.getRuntime(), "sh", script.getAbsolutePath(), false, "");
+        engine.setProcessGroups(true);
+        engine.setTimeoutPolicy(new OCRTimeoutPolicy(1000L, 0L, 1000L, 300L, null));
+
+        OCRResult[] result = new OCRResult[1];
+        Thread thread = new Thread(() -> result[0] = engine.ocr(sourceFile, targetFile, "request 250"));
+        thread.start();
+        ProcessGroup processGroup = null;
+        for(int i = 0; i < 100 && processGroup == null; i++) {
+            Thread.sleep(10);
+            processGroup = ProcessRegistry.getShared().get(thread);
+        }
+
+        // suspended for longer than the time-out and the idle time-out
+        assertNotNull(processGroup);
+        assertTrue(processGroup.suspend());
+        Thread.sleep(1500);
+        processGroup.resume();
+        thread.join(10000);
+
+        assertTrue(result[0].isSuccess());
+        assertNull(ProcessRegistry.getShared().get(thread));
+    }
+
+    @Test
+    public void test_ocr_progressingToolIsNotAborted() throws Exception {
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+        File script = new File(folder, "progress.sh");
+        FileUtils.writeStringToFile(script, "for i in 1 2 3 4 5 6; do echo \"page $i\"; echo noise >&2; sleep 0.2; done\n");
+        CommandLineOCREngine engine = new CommandLineOCREngine(Runtime.getRuntime(), "sh", script.getAbsolutePath(), false, "");
+        engine.setTimeoutPolicy(new OCRTimeoutPolicy(60000L, 0L, 60000L, 600L, Pattern.compile("^page \\d+")));
+
+        OCRResult result = engine.ocr(sourceFile, targetFile, "request 250");
+
+        // the run takes longer than the idle time-out, but shows progress
+        assertTrue(result.isSuccess());
+    }
+
+}
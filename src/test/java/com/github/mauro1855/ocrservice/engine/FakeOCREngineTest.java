@@ -0,0 +1,38 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FakeOCREngineTest {
+
+    @Test
+    public void test_ocr_copiesFileAfterLatency() throws Exception {
+        File sourceFile = File.createTempFile("fake-ocr", ".pdf");
+        File targetFile = new File(sourceFile.getPath().replace(".pdf", "_ocr.pdf"));
+        FileUtils.writeStringToFile(sourceFile, "Test");
+
+        try {
+            long start = System.currentTimeMillis();
+            OCRResult result = new FakeOCREngine(50L).ocr(sourceFile, targetFile, "request 1");
+
+            assertTrue(result.isSuccess());
+            assertTrue(System.currentTimeMillis() - start >= 50L);
+            assertEquals("Test", FileUtils.readFileToString(targetFile));
+        } finally {
+            FileUtils.deleteQuietly(sourceFile);
+            FileUtils.deleteQuietly(targetFile);
+        }
+    }
+
+    @Test
+    public void test_ocr_missingFile() {
+        OCRResult result = new FakeOCREngine(0L).ocr(new File("/does/not/exist.pdf"), new File("/does/not/exist_ocr.pdf"), "request 1");
+
+        assertEquals(OCRResult.Status.ERROR, result.getStatus());
+    }
+
+}
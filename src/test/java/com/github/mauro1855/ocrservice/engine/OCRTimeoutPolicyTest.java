@@ -0,0 +1,66 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class OCRTimeoutPolicyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final OCRTimeoutPolicy policy = new OCRTimeoutPolicy(1000L, 500L, 4000L, 300L, null);
+
+    @Test
+    public void test_getTimeoutMillis_growsWithPages() throws Exception {
+        assertEquals(2500L, policy.getTimeoutMillis(newPdf(3)));
+        // capped
+        assertEquals(4000L, policy.getTimeoutMillis(newPdf(10)));
+    }
+
+    @Test
+    public void test_getTimeoutMillis_estimatedFromSize() throws Exception {
+        File file = folder.newFile("250.pdf");
+        FileUtils.writeByteArrayToFile(file, new byte[300 * 1024]);
+
+        // not a readable PDF, about 3 pages
+        assertEquals(2500L, policy.getTimeoutMillis(file));
+    }
+
+    @Test
+    public void test_default() throws Exception {
+        assertEquals(600000L, OCRTimeoutPolicy.DEFAULT.getTimeoutMillis(newPdf(3)));
+        assertFalse(OCRTimeoutPolicy.DEFAULT.isStalled(0L, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void test_isStalled() {
+        assertFalse(policy.isStalled(1000L, 1299L));
+        assertTrue(policy.isStalled(1000L, 1300L));
+    }
+
+    @Test
+    public void test_describe() {
+        assertEquals("10 minute", OCRTimeoutPolicy.describe(600000L));
+        assertEquals("90 second", OCRTimeoutPolicy.describe(90000L));
+        assertEquals("1 second", OCRTimeoutPolicy.describe(300L));
+    }
+
+    private File newPdf(int pages) throws Exception {
+        File file = folder.newFile();
+        try(PDDocument document = new PDDocument()){
+            for(int i = 0; i < pages; i++){
+                document.addPage(new PDPage());
+            }
+            document.save(file);
+        }
+        return file;
+    }
+}
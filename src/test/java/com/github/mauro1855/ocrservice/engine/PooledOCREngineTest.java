@@ -0,0 +1,129 @@
+package com.github.mauro1855.ocrservice.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class PooledOCREngineTest {
+
+    // answers OK to jobs whose source exists, ERROR otherwise, hangs on "hang" and complains on "broken"
+    private static final String SCRIPT = "while IFS= read -r line; do\n" +
+            "  case \"$line\" in\n" +
+            "    PING) echo PONG ;;\n" +
+            "    hang*) sleep 60 ;;\n" +
+            "    broken*) echo 'bad page 3' >&2; sleep 0.2; echo 'ERROR failed' ;;\n" +
+            "    *) src=$(printf '%s' \"$line\" | cut -f1); echo \"working on $src\";\n" +
+            "       if [ -f \"$src\" ]; then echo OK; else echo \"ERROR missing $src\"; fi ;;\n" +
+            "  esac\n" +
+            "done\n";
+
+    private File script;
+    private File source;
+    private Runtime runtime;
+    private PooledOCREngine pool;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+        script = File.createTempFile("ocr-pool", ".sh");
+        source = File.createTempFile("ocr-pool", ".pdf");
+        FileUtils.writeStringToFile(script, SCRIPT, "UTF-8");
+        runtime = spy(Runtime.getRuntime());
+        pool = new PooledOCREngine(runtime, "sh " + script.getAbsolutePath(), 1, 2);
+    }
+
+    @After
+    public void tearDown() {
+        if(pool != null)
+            pool.shutdown();
+        FileUtils.deleteQuietly(script);
+        FileUtils.deleteQuietly(source);
+    }
+
+    @Test
+    public void test_processIsReused() throws Exception {
+        assertNull(pool.process(source.getAbsolutePath(), "target", 5, TimeUnit.SECONDS));
+        assertNull(pool.process(source.getAbsolutePath(), "target", 5, TimeUnit.SECONDS));
+
+        verify(runtime, times(1)).exec("sh " + script.getAbsolutePath());
+    }
+
+    @Test
+    public void test_processIsRecycledAfterMaxJobs() throws Exception {
+        for(int i = 0; i < 3; i++) {
+            assertNull(pool.process(source.getAbsolutePath(), "target", 5, TimeUnit.SECONDS));
+        }
+
+        verify(runtime, times(2)).exec("sh " + script.getAbsolutePath());
+    }
+
+    @Test
+    public void test_errorIsReturned() throws Exception {
+        String error = pool.process("/does/not/exist.pdf", "target", 5, TimeUnit.SECONDS);
+
+        assertEquals("missing /does/not/exist.pdf", error);
+    }
+
+    @Test
+    public void test_ocr() throws Exception {
+        assertTrue(pool.ocr(source, new File("target"), "request 1").isSuccess());
+
+        OCRResult result = pool.ocr(new File("/does/not/exist.pdf"), new File("target"), "request 2");
+        assertEquals(OCRResult.Status.ERROR, result.getStatus());
+        assertEquals("An internal error occured while processing the request 2: missing /does/not/exist.pdf",
+                result.getMessage());
+    }
+
+    @Test
+    public void test_errorTailIsReported() throws Exception {
+        assertEquals("failed: bad page 3", pool.process("broken", "target", 5, TimeUnit.SECONDS));
+
+        // the tail of a job is not reported with the next one
+        assertEquals("missing /does/not/exist.pdf", pool.process("/does/not/exist.pdf", "target", 5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_timedOutProcessIsReplaced() throws Exception {
+        try {
+            pool.process("hang", "target", 200, TimeUnit.MILLISECONDS);
+            fail("Timeout expected");
+        } catch (TimeoutException ex) {
+            // expected
+        }
+
+        assertNull(pool.process(source.getAbsolutePath(), "target", 5, TimeUnit.SECONDS));
+        verify(runtime, times(2)).exec("sh " + script.getAbsolutePath());
+    }
+
+    @Test
+    public void test_stalledProcessIsReplaced() throws Exception {
+        pool.setTimeoutPolicy(new OCRTimeoutPolicy(60000L, 0L, 60000L, 300L, null));
+
+        long start = System.currentTimeMillis();
+        try {
+            pool.process("hang", "target", 30, TimeUnit.SECONDS);
+            fail("Timeout expected");
+        } catch (TimeoutException ex) {
+            assertEquals("made no progress for 1 second.", ex.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000L);
+
+        // a job that shows progress ("working on ...") answers in time
+        assertNull(pool.process(source.getAbsolutePath(), "target", 5, TimeUnit.SECONDS));
+        verify(runtime, times(2)).exec("sh " + script.getAbsolutePath());
+    }
+
+}
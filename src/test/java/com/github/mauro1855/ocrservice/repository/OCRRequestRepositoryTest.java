@@ -1,11 +1,23 @@
 package com.github.mauro1855.ocrservice.repository;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Map;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.storage.BlobStore;
+import com.github.mauro1855.ocrservice.storage.BlobStore.BlobType;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -14,20 +26,35 @@ import org.springframework.http.HttpMethod;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * Created by mauro1855 on 19/12/2016.
  */
 public class OCRRequestRepositoryTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     private NamedParameterJdbcTemplate foundJdbcTemplate;
 
+    @Mock
+    private BlobStore blobStore;
+
     @Spy
     @InjectMocks
     private OCRRequestRepository ocrRequestRepository;
@@ -38,6 +65,7 @@ public class OCRRequestRepositoryTest {
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
         mockRequest = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        when(foundJdbcTemplate.update(any(String.class), any(MapSqlParameterSource.class))).thenReturn(1);
     }
 
     @Test
@@ -47,7 +75,7 @@ public class OCRRequestRepositoryTest {
 
         ocrRequestRepository.getRequest(mockRequest.getId());
 
-        verify(foundJdbcTemplate).queryForObject(sqlQueryCaptor.capture(), sqlParametersCaptor.capture(), any(RowMapper.class));
+        verify(foundJdbcTemplate).query(sqlQueryCaptor.capture(), sqlParametersCaptor.capture(), any(RowMapper.class));
 
         Map<String, Object> sqlParametersMap = sqlParametersCaptor.getValue().getValues();
         String originalQuery = sqlQueryCaptor.getValue();
@@ -84,18 +112,40 @@ public class OCRRequestRepositoryTest {
         assertFalse(processedQuery.contains(":"));
     }
 
+    @Test
+    public void test_createNewRequest_streamedFile() throws Exception {
+        InputStream fileToOCR = new ByteArrayInputStream("Test".getBytes());
+        mockRequest = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, fileToOCR, 4L);
+
+        // generated key of the new request
+        doAnswer(invocation -> {
+            ((GeneratedKeyHolder) invocation.getArguments()[2]).getKeyList().add(Collections.singletonMap("id", 5L));
+            return 1;
+        }).when(foundJdbcTemplate).update(any(String.class), any(MapSqlParameterSource.class), any(KeyHolder.class), any(String[].class));
+
+        ocrRequestRepository.createNewRequest(mockRequest);
+
+        // the file goes to the blob store, not to the request row
+        verify(blobStore).put(eq(5L), eq(BlobType.FILE_TO_OCR), eq(fileToOCR), eq(4L));
+        verify(foundJdbcTemplate, never()).update(any(String.class), any(MapSqlParameterSource.class));
+        assertEquals(Long.valueOf(5L), mockRequest.getId());
+    }
+
     @Test
     public void test_updateRequest() throws Exception {
         ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
         ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
 
+        mockRequest.clearDirtyFields();
+        mockRequest.setStatusCode((short) 1);
+        mockRequest.setOcredFileByteArray(new byte[] {1});
         ocrRequestRepository.updateRequest(mockRequest);
 
+        // changed columns of the request are updated, the OCRed file goes to the blob store
         verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture());
 
         Map<String, Object> sqlParametersMap = sqlParametersCaptor.getValue().getValues();
-        String originalQuery = sqlQueryCaptor.getValue();
-        String processedQuery = originalQuery;
+        String processedQuery = sqlQueryCaptor.getValue();
 
         for(String key : sqlParametersMap.keySet()){
             processedQuery = processedQuery.replace(":" + key, "something not Relevant");
@@ -103,20 +153,291 @@ public class OCRRequestRepositoryTest {
         // To confirm all parameters were replaced
         assertFalse(processedQuery.contains(":"));
 
+        String requestQuery = sqlQueryCaptor.getValue();
+        assertTrue(requestQuery.contains("status_code"));
+        assertFalse(requestQuery.contains("status_message"));
+        assertFalse(requestQuery.contains("communicated"));
+        assertFalse(requestQuery.contains("ocred_file"));
+
+        verify(blobStore).put(eq(mockRequest.getId()), eq(BlobType.OCRED_FILE), any(InputStream.class), eq(1L));
+        assertTrue(mockRequest.getDirtyFields().isEmpty());
+    }
+
+    @Test
+    public void test_updateRequest_unchanged() throws Exception {
+        mockRequest.clearDirtyFields();
+        ocrRequestRepository.updateRequest(mockRequest);
+
+        verify(foundJdbcTemplate, never()).update(any(String.class), any(MapSqlParameterSource.class));
+    }
+
+    @Test
+    public void test_updateRequest_communicated() throws Exception {
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+
+        mockRequest.clearDirtyFields();
+        mockRequest.communicated();
+        ocrRequestRepository.updateRequest(mockRequest);
+
+        // files are removed once communicated
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), any(MapSqlParameterSource.class));
+        assertTrue(sqlQueryCaptor.getValue().contains("communicated_date"));
+        verify(blobStore).delete(mockRequest.getId());
+        verify(blobStore, never()).put(any(Long.class), any(BlobType.class), any(InputStream.class), any(Long.class));
+    }
+
+    @Test
+    public void test_updateRequest_stopped() throws Exception {
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+        when(foundJdbcTemplate.update(any(String.class), any(MapSqlParameterSource.class))).thenReturn(0);
+        when(foundJdbcTemplate.queryForObject(contains("request_stopped = 'Y'"), any(MapSqlParameterSource.class), eq(Integer.class)))
+                .thenReturn(1);
+
+        mockRequest.clearDirtyFields();
+        mockRequest.setStatusCode((short) 1);
+        mockRequest.setOcredFileByteArray(new byte[] {1});
+
+        // the request was cancelled while it was processed
+        assertFalse(ocrRequestRepository.updateRequest(mockRequest));
+
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), any(MapSqlParameterSource.class));
+        assertTrue(sqlQueryCaptor.getValue().contains("request_stopped = 'N'"));
+        verify(blobStore).delete(mockRequest.getId());
+        assertTrue(mockRequest.getDirtyFields().isEmpty());
+    }
+
+    @Test
+    public void test_updateRequest_claimedByAnotherNode() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+        when(foundJdbcTemplate.update(any(String.class), any(MapSqlParameterSource.class))).thenReturn(0);
+        when(foundJdbcTemplate.queryForObject(contains("request_stopped = 'Y'"), any(MapSqlParameterSource.class), eq(Integer.class)))
+                .thenReturn(0);
+
+        mockRequest.clearDirtyFields();
+        mockRequest.setLeaseOwner("node-1");
+        mockRequest.setStatusCode((short) 1);
+
+        // the lease of the request expired and another node claimed it: its result is dropped
+        assertFalse(ocrRequestRepository.updateRequest(mockRequest));
+
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture());
+        assertTrue(sqlQueryCaptor.getValue().contains("lease_owner <=> :leaseOwner"));
+        assertEquals("node-1", sqlParametersCaptor.getValue().getValue("leaseOwner"));
+        // the files now belong to the other node
+        verify(blobStore, never()).delete(any(Long.class));
+    }
+
+    @Test
+    public void test_stopRequest() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+
+        assertTrue(ocrRequestRepository.stopRequest(5L, "Cancelled"));
+
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture());
+        String processedQuery = sqlQueryCaptor.getValue();
+        for(String key : sqlParametersCaptor.getValue().getValues().keySet()){
+            processedQuery = processedQuery.replace(":" + key, "something not Relevant");
+        }
+        assertFalse(processedQuery.contains(":"));
+        assertTrue(sqlQueryCaptor.getValue().contains("status_code = 0"));
+        verify(blobStore).delete(5L);
+    }
+
+    @Test
+    public void test_stopRequest_alreadyProcessed() throws Exception {
+        when(foundJdbcTemplate.update(any(String.class), any(MapSqlParameterSource.class))).thenReturn(0);
+
+        assertFalse(ocrRequestRepository.stopRequest(5L, "Cancelled"));
+
+        verify(blobStore, never()).delete(any(Long.class));
+    }
+
+    @Test
+    public void test_getUnprocessedRequests() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+
+        ocrRequestRepository.getUnprocessedRequests(0L, 100);
+
+        verify(foundJdbcTemplate).query(sqlQueryCaptor.capture(), sqlParametersCaptor.capture(), any(RowMapper.class));
+
+        // files must not be fetched when restoring the queue
+        assertFalse(sqlQueryCaptor.getValue().contains("*"));
+        assertFalse(sqlQueryCaptor.getValue().contains("file_to_ocr"));
+        assertEquals(100, sqlParametersCaptor.getValue().getValue("pageSize"));
+    }
+
+    @Test
+    public void test_updateRequest_callbackState() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+
+        mockRequest.clearDirtyFields();
+        mockRequest.setCallbackAttempts(2);
+        mockRequest.setCallbackDead(true);
+        ocrRequestRepository.updateRequest(mockRequest);
+
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture());
+
+        String processedQuery = sqlQueryCaptor.getValue();
+        for(String key : sqlParametersCaptor.getValue().getValues().keySet()){
+            processedQuery = processedQuery.replace(":" + key, "something not Relevant");
+        }
+        assertFalse(processedQuery.contains(":"));
+        assertFalse(sqlQueryCaptor.getValue().contains("status_code"));
+        assertEquals(2, sqlParametersCaptor.getValue().getValue("callback_attempts"));
+        assertEquals("Y", sqlParametersCaptor.getValue().getValue("callback_dead"));
+    }
+
+    @Test
+    public void test_claimDueCallbacks() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+        Date claimExpirationDate = new Date();
+
+        ocrRequestRepository.claimDueCallbacks("node1", claimExpirationDate, 50);
+
+        // claimed with a single conditional update
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture());
+        assertTrue(sqlQueryCaptor.getValue().startsWith("UPDATE"));
+        assertTrue(sqlQueryCaptor.getValue().contains("next_callback_date <= :now"));
+        assertTrue(sqlQueryCaptor.getValue().contains("next_callback_date = :claimExpires"));
+        assertEquals("node1", sqlParametersCaptor.getValue().getValue("nodeId"));
+        assertEquals(claimExpirationDate, sqlParametersCaptor.getValue().getValue("claimExpires"));
+        assertEquals(50, sqlParametersCaptor.getValue().getValue("limit"));
     }
 
     @Test
-    public void test_getAllUnprocessedRequests() throws Exception {
-        ocrRequestRepository.getAllUnprocessedRequests();
+    public void test_getClaimedCallbackRequests() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+        Date claimExpirationDate = new Date();
 
-        verify(foundJdbcTemplate).query(any(String.class), any(RowMapper.class));
+        ocrRequestRepository.getClaimedCallbackRequests("node1", claimExpirationDate);
+
+        verify(foundJdbcTemplate).query(sqlQueryCaptor.capture(), sqlParametersCaptor.capture(), any(RowMapper.class));
+
+        // files must not be fetched when scanning the replies
+        assertFalse(sqlQueryCaptor.getValue().contains("*"));
+        assertFalse(sqlQueryCaptor.getValue().contains("ocred_file"));
+        assertTrue(sqlQueryCaptor.getValue().contains("lease_owner = :nodeId AND next_callback_date = :claimExpires"));
+        assertEquals("node1", sqlParametersCaptor.getValue().getValue("nodeId"));
+        assertEquals(claimExpirationDate, sqlParametersCaptor.getValue().getValue("claimExpires"));
     }
 
     @Test
-    public void test_getAllFailedCommunicationRequests() throws Exception {
-        ocrRequestRepository.getAllFailedCommunicationRequests();
+    public void test_renewCallbackClaims() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+        Date claimExpirationDate = new Date();
+
+        ocrRequestRepository.renewCallbackClaims(Arrays.asList(1L, 2L), claimExpirationDate);
+
+        // a later retry date is kept
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture());
+        assertTrue(sqlQueryCaptor.getValue().contains("id IN (:ids)"));
+        assertTrue(sqlQueryCaptor.getValue().contains("next_callback_date < :claimExpires"));
+        assertEquals(Arrays.asList(1L, 2L), sqlParametersCaptor.getValue().getValue("ids"));
+    }
+
+    @Test
+    public void test_copyFileToOCR() throws Exception {
+        File target = folder.newFile();
+        when(blobStore.copyTo(5L, BlobType.FILE_TO_OCR, target)).thenReturn(true);
+
+        assertTrue(ocrRequestRepository.copyFileToOCR(5L, target));
+        assertFalse(ocrRequestRepository.copyOcredFile(5L, target));
+    }
+
+    @Test
+    public void test_updateRequest_streamedOcredFile() throws Exception {
+        File ocredFile = folder.newFile();
+        FileUtils.writeByteArrayToFile(ocredFile, "OCRed".getBytes());
+
+        mockRequest.clearDirtyFields();
+        mockRequest.setOcredFile(ocredFile);
+        ocrRequestRepository.updateRequest(mockRequest);
+
+        // the file is streamed to the blob store, not read in memory
+        verify(blobStore).put(eq(mockRequest.getId()), eq(BlobType.OCRED_FILE), any(InputStream.class), eq(5L));
+        verify(foundJdbcTemplate, never()).update(any(String.class), any(MapSqlParameterSource.class));
+    }
+
+    @Test
+    public void test_claimRequests() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+        Date leaseExpirationDate = new Date();
+
+        ocrRequestRepository.claimRequests("node1", leaseExpirationDate, 10);
+
+        // claimed with a single conditional update
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture());
+
+        String processedQuery = sqlQueryCaptor.getValue();
+        for(String key : sqlParametersCaptor.getValue().getValues().keySet()){
+            processedQuery = processedQuery.replace(":" + key, "something not Relevant");
+        }
+        assertFalse(processedQuery.contains(":"));
+        assertTrue(sqlQueryCaptor.getValue().startsWith("UPDATE"));
+        assertTrue(sqlQueryCaptor.getValue().contains("lease_expires < :now"));
+        assertEquals("node1", sqlParametersCaptor.getValue().getValue("nodeId"));
+        assertEquals(leaseExpirationDate, sqlParametersCaptor.getValue().getValue("leaseExpires"));
+        assertEquals(10, sqlParametersCaptor.getValue().getValue("limit"));
+    }
+
+    @Test
+    public void test_getLeasedRequests() throws Exception {
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+
+        ocrRequestRepository.getLeasedRequests("node1");
+
+        verify(foundJdbcTemplate).query(sqlQueryCaptor.capture(), any(MapSqlParameterSource.class), any(RowMapper.class));
+
+        // files must not be fetched when claiming requests
+        assertFalse(sqlQueryCaptor.getValue().contains("*"));
+        assertTrue(sqlQueryCaptor.getValue().contains("lease_owner = :nodeId"));
+    }
+
+    @Test
+    public void test_startProcessing() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+        mockRequest.setId(5L);
+        mockRequest.setLeaseOwner("node1");
+        mockRequest.startOCR();
+        when(foundJdbcTemplate.update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture())).thenReturn(1);
+
+        assertTrue(ocrRequestRepository.startProcessing(mockRequest));
+
+        // only started if still pending and leased to the same node
+        assertTrue(sqlQueryCaptor.getValue().contains("status_code = 0"));
+        assertTrue(sqlQueryCaptor.getValue().contains("lease_owner <=> :leaseOwner"));
+        assertEquals("node1", sqlParametersCaptor.getValue().getValue("leaseOwner"));
+        assertEquals(1, mockRequest.getProcessingAttempts());
+    }
+
+    @Test
+    public void test_startProcessing_noLongerPending() throws Exception {
+        when(foundJdbcTemplate.update(any(String.class), any(MapSqlParameterSource.class))).thenReturn(0);
+
+        assertFalse(ocrRequestRepository.startProcessing(mockRequest));
+        assertEquals(0, mockRequest.getProcessingAttempts());
+    }
+
+    @Test
+    public void test_updateRequest_ocredFileStoredFirst() throws Exception {
+        mockRequest.clearDirtyFields();
+        mockRequest.setStatusCode((short) 1);
+        mockRequest.setOcredFileByteArray(new byte[] {1});
+        ocrRequestRepository.updateRequest(mockRequest);
 
-        verify(foundJdbcTemplate).query(any(String.class), any(RowMapper.class));
+        // a request found processed always has its OCRed file
+        InOrder inOrder = inOrder(blobStore, foundJdbcTemplate);
+        inOrder.verify(blobStore).put(eq(mockRequest.getId()), eq(BlobType.OCRED_FILE), any(InputStream.class), eq(1L));
+        inOrder.verify(foundJdbcTemplate).update(any(String.class), any(MapSqlParameterSource.class));
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,274 @@
+package com.github.mauro1855.ocrservice.service;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpMethod;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class OCRCallbackDispatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private OCRCallbackService ocrCallbackService;
+
+    @Mock
+    private OCRRequestRepository ocrRequestRepository;
+
+    @Mock
+    private OCRClusterService ocrClusterService;
+
+    @InjectMocks
+    private OCRCallbackDispatcher ocrCallbackDispatcher;
+
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ocrCallbackDispatcher.setCallbackPoolThreads(2);
+        ocrCallbackDispatcher.setCallbackQueueSize(1);
+        ocrCallbackDispatcher.setCallbackMaxPerHost(1);
+        ocrCallbackDispatcher.setCallbackMaxPendingPerHost(1);
+        ocrCallbackDispatcher.setCallbackRetryBatchSize(10);
+        ocrCallbackDispatcher.setCallbackClaimDuration(300000L);
+        ocrCallbackDispatcher.init();
+        when(ocrClusterService.getNodeId()).thenReturn("node1");
+
+        // replies block until released
+        release = new CountDownLatch(1);
+        doAnswer(invocation -> release.await(5, TimeUnit.SECONDS)).when(ocrCallbackService).replyToRequest(any(OCRRequest.class));
+    }
+
+    @After
+    public void tearDown(){
+        release.countDown();
+        ocrCallbackDispatcher.shutdown();
+    }
+
+    private OCRRequest request(long id, String endpoint){
+        OCRRequest request = new OCRRequest("ref", endpoint, HttpMethod.POST, (short) 1, new byte[0]);
+        request.setId(id);
+        return request;
+    }
+
+    // the replies claimed by the next run of the retry job
+    private void mockClaimedReplies(OCRRequest... requests){
+        when(ocrRequestRepository.claimDueCallbacks(eq("node1"), any(Date.class), eq(10))).thenReturn(requests.length);
+        when(ocrRequestRepository.getClaimedCallbackRequests(eq("node1"), any(Date.class))).thenReturn(Arrays.asList(requests));
+    }
+
+    @Test
+    public void test_dispatch_repliesInCallbackThread(){
+        OCRRequest request = request(1L, "http://client-a/callback");
+        release.countDown();
+
+        ocrCallbackDispatcher.dispatch(request);
+
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(request);
+        verify(ocrRequestRepository, never()).updateRequest(request);
+    }
+
+    @Test
+    public void test_dispatch_tooManyCallbacksToSameHost(){
+        OCRRequest first = request(1L, "http://client-a/callback");
+        OCRRequest second = request(2L, "http://CLIENT-A/other");
+
+        ocrCallbackDispatcher.dispatch(first);
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(first);
+        ocrCallbackDispatcher.dispatch(second);
+
+        // second reply waits for the first one
+        verify(ocrCallbackService, after(200).never()).replyToRequest(second);
+        release.countDown();
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(second);
+        verify(ocrRequestRepository, never()).updateRequest(any(OCRRequest.class));
+    }
+
+    @Test
+    public void test_dispatch_queueFull(){
+        ocrCallbackDispatcher.dispatch(request(1L, "http://client-a/callback"));
+        ocrCallbackDispatcher.dispatch(request(2L, "http://client-b/callback"));
+        verify(ocrCallbackService, timeout(5000).times(2)).replyToRequest(any(OCRRequest.class));
+
+        ocrCallbackDispatcher.dispatch(request(3L, "http://client-c/callback"));
+        OCRRequest waiting = request(4L, "http://client-d/callback");
+        ocrCallbackDispatcher.dispatch(waiting);
+
+        // the reply waits until a reply ends, instead of being left to the retry job
+        verify(ocrCallbackService, after(200).never()).replyToRequest(waiting);
+        release.countDown();
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(waiting);
+        verify(ocrRequestRepository, never()).updateRequest(any(OCRRequest.class));
+    }
+
+    @Test
+    public void test_dispatch_tooManyRepliesWaitingForHost(){
+        OCRRequest first = request(1L, "http://client-a/callback");
+        OCRRequest waiting = request(2L, "http://client-a/callback");
+        OCRRequest extra = request(3L, "http://client-a/callback");
+        ocrCallbackDispatcher.dispatch(first);
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(first);
+        ocrCallbackDispatcher.dispatch(waiting);
+
+        ocrCallbackDispatcher.dispatch(extra);
+
+        // the queue of the host is full, the reply is left to the retry job
+        verify(ocrRequestRepository).updateRequest(extra);
+        release.countDown();
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(waiting);
+        verify(ocrCallbackService, after(200).never()).replyToRequest(extra);
+    }
+
+    @Test
+    public void test_processReplyQueue_skipsRepliesOfProcessedRequests(){
+        OCRRequest request = request(1L, "http://client-a/callback");
+        ocrCallbackDispatcher.dispatch(request);
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(request);
+
+        // the reply stored as due by the worker is already in progress
+        mockClaimedReplies(request(1L, "http://client-a/callback"));
+        ocrCallbackDispatcher.processReplyQueue();
+        release.countDown();
+
+        verify(ocrCallbackService, after(200).times(1)).replyToRequest(any(OCRRequest.class));
+    }
+
+    @Test
+    public void test_shutdown_postponesWaitingReplies(){
+        OCRRequest first = request(1L, "http://client-a/callback");
+        OCRRequest waiting = request(2L, "http://client-a/callback");
+        ocrCallbackDispatcher.dispatch(first);
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(first);
+        ocrCallbackDispatcher.dispatch(waiting);
+
+        ocrCallbackDispatcher.shutdown();
+
+        verify(ocrRequestRepository).updateRequest(waiting);
+        assertTrue(waiting.isCommunicationAttempted());
+        assertFalse(waiting.isCommunicated());
+        // due right away, for any node
+        assertFalse(waiting.getNextCallbackDate().after(new Date()));
+        release.countDown();
+        verify(ocrCallbackService, after(200).never()).replyToRequest(waiting);
+    }
+
+    @Test
+    public void test_dispatch_afterShutdownPostponesReply(){
+        ocrCallbackDispatcher.shutdown();
+        OCRRequest request = request(1L, "http://client-a/callback");
+
+        ocrCallbackDispatcher.dispatch(request);
+
+        verify(ocrRequestRepository).updateRequest(request);
+        verify(ocrCallbackService, never()).replyToRequest(request);
+    }
+
+    @Test
+    public void test_processReplyQueue_repliesThroughPool(){
+        OCRRequest first = request(1L, "http://client-a/callback");
+        OCRRequest second = request(2L, "http://client-a/callback");
+        mockClaimedReplies(first, second);
+
+        ocrCallbackDispatcher.processReplyQueue();
+
+        // the due replies are limited by host like the others
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(first);
+        verify(ocrCallbackService, after(200).never()).replyToRequest(second);
+
+        // a reply still waiting is not queued twice
+        mockClaimedReplies(request(1L, "http://client-a/callback"), request(2L, "http://client-a/callback"));
+        ocrCallbackDispatcher.processReplyQueue();
+        release.countDown();
+
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(second);
+        verify(ocrCallbackService, after(200).times(2)).replyToRequest(any(OCRRequest.class));
+    }
+
+    @Test
+    public void test_processReplyQueue_nothingClaimed(){
+        when(ocrRequestRepository.claimDueCallbacks(eq("node1"), any(Date.class), eq(10))).thenReturn(0);
+
+        ocrCallbackDispatcher.processReplyQueue();
+
+        verify(ocrRequestRepository, never()).getClaimedCallbackRequests(any(String.class), any(Date.class));
+        verify(ocrRequestRepository, never()).renewCallbackClaims(any(Collection.class), any(Date.class));
+    }
+
+    @Test
+    public void test_processReplyQueue_renewsClaimsOfRepliesInProgress(){
+        OCRRequest request = request(1L, "http://client-a/callback");
+        ocrCallbackDispatcher.dispatch(request);
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(request);
+
+        ocrCallbackDispatcher.processReplyQueue();
+
+        // renewed up to the end of the new claim
+        ArgumentCaptor<Date> claimCaptor = ArgumentCaptor.forClass(Date.class);
+        verify(ocrRequestRepository).renewCallbackClaims(eq(Collections.singletonList(1L)), claimCaptor.capture());
+        verify(ocrRequestRepository).claimDueCallbacks("node1", claimCaptor.getValue(), 10);
+    }
+
+    @Test
+    public void test_claimReply(){
+        OCRRequest request = request(1L, "http://client-a/callback");
+        long now = System.currentTimeMillis();
+
+        ocrCallbackDispatcher.claimReply(request);
+
+        // due at the end of the claim, in whole seconds
+        assertTrue(request.isCommunicationAttempted());
+        assertEquals(0L, request.getNextCallbackDate().getTime() % 1000L);
+        assertTrue(request.getNextCallbackDate().getTime() > now + 299000L);
+        assertTrue(request.getNextCallbackDate().getTime() <= System.currentTimeMillis() + 300000L);
+    }
+
+    @Test
+    public void test_dispatch_removesOcredFile() throws Exception {
+        File ocredFile = folder.newFile("1_ocr.pdf");
+        OCRRequest request = request(1L, "http://client-a/callback");
+        request.setOcredFile(ocredFile);
+        release.countDown();
+
+        ocrCallbackDispatcher.dispatch(request);
+
+        verify(ocrCallbackService, timeout(5000)).replyToRequest(request);
+        for(int i = 0; i < 50 && ocredFile.exists(); i++)
+            Thread.sleep(100);
+        assertFalse(ocredFile.exists());
+    }
+
+    @Test
+    public void test_dispatch_pullModeRemovesOcredFile() throws Exception {
+        File ocredFile = folder.newFile("1_ocr.pdf");
+        OCRRequest request = request(1L, null);
+        request.setOcredFile(ocredFile);
+
+        ocrCallbackDispatcher.dispatch(request);
+
+        assertFalse(ocredFile.exists());
+        verify(ocrCallbackService, never()).replyToRequest(request);
+    }
+}
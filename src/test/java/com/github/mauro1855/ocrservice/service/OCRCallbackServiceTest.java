@@ -1,23 +1,36 @@
 package com.github.mauro1855.ocrservice.service;
 
+import java.io.File;
+
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
 import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import org.apache.commons.io.FileUtils;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -25,6 +38,9 @@ import static org.mockito.Mockito.when;
  */
 public class OCRCallbackServiceTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     private OCRRequestRepository ocrRequestRepository;
 
@@ -38,6 +54,17 @@ public class OCRCallbackServiceTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        ocrCallbackService.setCallbackRetryMaxAttempts(3);
+        ocrCallbackService.setCallbackRetryInitialDelay(1000L);
+        ocrCallbackService.setCallbackRetryMaxDelay(10000L);
+        ocrCallbackService.setCallbackBreakerFailures(2);
+        ocrCallbackService.setCallbackBreakerOpenTime(60000L);
+        ocrCallbackService.setCallbackBreakerSlowTime(60000L);
+    }
+
+    private void mockResponse(HttpStatus status){
+        when(restTemplate.exchange(any(String.class), any(HttpMethod.class), any(HttpEntity.class), eq(String.class)))
+                .thenReturn(new ResponseEntity<>(status));
     }
 
     @Test
@@ -72,4 +99,126 @@ public class OCRCallbackServiceTest {
 
     }
 
+    @Test
+    public void test_replyToRequest_failureDelaysNextAttempt() throws Exception {
+
+        OCRRequest mockRequest = new OCRRequest("test", "http://client/test", HttpMethod.POST, (short) 1, null);
+        mockResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+
+        long before = System.currentTimeMillis();
+        ocrCallbackService.replyToRequest(mockRequest);
+
+        assertEquals(1, mockRequest.getCallbackAttempts());
+        assertFalse(mockRequest.isCallbackDead());
+        // first delay is between half and the whole initial delay
+        long delay = mockRequest.getNextCallbackDate().getTime() - before;
+        assertTrue(delay >= 500L && delay <= 1000L + (System.currentTimeMillis() - before));
+        verify(ocrRequestRepository).updateRequest(mockRequest);
+    }
+
+    @Test
+    public void test_replyToRequest_deadAfterMaxAttempts() throws Exception {
+
+        OCRRequest mockRequest = new OCRRequest("test", "http://client/test", HttpMethod.POST, (short) 1, null);
+        mockRequest.setCallbackAttempts(2);
+        mockResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+
+        ocrCallbackService.replyToRequest(mockRequest);
+
+        assertEquals(3, mockRequest.getCallbackAttempts());
+        assertTrue(mockRequest.isCallbackDead());
+        assertNull(mockRequest.getNextCallbackDate());
+    }
+
+    @Test
+    public void test_replyToRequest_circuitOpen() throws Exception {
+
+        mockResponse(HttpStatus.INTERNAL_SERVER_ERROR);
+        ocrCallbackService.replyToRequest(new OCRRequest("test", "http://client/a", HttpMethod.POST, (short) 1, null));
+        ocrCallbackService.replyToRequest(new OCRRequest("test", "http://client/b", HttpMethod.POST, (short) 1, null));
+
+        // the host failed twice, the third reply is not attempted nor counted
+        OCRRequest mockRequest = new OCRRequest("test", "http://client/c", HttpMethod.POST, (short) 1, null);
+        ocrCallbackService.replyToRequest(mockRequest);
+
+        verify(restTemplate, times(2)).exchange(any(String.class), any(HttpMethod.class), any(HttpEntity.class), eq(String.class));
+        assertEquals(0, mockRequest.getCallbackAttempts());
+        assertTrue(mockRequest.isCommunicationAttempted());
+        assertTrue(mockRequest.getNextCallbackDate().getTime() > System.currentTimeMillis());
+
+        // other hosts are not affected
+        mockResponse(HttpStatus.OK);
+        OCRRequest otherHost = new OCRRequest("test", "http://other/c", HttpMethod.POST, (short) 1, null);
+        ocrCallbackService.replyToRequest(otherHost);
+        assertTrue(otherHost.isCommunicated());
+    }
+
+    @Test
+    public void test_replyToRequest_slowRepliesOpenCircuit() throws Exception {
+
+        ocrCallbackService.setCallbackBreakerSlowTime(0L);
+        when(restTemplate.exchange(any(String.class), any(HttpMethod.class), any(HttpEntity.class), eq(String.class)))
+                .thenAnswer(invocation -> {
+                    Thread.sleep(20);
+                    return new ResponseEntity<>(HttpStatus.OK);
+                });
+        OCRRequest first = new OCRRequest("test", "http://client/a", HttpMethod.POST, (short) 1, null);
+        ocrCallbackService.replyToRequest(first);
+        ocrCallbackService.replyToRequest(new OCRRequest("test", "http://client/b", HttpMethod.POST, (short) 1, null));
+
+        // the slow replies were received, but the host is no longer called
+        assertTrue(first.isCommunicated());
+        assertEquals(0, first.getCallbackAttempts());
+        OCRRequest mockRequest = new OCRRequest("test", "http://client/c", HttpMethod.POST, (short) 1, null);
+        ocrCallbackService.replyToRequest(mockRequest);
+
+        verify(restTemplate, times(2)).exchange(any(String.class), any(HttpMethod.class), any(HttpEntity.class), eq(String.class));
+        assertFalse(mockRequest.isCommunicated());
+        assertTrue(mockRequest.getNextCallbackDate().getTime() > System.currentTimeMillis());
+    }
+
+    @Test
+    public void test_replyToRequest_loadsFileOfRetriedRequest() throws Exception {
+
+        OCRRequest mockRequest = new OCRRequest("test", "http://client/test", HttpMethod.POST, (short) 1, null);
+        mockRequest.setId(7L);
+        mockRequest.setStatusCode((short) 1);
+        when(ocrRequestRepository.copyOcredFile(eq(7L), any(File.class))).thenAnswer(invocation -> {
+            FileUtils.writeStringToFile((File) invocation.getArguments()[1], "test", "UTF-8");
+            return true;
+        });
+        mockResponse(HttpStatus.OK);
+
+        ocrCallbackService.replyToRequest(mockRequest);
+
+        verify(ocrRequestRepository).copyOcredFile(eq(7L), any(File.class));
+        verify(ocrRequestRepository).updateRequest(mockRequest);
+        assertTrue(mockRequest.isCommunicated());
+        // the file loaded for the reply is not written back
+        assertNull(mockRequest.getOcredFileByteArray());
+        assertFalse(mockRequest.getDirtyFields().contains(OCRRequest.Field.OCRED_FILE));
+    }
+
+    @Test
+    public void test_replyToRequest_sendsWorkerFile() throws Exception {
+
+        File ocredFile = folder.newFile("7_ocr.pdf");
+        FileUtils.writeStringToFile(ocredFile, "test", "UTF-8");
+        OCRRequest mockRequest = new OCRRequest("test", "http://client/test", HttpMethod.POST, (short) 1, null);
+        mockRequest.setId(7L);
+        mockRequest.setStatusCode((short) 1);
+        mockRequest.setOcredFile(ocredFile);
+        mockResponse(HttpStatus.OK);
+
+        ocrCallbackService.replyToRequest(mockRequest);
+
+        // the file is streamed from where the worker left it, not fetched again
+        ArgumentCaptor<HttpEntity> entityCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(restTemplate).exchange(eq("http://client/test"), eq(HttpMethod.POST), entityCaptor.capture(), eq(String.class));
+        Object filePart = ((MultiValueMap) entityCaptor.getValue().getBody()).getFirst("file");
+        assertEquals(ocredFile, ((FileSystemResource) filePart).getFile());
+        verify(ocrRequestRepository, never()).copyOcredFile(any(Long.class), any(File.class));
+        assertTrue(mockRequest.isCommunicated());
+    }
+
 }
@@ -0,0 +1,236 @@
+package com.github.mauro1855.ocrservice.service;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.repository.OCRNodeRepository;
+import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import com.github.mauro1855.ocrservice.util.OCRThreadPoolExecutor;
+import com.github.mauro1855.ocrservice.worker.OCRRequestWorker;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpMethod;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class OCRClusterServiceTest {
+
+    @Mock
+    private OCRRequestWorker ocrRequestWorker;
+
+    @Mock
+    private OCRRequestRepository ocrRequestRepository;
+
+    @Mock
+    private OCRNodeRepository ocrNodeRepository;
+
+    @Mock
+    private OCRThreadPoolExecutor priorityExecutor;
+
+    @Mock
+    private OCRCompletionNotifier ocrCompletionNotifier;
+
+    @InjectMocks
+    private OCRClusterService ocrClusterService;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ocrClusterService.setClusterEnabled(true);
+        ocrClusterService.setNodeId("node1");
+        ocrClusterService.setMaxLeasedRequests(2);
+        ocrClusterService.setLeaseDuration(60000L);
+        ocrClusterService.setNodeTimeout(30000L);
+        setIntervals(60000L);
+    }
+
+    private void setIntervals(long interval) {
+        for(String field : new String[] {"claimInterval", "leaseRenewInterval", "heartbeatInterval", "orphanScanInterval",
+                "completionPollInterval"})
+            ReflectionTestUtils.setField(ocrClusterService, field, interval);
+    }
+
+    private OCRRequest newRequest(Long id) {
+        OCRRequest request = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        request.setId(id);
+        return request;
+    }
+
+    @Test
+    public void test_init_defaultNodeId() throws Exception {
+        ocrClusterService.setNodeId("");
+        ocrClusterService.init();
+        ocrClusterService.shutdown();
+
+        assertTrue(ocrClusterService.getNodeId().contains("@"));
+    }
+
+    @Test
+    public void test_leaseNewRequest() throws Exception {
+        OCRRequest request = newRequest(null);
+
+        ocrClusterService.leaseNewRequest(request);
+
+        assertEquals("node1", request.getLeaseOwner());
+        assertNotNull(request.getLeaseExpirationDate());
+        assertTrue(request.getLeaseExpirationDate().after(new Date()));
+    }
+
+    @Test
+    public void test_claimRequests() throws Exception {
+        OCRRequest first = newRequest(3L);
+        OCRRequest second = newRequest(7L);
+        when(ocrRequestRepository.getLeasedRequests("node1")).thenReturn(Arrays.asList(first, second));
+
+        ocrClusterService.claimRequests();
+        ocrClusterService.claimRequests();
+
+        // claims up to the maximum, then only checks its requests
+        verify(ocrRequestRepository).claimRequests(eq("node1"), any(Date.class), eq(2));
+        verify(ocrRequestRepository, times(2)).getLeasedRequests("node1");
+        // every request is submitted once
+        verify(priorityExecutor, times(2)).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void test_claimRequests_processedRequestsForgotten() throws Exception {
+        ocrClusterService.submitLeasedRequest(newRequest(3L));
+        ocrClusterService.submitLeasedRequest(newRequest(7L));
+        when(ocrRequestRepository.getLeasedRequests("node1")).thenReturn(Collections.singletonList(newRequest(7L)));
+
+        ocrClusterService.claimRequests();
+        ocrClusterService.claimRequests();
+
+        // the slot of the processed request is claimed again
+        verify(ocrRequestRepository).claimRequests(eq("node1"), any(Date.class), eq(1));
+        verify(priorityExecutor, times(2)).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void test_disabled() throws Exception {
+        ocrClusterService.setClusterEnabled(false);
+
+        ocrClusterService.claimRequests();
+        ocrClusterService.renewLeases();
+        ocrClusterService.heartbeat();
+        ocrClusterService.releaseOrphanRequests();
+        ocrClusterService.shutdown();
+
+        verifyZeroInteractions(ocrRequestRepository, ocrNodeRepository);
+        verify(priorityExecutor, never()).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void test_renewLeases() throws Exception {
+        ocrClusterService.renewLeases();
+
+        verify(ocrRequestRepository).renewLeases(eq("node1"), any(Date.class));
+        verify(ocrRequestRepository, never()).claimRequests(anyString(), any(Date.class), anyInt());
+    }
+
+    @Test
+    public void test_heartbeat() throws Exception {
+        ocrClusterService.heartbeat();
+
+        verify(ocrNodeRepository).heartbeat("node1");
+    }
+
+    @Test
+    public void test_releaseOrphanRequests() throws Exception {
+        ArgumentCaptor<Date> deadlineCaptor = ArgumentCaptor.forClass(Date.class);
+        long now = System.currentTimeMillis();
+
+        ocrClusterService.releaseOrphanRequests();
+
+        // the requests of the nodes without heartbeat since the node timeout
+        verify(ocrRequestRepository).releaseOrphanLeases(deadlineCaptor.capture());
+        verify(ocrNodeRepository).removeDeadNodes(deadlineCaptor.getValue());
+        assertTrue(deadlineCaptor.getValue().getTime() <= now - 30000L + 1000L);
+        assertTrue(deadlineCaptor.getValue().getTime() >= now - 30000L);
+    }
+
+    @Test
+    public void test_pollCompletedRequests() throws Exception {
+        OCRRequest processed = newRequest(1L);
+        processed.setStatusCode((short) 1);
+        OCRRequest pending = newRequest(2L);
+        pending.setStatusCode((short) 0);
+        when(ocrCompletionNotifier.getAwaitedRequests()).thenReturn(new HashSet<>(Arrays.asList(1L, 2L, 3L)));
+        when(ocrRequestRepository.getRequest(1L)).thenReturn(processed);
+        when(ocrRequestRepository.getRequest(2L)).thenReturn(pending);
+
+        ocrClusterService.pollCompletedRequests();
+
+        // only the clients of the requests processed (by any node) are notified
+        verify(ocrCompletionNotifier).requestCompleted(processed);
+        verify(ocrCompletionNotifier, never()).requestCompleted(pending);
+    }
+
+    @Test
+    public void test_shutdown() throws Exception {
+        ocrClusterService.shutdown();
+
+        verify(ocrRequestRepository).releaseLeases("node1");
+        verify(ocrNodeRepository).removeNode("node1");
+    }
+
+    @Test
+    public void test_init_heartbeatBeforeClaims() throws Exception {
+        setIntervals(10L);
+        List<String> calls = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> calls.add("heartbeat " + Thread.currentThread().getName())).when(ocrNodeRepository).heartbeat("node1");
+        when(ocrRequestRepository.claimRequests(anyString(), any(Date.class), anyInt())).thenAnswer(invocation -> {
+            calls.add("claim");
+            return 0;
+        });
+
+        ocrClusterService.init();
+        try {
+            // registered by init itself, so before any request is leased
+            verify(ocrRequestRepository, timeout(2000).atLeastOnce()).claimRequests(anyString(), any(Date.class), anyInt());
+            assertEquals("heartbeat " + Thread.currentThread().getName(), calls.get(0));
+        } finally {
+            ocrClusterService.shutdown();
+        }
+    }
+
+    @Test
+    public void test_init_heartbeatsNotDelayedBySlowJobs() throws Exception {
+        setIntervals(10L);
+        when(ocrRequestRepository.claimRequests(anyString(), any(Date.class), anyInt())).thenAnswer(invocation -> {
+            Thread.sleep(5000);
+            return 0;
+        });
+
+        ocrClusterService.init();
+        try {
+            // the claim is stuck, the node still sends heartbeats
+            verify(ocrNodeRepository, timeout(2000).atLeast(3)).heartbeat("node1");
+        } finally {
+            ocrClusterService.shutdown();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.github.mauro1855.ocrservice.service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
@@ -15,10 +17,15 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.springframework.http.HttpMethod;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -36,6 +43,12 @@ public class OCRRequestServiceTest {
     @Mock
     private OCRThreadPoolExecutor priorityExecutor;
 
+    @Mock
+    private OCRClusterService ocrClusterService;
+
+    @Mock
+    private OCRCompletionNotifier ocrCompletionNotifier;
+
 
     @Spy
     @InjectMocks
@@ -47,17 +60,39 @@ public class OCRRequestServiceTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(ocrRequestService, "restorePageSize", 2);
         mockRequest = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
     }
 
     @Test
     public void test_restoreRequestsFromLastSession() throws Exception {
 
-        when(ocrRequestRepository.getAllUnprocessedRequests()).thenReturn(new ArrayList<>());
+        when(ocrRequestRepository.getUnprocessedRequests(0L, 2)).thenReturn(new ArrayList<>());
+
+        ocrRequestService.restoreRequestsFromLastSession();
+
+        verify(ocrRequestRepository).getUnprocessedRequests(0L, 2);
+
+    }
+
+    @Test
+    public void test_restoreRequestsFromLastSession_paged() throws Exception {
+
+        OCRRequest first = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        first.setId(3L);
+        OCRRequest second = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        second.setId(7L);
+        OCRRequest third = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        third.setId(9L);
+
+        when(ocrRequestRepository.getUnprocessedRequests(0L, 2)).thenReturn(Arrays.asList(first, second));
+        when(ocrRequestRepository.getUnprocessedRequests(7L, 2)).thenReturn(Collections.singletonList(third));
 
         ocrRequestService.restoreRequestsFromLastSession();
 
-        verify(ocrRequestRepository).getAllUnprocessedRequests();
+        verify(ocrRequestRepository).getUnprocessedRequests(0L, 2);
+        verify(ocrRequestRepository).getUnprocessedRequests(7L, 2);
+        verify(priorityExecutor, times(3)).submit(any(Runnable.class));
 
     }
 
@@ -92,4 +127,76 @@ public class OCRRequestServiceTest {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void test_restoreRequestsFromLastSession_clustered() throws Exception {
+
+        when(ocrClusterService.isClusterEnabled()).thenReturn(true);
+
+        ocrRequestService.restoreRequestsFromLastSession();
+
+        // pending requests are claimed by the nodes instead
+        verify(ocrRequestRepository, never()).getUnprocessedRequests(any(Long.class), any(Integer.class));
+
+    }
+
+    @Test
+    public void test_registerNewOCRRequest_clustered() throws Exception {
+
+        mockRequest.setId(2L);
+        when(ocrClusterService.isClusterEnabled()).thenReturn(true);
+
+        ocrRequestService.registerNewOCRRequest(mockRequest);
+
+        verify(ocrClusterService).leaseNewRequest(mockRequest);
+        verify(ocrRequestRepository).createNewRequest(mockRequest);
+        verify(ocrClusterService).submitLeasedRequest(mockRequest);
+        verify(priorityExecutor, never()).submit(any(Runnable.class));
+
+    }
+
+    @Test
+    public void test_cancelRequest_queued() throws Exception {
+
+        mockRequest.setId(2L);
+        when(ocrRequestRepository.stopRequest(2L, OCRRequestService.CANCELLED_MESSAGE)).thenReturn(true);
+        when(priorityExecutor.cancel(2L)).thenReturn(true);
+
+        assertTrue(ocrRequestService.cancelRequest(mockRequest));
+
+        verify(ocrRequestWorker, never()).cancel(any(Long.class));
+        verify(ocrCompletionNotifier).requestCompleted(mockRequest);
+        assertEquals(Short.valueOf((short) -1), mockRequest.getStatusCode());
+        assertEquals(OCRRequestService.CANCELLED_MESSAGE, mockRequest.getStatusMessage());
+
+    }
+
+    @Test
+    public void test_cancelRequest_running() throws Exception {
+
+        mockRequest.setId(2L);
+        when(ocrRequestRepository.stopRequest(2L, OCRRequestService.CANCELLED_MESSAGE)).thenReturn(true);
+        when(priorityExecutor.cancel(2L)).thenReturn(false);
+        when(ocrRequestWorker.cancel(2L)).thenReturn(true);
+
+        assertTrue(ocrRequestService.cancelRequest(mockRequest));
+
+        verify(ocrRequestWorker).cancel(2L);
+        verify(ocrCompletionNotifier).requestCompleted(mockRequest);
+
+    }
+
+    @Test
+    public void test_cancelRequest_alreadyProcessed() throws Exception {
+
+        mockRequest.setId(2L);
+        when(ocrRequestRepository.stopRequest(2L, OCRRequestService.CANCELLED_MESSAGE)).thenReturn(false);
+
+        assertFalse(ocrRequestService.cancelRequest(mockRequest));
+
+        verify(priorityExecutor, never()).cancel(any(Long.class));
+        verify(ocrRequestWorker, never()).cancel(any(Long.class));
+        verify(ocrCompletionNotifier, never()).requestCompleted(any(OCRRequest.class));
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.github.mauro1855.ocrservice.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.repository.OCRResultCacheRepository;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.http.HttpMethod;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OCRResultCacheServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private OCRResultCacheRepository ocrResultCacheRepository;
+
+    @Spy
+    @InjectMocks
+    private OCRResultCacheService ocrResultCacheService;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ocrResultCacheService.setCacheEnabled(true);
+        ocrResultCacheService.setCacheMaxSize(100L);
+        ocrResultCacheService.setCacheMaxEntrySize(50L);
+    }
+
+    @Test
+    public void test_getCacheKey(){
+        String key = ocrResultCacheService.getCacheKey("hash", "pypdfocr|-l eng");
+
+        assertEquals(key, ocrResultCacheService.getCacheKey("hash", "pypdfocr|-l eng"));
+        assertNotEquals(key, ocrResultCacheService.getCacheKey("hash", "pypdfocr|-l fra"));
+        assertNotEquals(key, ocrResultCacheService.getCacheKey("other", "pypdfocr|-l eng"));
+        assertNull(ocrResultCacheService.getCacheKey(null, "pypdfocr|-l eng"));
+    }
+
+    @Test
+    public void test_getCacheKey_disabled(){
+        ocrResultCacheService.setCacheEnabled(false);
+
+        assertNull(ocrResultCacheService.getCacheKey("hash", "pypdfocr|-l eng"));
+    }
+
+    @Test
+    public void test_identicalRequestsAreAttached(){
+        OCRRequest first = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        OCRRequest second = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+
+        assertTrue(ocrResultCacheService.startProcessing("key", first));
+        assertFalse(ocrResultCacheService.startProcessing("key", second));
+
+        List<OCRRequest> followers = ocrResultCacheService.finishProcessing("key");
+        assertEquals(1, followers.size());
+        assertSame(second, followers.get(0));
+
+        // once finished, the next identical request is processed again
+        assertTrue(ocrResultCacheService.startProcessing("key", second));
+    }
+
+    @Test
+    public void test_cacheResult() throws Exception {
+        File ocredFile = folder.newFile();
+        FileUtils.writeByteArrayToFile(ocredFile, "OCRed".getBytes());
+        byte[][] stored = new byte[1][];
+        doAnswer(invocation -> stored[0] = IOUtils.toByteArray((InputStream) invocation.getArguments()[1]))
+                .when(ocrResultCacheRepository).putResult(eq("key"), any(InputStream.class), eq(5L));
+
+        ocrResultCacheService.cacheResult("key", ocredFile);
+
+        // the file is streamed to the repository
+        assertArrayEquals("OCRed".getBytes(), stored[0]);
+        verify(ocrResultCacheRepository).evictLeastRecentlyUsed(100L);
+    }
+
+    @Test
+    public void test_cacheResult_tooBig() throws Exception {
+        File ocredFile = folder.newFile();
+        FileUtils.writeByteArrayToFile(ocredFile, new byte[51]);
+
+        ocrResultCacheService.cacheResult("key", ocredFile);
+
+        verify(ocrResultCacheRepository, never()).putResult(any(String.class), any(InputStream.class), anyLong());
+        verify(ocrResultCacheRepository, never()).evictLeastRecentlyUsed(anyLong());
+    }
+
+    @Test
+    public void test_copyCachedResult() throws Exception {
+        File target = new File(folder.getRoot(), "1_ocr.pdf");
+        when(ocrResultCacheRepository.copyResult("key", target)).thenReturn(true);
+
+        assertTrue(ocrResultCacheService.copyCachedResult("key", target));
+        assertFalse(ocrResultCacheService.copyCachedResult("other", target));
+    }
+
+    @Test
+    public void test_copyCachedResult_readError() throws Exception {
+        File target = folder.newFile("1_ocr.pdf");
+        when(ocrResultCacheRepository.copyResult("key", target)).thenThrow(new IOException("connection lost"));
+
+        // the partially written file is removed
+        assertFalse(ocrResultCacheService.copyCachedResult("key", target));
+        assertFalse(target.exists());
+    }
+
+}
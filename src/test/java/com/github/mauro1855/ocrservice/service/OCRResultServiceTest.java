@@ -0,0 +1,102 @@
+package com.github.mauro1855.ocrservice.service;
+
+import java.io.File;
+
+import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpMethod;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class OCRResultServiceTest {
+
+    @Mock
+    private OCRRequestRepository ocrRequestRepository;
+
+    @InjectMocks
+    private OCRResultService ocrResultService;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private OCRRequest request;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ocrResultService.setResultsDir(folder.getRoot().getAbsolutePath());
+        ocrResultService.setResultsRetention(1000L);
+        ocrResultService.init();
+
+        request = new OCRRequest("test", null, null, (short) 1, (byte[]) null);
+        request.setId(3L);
+        request.setStatusCode((short) 1);
+    }
+
+    @Test
+    public void test_getRequest_checksToken(){
+        when(ocrRequestRepository.getRequest(3L)).thenReturn(request);
+
+        assertSame(request, ocrResultService.getRequest(3L, request.getToken()));
+        assertNull(ocrResultService.getRequest(3L, "wrong"));
+        assertNull(ocrResultService.getRequest(3L, null));
+        assertNull(ocrResultService.getRequest(4L, request.getToken()));
+    }
+
+    @Test
+    public void test_getResultFile_copiedOnce() throws Exception {
+        when(ocrRequestRepository.copyOcredFile(eq(3L), any(File.class))).thenAnswer(invocation -> {
+            FileUtils.writeStringToFile((File) invocation.getArguments()[1], "result", "UTF-8");
+            return true;
+        });
+
+        File resultFile = ocrResultService.getResultFile(request);
+        assertEquals("result", FileUtils.readFileToString(resultFile, "UTF-8"));
+        assertEquals(resultFile, ocrResultService.getResultFile(request));
+
+        verify(ocrRequestRepository, times(1)).copyOcredFile(eq(3L), any(File.class));
+        assertEquals(1, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void test_getResultFile_noLongerAvailable() throws Exception {
+        when(ocrRequestRepository.copyOcredFile(eq(3L), any(File.class))).thenReturn(false);
+
+        assertNull(ocrResultService.getResultFile(request));
+        // the temp file is removed
+        assertEquals(0, folder.getRoot().listFiles().length);
+    }
+
+    @Test
+    public void test_resultDownloaded_onlyPullMode(){
+        ocrResultService.resultDownloaded(request);
+        assertTrue(request.isCommunicated());
+        verify(ocrRequestRepository).updateRequest(request);
+
+        OCRRequest pushRequest = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, (byte[]) null);
+        ocrResultService.resultDownloaded(pushRequest);
+        assertFalse(pushRequest.isCommunicated());
+        verify(ocrRequestRepository, never()).updateRequest(pushRequest);
+    }
+
+    @Test
+    public void test_removeExpiredResults() throws Exception {
+        File expired = folder.newFile("1.pdf");
+        expired.setLastModified(System.currentTimeMillis() - 10000L);
+        File recent = folder.newFile("2.pdf");
+
+        ocrResultService.removeExpiredResults();
+
+        assertFalse(expired.exists());
+        assertTrue(recent.exists());
+    }
+}
@@ -0,0 +1,214 @@
+package com.github.mauro1855.ocrservice.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.mauro1855.ocrservice.storage.BlobStore.BlobType;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FileSystemBlobStoreTest {
+
+    private static final String CONTENT = "Test";
+
+    private static final String CONTENT_KEY = DigestUtils.sha256Hex(CONTENT);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private NamedParameterJdbcTemplate foundJdbcTemplate;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private File root;
+
+    private FileSystemBlobStore blobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        root = new File(folder.getRoot(), "blobs");
+        blobStore = new FileSystemBlobStore(foundJdbcTemplate, transactionManager, root);
+    }
+
+    @Test
+    public void test_put() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+
+        blobStore.put(5L, BlobType.FILE_TO_OCR, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+
+        // named after its content, in sharded folders
+        File blobFile = new File(root, CONTENT_KEY.substring(0, 2) + "/" + CONTENT_KEY.substring(2, 4) + "/" + CONTENT_KEY);
+        assertEquals(blobFile, blobStore.getBlobFile(CONTENT_KEY));
+        assertEquals(CONTENT, FileUtils.readFileToString(blobFile, "UTF-8"));
+
+        verify(foundJdbcTemplate).update(startsWith("INSERT INTO ocr_request_blobs"), sqlParametersCaptor.capture());
+        assertEquals(5L, sqlParametersCaptor.getValue().getValue("requestId"));
+        assertEquals("FILE_TO_OCR", sqlParametersCaptor.getValue().getValue("blobType"));
+        assertEquals(CONTENT_KEY, sqlParametersCaptor.getValue().getValue("blobKey"));
+        assertEquals(4L, sqlParametersCaptor.getValue().getValue("blobSize"));
+
+        // no temporary file is left behind
+        assertEquals(Collections.singletonList(CONTENT_KEY.substring(0, 2)), Arrays.asList(root.list()));
+    }
+
+    @Test
+    public void test_put_sameContent() throws Exception {
+        blobStore.put(5L, BlobType.FILE_TO_OCR, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+        blobStore.put(6L, BlobType.FILE_TO_OCR, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+
+        // stored once, referenced twice
+        verify(foundJdbcTemplate, times(2)).update(startsWith("INSERT INTO ocr_request_blobs"), any(MapSqlParameterSource.class));
+        assertEquals(1, blobStore.getBlobFile(CONTENT_KEY).getParentFile().list().length);
+    }
+
+    @Test
+    public void test_copyTo() throws Exception {
+        blobStore.put(5L, BlobType.OCRED_FILE, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+        when(foundJdbcTemplate.query(startsWith("SELECT blob_key"), any(MapSqlParameterSource.class), any(RowMapper.class)))
+                .thenReturn(Collections.singletonList(CONTENT_KEY));
+        File target = folder.newFile();
+
+        assertTrue(blobStore.copyTo(5L, BlobType.OCRED_FILE, target));
+        assertEquals(CONTENT, FileUtils.readFileToString(target, "UTF-8"));
+    }
+
+    @Test
+    public void test_copyTo_notFound() throws Exception {
+        when(foundJdbcTemplate.query(startsWith("SELECT blob_key"), any(MapSqlParameterSource.class), any(RowMapper.class)))
+                .thenReturn(Collections.emptyList());
+
+        assertFalse(blobStore.copyTo(5L, BlobType.OCRED_FILE, folder.newFile()));
+    }
+
+    @Test
+    public void test_delete_lastReference() throws Exception {
+        blobStore.put(5L, BlobType.FILE_TO_OCR, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+        when(foundJdbcTemplate.query(startsWith("SELECT blob_key"), any(MapSqlParameterSource.class), any(RowMapper.class)))
+                .thenReturn(Collections.singletonList(CONTENT_KEY));
+        when(foundJdbcTemplate.queryForObject(startsWith("SELECT COUNT(*)"), any(MapSqlParameterSource.class), eq(Integer.class)))
+                .thenReturn(0);
+
+        blobStore.delete(5L);
+
+        verify(foundJdbcTemplate).update(startsWith("DELETE FROM ocr_request_blobs"), any(MapSqlParameterSource.class));
+        assertFalse(blobStore.getBlobFile(CONTENT_KEY).exists());
+        // counted with a locking read, in a transaction of its own
+        verify(foundJdbcTemplate).queryForObject(eq("SELECT COUNT(*) FROM ocr_request_blobs WHERE blob_key = :blobKey FOR UPDATE"),
+                any(MapSqlParameterSource.class), eq(Integer.class));
+        verify(transactionManager).commit(any(TransactionStatus.class));
+    }
+
+    @Test
+    public void test_delete_inTransaction() throws Exception {
+        blobStore.put(5L, BlobType.FILE_TO_OCR, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+        when(foundJdbcTemplate.query(startsWith("SELECT blob_key"), any(MapSqlParameterSource.class), any(RowMapper.class)))
+                .thenReturn(Collections.singletonList(CONTENT_KEY));
+        when(foundJdbcTemplate.queryForObject(startsWith("SELECT COUNT(*)"), any(MapSqlParameterSource.class), eq(Integer.class)))
+                .thenReturn(0);
+
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            blobStore.delete(5L);
+
+            // the reference may still be restored by a rollback
+            assertTrue(blobStore.getBlobFile(CONTENT_KEY).exists());
+            verify(foundJdbcTemplate, never()).queryForObject(startsWith("SELECT COUNT(*)"), any(MapSqlParameterSource.class), eq(Integer.class));
+
+            for(TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations())
+                synchronization.afterCommit();
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+
+        assertFalse(blobStore.getBlobFile(CONTENT_KEY).exists());
+    }
+
+    @Test
+    public void test_put_whileReleasing() throws Exception {
+        blobStore.put(5L, BlobType.FILE_TO_OCR, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+        when(foundJdbcTemplate.query(startsWith("SELECT blob_key"), any(MapSqlParameterSource.class), any(RowMapper.class)))
+                .thenReturn(Collections.singletonList(CONTENT_KEY));
+
+        // the reference of the new upload waits for the release to commit (the count locked it out)
+        CountDownLatch released = new CountDownLatch(1);
+        AtomicInteger references = new AtomicInteger();
+        when(foundJdbcTemplate.update(startsWith("INSERT INTO ocr_request_blobs"), any(MapSqlParameterSource.class))).thenAnswer(invocation -> {
+            assertTrue(released.await(5, TimeUnit.SECONDS));
+            return references.incrementAndGet();
+        });
+        doAnswer(invocation -> {
+            released.countDown();
+            return null;
+        }).when(transactionManager).commit(any(TransactionStatus.class));
+
+        Thread upload = new Thread(() -> {
+            try {
+                blobStore.put(6L, BlobType.FILE_TO_OCR, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        when(foundJdbcTemplate.queryForObject(startsWith("SELECT COUNT(*)"), any(MapSqlParameterSource.class), eq(Integer.class)))
+                .thenAnswer(invocation -> {
+                    upload.start();
+                    return references.get();
+                });
+
+        blobStore.delete(5L);
+        upload.join(5000);
+
+        // removed with its last reference, then written again for the new one
+        assertFalse(upload.isAlive());
+        assertEquals(1, references.get());
+        assertEquals(CONTENT, FileUtils.readFileToString(blobStore.getBlobFile(CONTENT_KEY), "UTF-8"));
+    }
+
+    @Test
+    public void test_delete_sharedBlob() throws Exception {
+        blobStore.put(5L, BlobType.FILE_TO_OCR, new ByteArrayInputStream(CONTENT.getBytes()), 4L);
+        when(foundJdbcTemplate.query(startsWith("SELECT blob_key"), any(MapSqlParameterSource.class), any(RowMapper.class)))
+                .thenReturn(Collections.singletonList(CONTENT_KEY));
+        when(foundJdbcTemplate.queryForObject(startsWith("SELECT COUNT(*)"), any(MapSqlParameterSource.class), eq(Integer.class)))
+                .thenReturn(1);
+
+        blobStore.delete(5L);
+
+        // still referenced by another request
+        assertTrue(blobStore.getBlobFile(CONTENT_KEY).exists());
+    }
+
+}
@@ -0,0 +1,104 @@
+package com.github.mauro1855.ocrservice.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.sql.ResultSet;
+import java.util.Random;
+
+import com.github.mauro1855.ocrservice.storage.BlobStore.BlobType;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.support.SqlLobValue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MySQLBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private NamedParameterJdbcTemplate foundJdbcTemplate;
+
+    private MySQLBlobStore blobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        blobStore = new MySQLBlobStore(foundJdbcTemplate);
+    }
+
+    @Test
+    public void test_put() throws Exception {
+        ArgumentCaptor<MapSqlParameterSource> sqlParametersCaptor = ArgumentCaptor.forClass(MapSqlParameterSource.class);
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+
+        blobStore.put(5L, BlobType.OCRED_FILE, new ByteArrayInputStream("Test".getBytes()), 4L);
+
+        // the file is bound as a stream, not as a byte array
+        verify(foundJdbcTemplate).update(sqlQueryCaptor.capture(), sqlParametersCaptor.capture());
+        assertTrue(sqlQueryCaptor.getValue().contains("ocr_request_payloads"));
+        assertTrue(sqlQueryCaptor.getValue().contains("ocred_file"));
+        assertFalse(sqlQueryCaptor.getValue().contains("file_to_ocr"));
+        assertEquals(5L, sqlParametersCaptor.getValue().getValue("requestId"));
+        assertTrue(sqlParametersCaptor.getValue().getValue("content") instanceof SqlLobValue);
+    }
+
+    @Test
+    public void test_copyTo() throws Exception {
+        ArgumentCaptor<String> sqlQueryCaptor = ArgumentCaptor.forClass(String.class);
+        File target = folder.newFile();
+
+        // the blob is read as a stream from the result set
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getBinaryStream("file_to_ocr")).thenReturn(new ByteArrayInputStream("Test".getBytes()));
+        when(foundJdbcTemplate.query(sqlQueryCaptor.capture(), any(MapSqlParameterSource.class), any(ResultSetExtractor.class)))
+                .thenAnswer(invocation -> ((ResultSetExtractor) invocation.getArguments()[2]).extractData(resultSet));
+
+        assertTrue(blobStore.copyTo(5L, BlobType.FILE_TO_OCR, target));
+
+        // only the payload table is read
+        assertTrue(sqlQueryCaptor.getValue().contains("FROM ocr_request_payloads"));
+        assertEquals("Test", FileUtils.readFileToString(target, "UTF-8"));
+    }
+
+    @Test
+    public void test_copyTo_notFound() throws Exception {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.next()).thenReturn(false);
+        when(foundJdbcTemplate.query(any(String.class), any(MapSqlParameterSource.class), any(ResultSetExtractor.class)))
+                .thenAnswer(invocation -> ((ResultSetExtractor) invocation.getArguments()[2]).extractData(resultSet));
+
+        assertFalse(blobStore.copyTo(5L, BlobType.FILE_TO_OCR, folder.newFile()));
+    }
+
+    @Test
+    public void test_writeToFile() throws Exception {
+        byte[] content = new byte[200 * 1024 + 7];
+        new Random(1).nextBytes(content);
+        File target = folder.newFile();
+        FileUtils.writeStringToFile(target, "previous content that is longer than nothing", "UTF-8");
+
+        MySQLBlobStore.writeToFile(new ByteArrayInputStream(content), target);
+
+        assertArrayEquals(content, FileUtils.readFileToByteArray(target));
+    }
+
+}
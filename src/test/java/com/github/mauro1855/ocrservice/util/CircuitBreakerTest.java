@@ -0,0 +1,71 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private AtomicLong now;
+    private CircuitBreaker circuitBreaker;
+
+    @Before
+    public void setUp(){
+        now = new AtomicLong(0L);
+        circuitBreaker = new CircuitBreaker(3, 1000L, now::get);
+    }
+
+    @Test
+    public void test_opensAfterConsecutiveFailures(){
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        assertTrue(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(1000L, circuitBreaker.getRetryTimeMillis());
+    }
+
+    @Test
+    public void test_successResetsFailures(){
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordFailure();
+
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void test_halfOpen_singleTrial(){
+        for(int i = 0; i < 3; i++)
+            circuitBreaker.recordFailure();
+
+        now.set(1000L);
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+
+        circuitBreaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+
+    @Test
+    public void test_halfOpen_failedTrialReopens(){
+        for(int i = 0; i < 3; i++)
+            circuitBreaker.recordFailure();
+
+        now.set(1500L);
+        assertTrue(circuitBreaker.allowRequest());
+        circuitBreaker.recordFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertFalse(circuitBreaker.allowRequest());
+        assertEquals(2500L, circuitBreaker.getRetryTimeMillis());
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.Assert.*;
+
+public class FileTransferTest {
+
+    private static final String ETAG = "\"1-1\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.newFile("result.pdf");
+        FileUtils.writeStringToFile(file, "0123456789", "UTF-8");
+    }
+
+    @Test
+    public void test_parseRange(){
+        assertArrayEquals(new long[] {2, 5}, FileTransfer.parseRange("bytes=2-5", 10));
+        assertArrayEquals(new long[] {2, 9}, FileTransfer.parseRange("bytes=2-", 10));
+        assertArrayEquals(new long[] {7, 9}, FileTransfer.parseRange("bytes=-3", 10));
+        assertArrayEquals(new long[] {0, 9}, FileTransfer.parseRange("bytes=0-100", 10));
+        assertNull(FileTransfer.parseRange("bytes=10-", 10));
+        assertNull(FileTransfer.parseRange("bytes=5-2", 10));
+        // multiple or malformed ranges are ignored
+        assertEquals(0, FileTransfer.parseRange("bytes=0-1,3-4", 10).length);
+        assertEquals(0, FileTransfer.parseRange("items=0-1", 10).length);
+    }
+
+    @Test
+    public void test_sendFile_notModified() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/result");
+        request.addHeader("If-None-Match", ETAG);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        FileTransfer.sendFile(request, response, file, "application/pdf", ETAG);
+
+        assertEquals(304, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void test_sendFile_rangeNotSatisfiable() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/result");
+        request.addHeader("Range", "bytes=20-");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        FileTransfer.sendFile(request, response, file, "application/pdf", ETAG);
+
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */10", response.getHeader("Content-Range"));
+    }
+
+    @Test
+    public void test_sendFile_ifRangeChanged() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/result");
+        request.addHeader("Range", "bytes=2-5");
+        request.addHeader("If-Range", "\"1-0\"");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        FileTransfer.sendFile(request, response, file, "application/pdf", ETAG);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("0123456789", response.getContentAsString());
+    }
+
+    @Test
+    public void test_sendFile_tomcatSendfile() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/result");
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        request.addHeader("Range", "bytes=-3");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        FileTransfer.sendFile(request, response, file, "application/pdf", ETAG);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(file.getCanonicalPath(), request.getAttribute("org.apache.tomcat.sendfile.filename"));
+        assertEquals(7L, request.getAttribute("org.apache.tomcat.sendfile.start"));
+        assertEquals(10L, request.getAttribute("org.apache.tomcat.sendfile.end"));
+        assertEquals("3", response.getHeader("Content-Length"));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void test_sendFile_downloadCompleted() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/result");
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // without sendfile, the body is written before returning
+        assertTrue(FileTransfer.sendFile(request, response, file, "application/pdf", ETAG, false));
+        assertEquals("0123456789", response.getContentAsString());
+        assertNull(request.getAttribute("org.apache.tomcat.sendfile.filename"));
+    }
+
+    @Test
+    public void test_sendFile_downloadNotCompleted() throws Exception {
+        // with sendfile, the body is written later
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/result");
+        request.setAttribute("org.apache.tomcat.sendfile.support", Boolean.TRUE);
+        assertFalse(FileTransfer.sendFile(request, new MockHttpServletResponse(), file, "application/pdf", ETAG, true));
+
+        // a range that doesn't reach the end
+        request = new MockHttpServletRequest("GET", "/result");
+        request.addHeader("Range", "bytes=0-5");
+        assertFalse(FileTransfer.sendFile(request, new MockHttpServletResponse(), file, "application/pdf", ETAG, false));
+
+        // the end only, as PDF readers fetch the trailer first
+        request = new MockHttpServletRequest("GET", "/result");
+        request.addHeader("Range", "bytes=-3");
+        assertFalse(FileTransfer.sendFile(request, new MockHttpServletResponse(), file, "application/pdf", ETAG, false));
+
+        request = new MockHttpServletRequest("HEAD", "/result");
+        assertFalse(FileTransfer.sendFile(request, new MockHttpServletResponse(), file, "application/pdf", ETAG, false));
+    }
+
+    @Test
+    public void test_sendFile_resumedDownloadCompleted() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/result");
+        request.addHeader("Range", "bytes=6-");
+        request.addHeader("If-Range", ETAG);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        assertTrue(FileTransfer.sendFile(request, response, file, "application/pdf", ETAG, false));
+        assertEquals(206, response.getStatus());
+        assertEquals("6789", response.getContentAsString());
+    }
+}
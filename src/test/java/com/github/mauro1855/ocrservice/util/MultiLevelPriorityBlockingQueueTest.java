@@ -0,0 +1,431 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MultiLevelPriorityBlockingQueueTest {
+
+    private AtomicLong now;
+    private MultiLevelPriorityBlockingQueue queue;
+
+    @Before
+    public void setUp(){
+        now = new AtomicLong(0L);
+        queue = new MultiLevelPriorityBlockingQueue(4, 0L, now::get);
+    }
+
+    private PriorityFuture<Object> task(int priority){
+        return new PriorityFuture<>(null, priority, new Date());
+    }
+
+    private PriorityFuture<Object> task(int priority, long size){
+        return new PriorityFuture<>(null, priority, new Date(), null, size);
+    }
+
+    // lanes: below 1000 bytes, and above. One thread reserved for each, out of 3
+    private MultiLevelPriorityBlockingQueue lanesQueue(){
+        return new MultiLevelPriorityBlockingQueue(4, 0L, new long[] {1000L}, new int[] {1, 1}, 3, now::get);
+    }
+
+    @Test
+    public void test_poll_highestPriorityFirst(){
+        PriorityFuture<Object> low = task(-128);
+        PriorityFuture<Object> normal = task(0);
+        PriorityFuture<Object> high = task(127);
+
+        queue.offer(normal);
+        queue.offer(low);
+        queue.offer(high);
+
+        assertEquals(3, queue.size());
+        assertSame(high, queue.peek());
+        assertSame(high, queue.poll());
+        assertSame(normal, queue.poll());
+        assertSame(low, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void test_poll_fifoWithinSamePriority(){
+        List<PriorityFuture<Object>> tasks = new ArrayList<>();
+        for(int i = 0; i < 10; i++){
+            tasks.add(task(5));
+            queue.offer(tasks.get(i));
+        }
+
+        for(int i = 0; i < 10; i++)
+            assertSame(tasks.get(i), queue.poll());
+    }
+
+    @Test
+    public void test_poll_shortestFirstWithinSamePriority(){
+        PriorityFuture<Object> big = task(5, 5000L);
+        PriorityFuture<Object> small = task(5, 10L);
+        PriorityFuture<Object> medium = task(5, 500L);
+        PriorityFuture<Object> urgentBig = task(6, 9000L);
+
+        queue.offer(big);
+        queue.offer(small);
+        queue.offer(medium);
+        queue.offer(urgentBig);
+
+        // the priority comes first, then the size
+        assertSame(urgentBig, queue.poll());
+        assertSame(small, queue.poll());
+        assertSame(medium, queue.poll());
+        assertSame(big, queue.poll());
+    }
+
+    @Test
+    public void test_poll_agingPromotesBigTasks(){
+        queue = new MultiLevelPriorityBlockingQueue(4, 1000L, now::get);
+        PriorityFuture<Object> big = task(1, 5000L);
+        queue.offer(big);
+
+        now.set(1000L);
+        PriorityFuture<Object> small = task(1, 10L);
+        queue.offer(small);
+        queue.offer(task(3));
+        queue.poll();
+
+        // the big task waited the aging interval, it is not overtaken by smaller ones anymore
+        assertSame(big, queue.poll());
+        assertSame(small, queue.poll());
+    }
+
+    @Test
+    public void test_lanes_reservedThreads(){
+        queue = lanesQueue();
+        List<PriorityFuture<Object>> bigTasks = new ArrayList<>();
+        for(int i = 0; i < 3; i++){
+            bigTasks.add(task(5, 5000L));
+            queue.offer(bigTasks.get(i));
+        }
+
+        // two threads for the big tasks, the third one is kept for the small ones
+        assertSame(bigTasks.get(0), queue.poll());
+        assertSame(bigTasks.get(1), queue.poll());
+        assertNull(queue.poll());
+        assertEquals(1, queue.size());
+
+        // a small task starts right away, even with a lower priority
+        PriorityFuture<Object> small = task(0, 10L);
+        queue.offer(small);
+        assertSame(small, queue.poll());
+
+        // a big task that finishes frees a thread for the lane
+        queue.taskFinished(bigTasks.get(0));
+        assertSame(bigTasks.get(2), queue.poll());
+    }
+
+    @Test
+    public void test_lanes_unreservedThreadsAreShared(){
+        queue = lanesQueue();
+        List<PriorityFuture<Object>> smallTasks = new ArrayList<>();
+        for(int i = 0; i < 3; i++){
+            smallTasks.add(task(5, 10L));
+            queue.offer(smallTasks.get(i));
+        }
+
+        // the small tasks use the shared thread, but not the one reserved for big tasks
+        assertSame(smallTasks.get(0), queue.poll());
+        assertSame(smallTasks.get(1), queue.poll());
+        assertNull(queue.poll());
+
+        PriorityFuture<Object> big = task(0, 5000L);
+        queue.offer(big);
+        assertSame(big, queue.poll());
+
+        queue.taskFinished(smallTasks.get(1));
+        assertSame(smallTasks.get(2), queue.poll());
+    }
+
+    @Test
+    public void test_lanes_takeWaitsForAThreadOfTheLane() throws InterruptedException {
+        queue = lanesQueue();
+        PriorityFuture<Object> first = task(5, 5000L);
+        PriorityFuture<Object> second = task(5, 5000L);
+        PriorityFuture<Object> third = task(5, 5000L);
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+        queue.take();
+        queue.take();
+
+        new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {}
+            queue.taskFinished(first);
+        }).start();
+
+        assertSame(third, queue.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void test_lanes_drainToIgnoresReservations(){
+        queue = lanesQueue();
+        for(int i = 0; i < 4; i++)
+            queue.offer(task(5, 5000L));
+
+        List<Runnable> drained = new ArrayList<>();
+        assertEquals(4, queue.drainTo(drained));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_lanes_laneWithoutThread(){
+        // the big tasks would never get a thread
+        new MultiLevelPriorityBlockingQueue(4, 0L, new long[] {1000L}, new int[] {3, 0}, 3, now::get);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_lanes_missingReservation(){
+        new MultiLevelPriorityBlockingQueue(4, 0L, new long[] {1000L, 2000L}, new int[] {1, 1}, 3, now::get);
+    }
+
+    // bands: below priority 10, and above. One thread reserved for the urgent tasks, out of 3
+    private MultiLevelPriorityBlockingQueue bandsQueue(int[] minThreads, int[] maxThreads){
+        MultiLevelPriorityBlockingQueue bandsQueue = new MultiLevelPriorityBlockingQueue(4, 0L, new long[0], new int[] {0}, 3, now::get);
+        bandsQueue.setPriorityBands(new int[] {10}, minThreads, maxThreads);
+        return bandsQueue;
+    }
+
+    @Test
+    public void test_bands_threadReservedForUrgentTasks(){
+        queue = bandsQueue(new int[] {0, 1}, new int[] {0, 0});
+        List<PriorityFuture<Object>> lowTasks = new ArrayList<>();
+        for(int i = 0; i < 3; i++){
+            lowTasks.add(task(0));
+            queue.offer(lowTasks.get(i));
+        }
+
+        // the third thread is kept for the urgent tasks
+        assertSame(lowTasks.get(0), queue.poll());
+        assertSame(lowTasks.get(1), queue.poll());
+        assertNull(queue.poll());
+
+        PriorityFuture<Object> urgent = task(10);
+        queue.offer(urgent);
+        assertSame(urgent, queue.poll());
+
+        queue.taskFinished(lowTasks.get(0));
+        assertSame(lowTasks.get(2), queue.poll());
+    }
+
+    @Test
+    public void test_bands_unusedReservationLentToHigherBands(){
+        // one thread reserved for each of priorities below 0, 0 to 9, and 10 and above
+        queue = new MultiLevelPriorityBlockingQueue(4, 0L, new long[0], new int[] {0}, 3, now::get);
+        queue.setPriorityBands(new int[] {0, 10}, new int[] {1, 0, 1}, new int[] {0, 0, 0});
+        List<PriorityFuture<Object>> normalTasks = new ArrayList<>();
+        for(int i = 0; i < 3; i++){
+            normalTasks.add(task(5));
+            queue.offer(normalTasks.get(i));
+        }
+
+        // the thread reserved for the lowest band is lent, not the one of the urgent tasks
+        assertSame(normalTasks.get(0), queue.poll());
+        assertSame(normalTasks.get(1), queue.poll());
+        assertNull(queue.poll());
+
+        PriorityFuture<Object> low = task(-5);
+        queue.offer(low);
+        assertNull(queue.poll());
+
+        PriorityFuture<Object> urgent = task(20);
+        queue.offer(urgent);
+        assertSame(urgent, queue.poll());
+
+        // the lowest band gets its thread back when the borrowed one is freed
+        queue.taskFinished(normalTasks.get(0));
+        assertSame(low, queue.poll());
+    }
+
+    @Test
+    public void test_bands_maxThreads(){
+        queue = bandsQueue(new int[] {0, 0}, new int[] {1, 0});
+        PriorityFuture<Object> first = task(0);
+        PriorityFuture<Object> second = task(0);
+        PriorityFuture<Object> urgent = task(10);
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(urgent);
+
+        assertSame(urgent, queue.poll());
+        assertSame(first, queue.poll());
+        assertNull(queue.poll());
+
+        queue.taskFinished(first);
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void test_bands_withLanes(){
+        queue = lanesQueue();
+        queue.setPriorityBands(new int[] {10}, new int[] {0, 1}, new int[] {0, 0});
+        PriorityFuture<Object> first = task(0, 10L);
+        PriorityFuture<Object> second = task(0, 10L);
+        PriorityFuture<Object> big = task(0, 5000L);
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(big);
+
+        // the lanes keep a thread for the big task, but the bands keep it for urgent ones
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertNull(queue.poll());
+
+        PriorityFuture<Object> urgentBig = task(10, 5000L);
+        queue.offer(urgentBig);
+        assertSame(urgentBig, queue.poll());
+        assertEquals(1, queue.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_bands_bandWithoutThread(){
+        // the low priority tasks would never get a thread
+        bandsQueue(new int[] {0, 3}, new int[] {0, 0});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_bands_maxBelowMin(){
+        bandsQueue(new int[] {0, 2}, new int[] {0, 1});
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_bands_setAfterFirstTask(){
+        queue.offer(task(0));
+        queue.setPriorityBands(new int[] {10}, new int[] {0, 1}, new int[] {0, 0});
+    }
+
+    @Test
+    public void test_poll_agingPromotesWaitingTasks(){
+        queue = new MultiLevelPriorityBlockingQueue(4, 1000L, now::get);
+        PriorityFuture<Object> old = task(1);
+        queue.offer(old);
+
+        now.set(1000L);
+        PriorityFuture<Object> high = task(3);
+        queue.offer(high);
+        assertSame(high, queue.poll());
+
+        // old task waited the aging interval and was promoted to level 2, ahead of newer ones
+        PriorityFuture<Object> newer = task(2);
+        queue.offer(newer);
+        assertSame(old, queue.poll());
+        assertSame(newer, queue.poll());
+    }
+
+    @Test
+    public void test_poll_agingLimitedToMaxLevels(){
+        queue = new MultiLevelPriorityBlockingQueue(4, 1000L, now::get);
+        queue.setMaxAgingLevels(2);
+        PriorityFuture<Object> old = task(1);
+        queue.offer(old);
+
+        // however long it waits, the task is not promoted above priority 3
+        for(int i = 1; i <= 10; i++){
+            now.set(i * 1000L);
+            queue.offer(task(100));
+            queue.poll();
+        }
+        PriorityFuture<Object> urgent = task(4);
+        PriorityFuture<Object> newer = task(3);
+        queue.offer(urgent);
+        queue.offer(newer);
+
+        assertSame(urgent, queue.poll());
+        assertSame(old, queue.poll());
+        assertSame(newer, queue.poll());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_setMaxAgingLevels_negative(){
+        queue.setMaxAgingLevels(-1);
+    }
+
+    @Test
+    public void test_poll_noAgingWhenDisabled(){
+        PriorityFuture<Object> old = task(1);
+        queue.offer(old);
+
+        now.set(1000000L);
+        PriorityFuture<Object> newer = task(2);
+        queue.offer(newer);
+
+        assertSame(newer, queue.poll());
+        assertSame(old, queue.poll());
+    }
+
+    @Test
+    public void test_remove(){
+        PriorityFuture<Object> first = task(1);
+        PriorityFuture<Object> second = task(1);
+        queue.offer(first);
+        queue.offer(second);
+
+        assertTrue(queue.remove(first));
+        assertFalse(queue.remove(first));
+        assertEquals(1, queue.size());
+        assertSame(second, queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void test_drainTo(){
+        PriorityFuture<Object> low = task(1);
+        PriorityFuture<Object> high = task(2);
+        queue.offer(low);
+        queue.offer(high);
+
+        List<Runnable> drained = new ArrayList<>();
+        assertEquals(2, queue.drainTo(drained));
+        assertSame(high, drained.get(0));
+        assertSame(low, drained.get(1));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void test_poll_skipsCancelledTasks() throws InterruptedException {
+        PriorityFuture<Object> cancelled = new PriorityFuture<>(new FutureTask<>(() -> {}, null), 2, new Date());
+        PriorityFuture<Object> waiting = task(1);
+        queue.offer(cancelled);
+        queue.offer(waiting);
+
+        cancelled.cancel(false);
+
+        // cancelled tasks are dropped when they reach the head of the queue
+        assertSame(waiting, queue.poll());
+        assertNull(queue.poll());
+
+        queue.offer(cancelled);
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void test_pollWithTimeout_emptyQueue() throws InterruptedException {
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void test_getPriority(){
+        assertEquals(3, MultiLevelPriorityBlockingQueue.getPriority(task(3)));
+        assertEquals(0, MultiLevelPriorityBlockingQueue.getPriority(() -> {}));
+    }
+
+    @Test
+    public void test_getSize(){
+        assertEquals(300L, MultiLevelPriorityBlockingQueue.getSize(task(3, 300L)));
+        assertEquals(0L, MultiLevelPriorityBlockingQueue.getSize(() -> {}));
+    }
+}
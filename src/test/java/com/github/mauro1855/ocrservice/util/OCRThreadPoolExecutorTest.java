@@ -0,0 +1,245 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OCRThreadPoolExecutorTest {
+
+    private OCRThreadPoolExecutor executor;
+
+    @Before
+    public void setUp(){
+        executor = new OCRThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, 4);
+    }
+
+    @After
+    public void tearDown(){
+        executor.shutdownNow();
+    }
+
+    private PriorityRunnable runnable(Long requestId, Runnable body){
+        return runnable(requestId, 0L, body);
+    }
+
+    private PriorityRunnable runnable(Long requestId, long size, Runnable body){
+        return runnable(requestId, 0, size, body);
+    }
+
+    private PriorityRunnable runnable(Long requestId, int priority, long size, Runnable body){
+        return new PriorityRunnable() {
+            @Override
+            public int getPriority() {
+                return priority;
+            }
+
+            @Override
+            public Date getDate() {
+                return new Date();
+            }
+
+            @Override
+            public Long getRequestId() {
+                return requestId;
+            }
+
+            @Override
+            public long getSize() {
+                return size;
+            }
+
+            @Override
+            public void run() {
+                body.run();
+            }
+        };
+    }
+
+    @Test
+    public void test_cancel() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean queuedTaskRan = new AtomicBoolean();
+
+        Future<?> running = executor.submit(runnable(1L, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        Future<?> queued = executor.submit(runnable(2L, () -> queuedTaskRan.set(true)));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // only the tasks still waiting in the queue are cancelled
+        assertFalse(executor.cancel(1L));
+        assertTrue(executor.cancel(2L));
+        assertFalse(executor.cancel(2L));
+        assertFalse(executor.cancel(3L));
+        assertTrue(queued.isCancelled());
+
+        release.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertFalse(queuedTaskRan.get());
+    }
+
+    @Test
+    public void test_lanes_smallTaskNotBlockedByBigOnes() throws Exception {
+        executor.shutdownNow();
+        executor = new OCRThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, 4, 0L, new long[] {1000L}, new int[] {1, 0});
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch smallTaskRan = new CountDownLatch(1);
+        Runnable blocking = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        // big tasks only get the thread that is not reserved for small ones
+        Future<?> firstBig = executor.submit(runnable(1L, 5000L, blocking));
+        executor.submit(runnable(2L, 5000L, blocking));
+        executor.submit(runnable(3L, 10L, smallTaskRan::countDown));
+
+        assertTrue(smallTaskRan.await(5, TimeUnit.SECONDS));
+        assertFalse(firstBig.isDone());
+        release.countDown();
+    }
+
+    @Test
+    public void test_bands_urgentTaskNotBlockedByLowPriorityOnes() throws Exception {
+        executor.shutdownNow();
+        executor = new OCRThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, 4, 0L);
+        executor.setPriorityBands(new int[] {10}, new int[] {0, 1}, new int[] {0, 0});
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch urgentTaskRan = new CountDownLatch(1);
+        Runnable blocking = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        // low priority tasks only get the thread that is not reserved for urgent ones
+        Future<?> firstLow = executor.submit(runnable(1L, 0, 0L, blocking));
+        executor.submit(runnable(2L, 0, 0L, blocking));
+        executor.submit(runnable(3L, 10, 0L, urgentTaskRan::countDown));
+
+        assertTrue(urgentTaskRan.await(5, TimeUnit.SECONDS));
+        assertFalse(firstLow.isDone());
+        release.countDown();
+    }
+
+    @Test
+    public void test_preemption_urgentTaskSuspendsLowPriorityTool() throws Exception {
+        ProcessRegistry processRegistry = new ProcessRegistry();
+        executor.setPreemption(10, processRegistry);
+        ProcessGroup processGroup = mock(ProcessGroup.class);
+        when(processGroup.getGroupId()).thenReturn(1L);
+        when(processGroup.suspend()).thenReturn(true);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch urgentTaskRan = new CountDownLatch(1);
+
+        Future<?> low = executor.submit(runnable(1L, 0, 0L, () -> {
+            processRegistry.register(processGroup);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // a task below the preemption priority waits
+        Future<?> normal = executor.submit(runnable(2L, 5, 0L, () -> {}));
+        verify(processGroup, never()).suspend();
+
+        // the urgent one runs while the tool of the low priority task is suspended
+        executor.submit(runnable(3L, 10, 0L, urgentTaskRan::countDown));
+        assertTrue(urgentTaskRan.await(5, TimeUnit.SECONDS));
+        verify(processGroup).suspend();
+        verify(processGroup, timeout(5000)).resume();
+        assertFalse(low.isDone());
+        assertFalse(executor.cancel(3L));
+
+        release.countDown();
+        normal.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void test_preemption_nothingToSuspend() throws Exception {
+        executor.setPreemption(10, new ProcessRegistry());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean urgentTaskRan = new AtomicBoolean();
+
+        // the running task has no tool to suspend: the urgent one waits
+        executor.submit(runnable(1L, 0, 0L, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<?> urgent = executor.submit(runnable(2L, 10, 0L, () -> urgentTaskRan.set(true)));
+        Thread.sleep(100);
+        assertFalse(urgentTaskRan.get());
+
+        release.countDown();
+        urgent.get(5, TimeUnit.SECONDS);
+        assertTrue(urgentTaskRan.get());
+    }
+
+    @Test
+    public void test_preemption_toolNotSuspended() throws Exception {
+        ProcessRegistry processRegistry = new ProcessRegistry();
+        executor.setPreemption(10, processRegistry);
+        ProcessGroup processGroup = mock(ProcessGroup.class);
+        when(processGroup.getGroupId()).thenReturn(1L);
+        when(processGroup.suspend()).thenReturn(false);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean urgentTaskRan = new AtomicBoolean();
+
+        executor.submit(runnable(1L, 0, 0L, () -> {
+            processRegistry.register(processGroup);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the tool could not be stopped: the urgent task waits for the thread instead of running beside it
+        Future<?> urgent = executor.submit(runnable(2L, 10, 0L, () -> urgentTaskRan.set(true)));
+        Thread.sleep(100);
+        verify(processGroup).suspend();
+        assertFalse(urgentTaskRan.get());
+        assertTrue(executor.cancel(2L));
+        assertTrue(urgent.isCancelled());
+        release.countDown();
+    }
+}
@@ -43,14 +43,24 @@ public class PriorityFutureTest {
         assertEquals(1, PriorityFuture.comparator.compare(o2, o1));
     }
 
+    @Test
+    public void test_Comparator_samePrioritiesDifferentSizes(){
+
+        PriorityFuture<Runnable> o1 = new PriorityFuture<>(null, 1, after, null, 10L);
+        PriorityFuture<Runnable> o2 = new PriorityFuture<>(null, 1, before, null, 5000L);
+
+        assertEquals(-1, PriorityFuture.comparator.compare(o1, o2));
+        assertEquals(1, PriorityFuture.comparator.compare(o2, o1));
+    }
+
     @Test
     public void test_Comparator_samePrioritiesSameDates(){
 
         PriorityFuture<Runnable> o1 = new PriorityFuture<>(null, 1, before);
         PriorityFuture<Runnable> o2 = new PriorityFuture<>(null, 1, equalsBefore);
 
-        assertEquals(-1, PriorityFuture.comparator.compare(o1, o2));
-        assertEquals(-1, PriorityFuture.comparator.compare(o2, o1));
+        assertEquals(0, PriorityFuture.comparator.compare(o1, o2));
+        assertEquals(0, PriorityFuture.comparator.compare(o2, o1));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ProcessGroupTest {
+
+    // starts a child that outlives the script if only the script is killed
+    private static final String SCRIPT = "sleep 300 &\n" +
+            "echo $! > \"$1\"\n" +
+            "wait\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File script;
+    private File childPidFile;
+    private File pidFile;
+    private ProcessGroup processGroup;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(ProcessGroup.isSupported() && new File("/proc").isDirectory());
+        script = folder.newFile("child.sh");
+        FileUtils.writeStringToFile(script, SCRIPT, "UTF-8");
+        childPidFile = new File(folder.getRoot(), "child");
+        pidFile = new File(folder.getRoot(), "250.pdf" + ProcessGroup.PID_FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        if(processGroup != null)
+            processGroup.destroy();
+    }
+
+    @Test
+    public void test_destroy_killsTheWholeGroup() throws Exception {
+        processGroup = ProcessGroup.exec(Runtime.getRuntime(), command(), true, pidFile);
+        long child = waitForChild();
+
+        assertNotNull(processGroup.getGroupId());
+        assertTrue(FileUtils.readFileToString(pidFile, "UTF-8").startsWith(processGroup.getGroupId() + " "));
+
+        processGroup.destroy();
+
+        assertFalse(processGroup.getProcess().isAlive());
+        assertTrue(isKilled(child));
+        assertFalse(pidFile.exists());
+    }
+
+    @Test
+    public void test_suspend_stopsTheWholeGroupUntilResumed() throws Exception {
+        processGroup = ProcessGroup.exec(Runtime.getRuntime(), command(), true, pidFile);
+        long child = waitForChild();
+
+        assertTrue(processGroup.suspend());
+        assertFalse(processGroup.suspend());
+        assertTrue(processGroup.isSuspended());
+        assertTrue(isInState(child, "T"));
+        Thread.sleep(100);
+        assertTrue(processGroup.getSuspendedMillis() >= 100L);
+
+        processGroup.resume();
+        assertFalse(processGroup.isSuspended());
+        assertTrue(isInState(child, "S"));
+        assertTrue(processGroup.getResumedMillis() > 0L);
+        long suspendedMillis = processGroup.getSuspendedMillis();
+        Thread.sleep(50);
+        assertEquals(suspendedMillis, processGroup.getSuspendedMillis());
+    }
+
+    @Test
+    public void test_destroy_suspendedGroup() throws Exception {
+        processGroup = ProcessGroup.exec(Runtime.getRuntime(), command(), true, pidFile);
+        long child = waitForChild();
+        assertTrue(processGroup.suspend());
+
+        processGroup.destroy();
+
+        assertFalse(processGroup.getProcess().isAlive());
+        assertTrue(isKilled(child));
+    }
+
+    @Test
+    public void test_resume_afterDestroy() throws Exception {
+        processGroup = ProcessGroup.exec(Runtime.getRuntime(), command(), true, pidFile);
+        waitForChild();
+        assertTrue(processGroup.suspend());
+        processGroup.destroy();
+
+        // the group id may have been reused, nothing is signaled anymore
+        processGroup.resume();
+        assertFalse(processGroup.isSuspended());
+        assertFalse(processGroup.suspend());
+    }
+
+    @Test
+    public void test_suspend_withoutGroup() throws Exception {
+        processGroup = ProcessGroup.exec(Runtime.getRuntime(), "sleep 300", false, pidFile);
+
+        assertFalse(processGroup.suspend());
+        assertFalse(processGroup.isSuspended());
+    }
+
+    @Test
+    public void test_getPid() throws Exception {
+        Process process = Runtime.getRuntime().exec("sleep 300");
+        try {
+            Long pid = ProcessGroup.getPid(process);
+
+            // the forked process may not have executed the command yet
+            assertNotNull(pid);
+            File cmdline = new File("/proc/" + pid + "/cmdline");
+            for(int i = 0; i < 100 && !FileUtils.readFileToString(cmdline, "UTF-8").startsWith("sleep"); i++)
+                Thread.sleep(20);
+            assertTrue(FileUtils.readFileToString(cmdline, "UTF-8").startsWith("sleep"));
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    public void test_exec_withoutGroup() throws Exception {
+        processGroup = ProcessGroup.exec(Runtime.getRuntime(), "true", false, pidFile);
+
+        assertTrue(processGroup.getProcess().waitFor(5, TimeUnit.SECONDS));
+        assertNull(processGroup.getGroupId());
+        assertFalse(pidFile.exists());
+    }
+
+    @Test
+    public void test_reapOrphans() throws Exception {
+        processGroup = ProcessGroup.exec(Runtime.getRuntime(), command(), true, pidFile);
+        long child = waitForChild();
+
+        // as if written by a run of the service that crashed
+        writePidFile(processGroup.getGroupId(), deadPid());
+
+        assertEquals(1, ProcessGroup.reapOrphans(folder.getRoot()));
+        assertTrue(processGroup.getProcess().waitFor(5, TimeUnit.SECONDS));
+        assertTrue(isKilled(child));
+        assertFalse(pidFile.exists());
+    }
+
+    @Test
+    public void test_reapOrphans_ownerRunning() throws Exception {
+        processGroup = ProcessGroup.exec(Runtime.getRuntime(), command(), true, pidFile);
+        waitForChild();
+
+        // as if written by another instance of the service, still running
+        writePidFile(processGroup.getGroupId(), processGroup.getGroupId());
+
+        assertEquals(0, ProcessGroup.reapOrphans(folder.getRoot()));
+        assertTrue(processGroup.getProcess().isAlive());
+        assertTrue(pidFile.exists());
+    }
+
+    private String command() {
+        return "sh " + script.getAbsolutePath() + " " + childPidFile.getAbsolutePath();
+    }
+
+    private void writePidFile(long groupId, long ownerPid) throws IOException {
+        FileUtils.writeStringToFile(pidFile, groupId + " " + ownerPid + "\n" + command(), "UTF-8");
+    }
+
+    private long waitForChild() throws Exception {
+        for(int i = 0; i < 100; i++) {
+            if(childPidFile.exists() && !FileUtils.readFileToString(childPidFile, "UTF-8").trim().isEmpty())
+                return Long.parseLong(FileUtils.readFileToString(childPidFile, "UTF-8").trim());
+            Thread.sleep(50);
+        }
+        throw new AssertionError("child process not started");
+    }
+
+    private long deadPid() throws Exception {
+        Process process = Runtime.getRuntime().exec("true");
+        process.waitFor();
+        return ProcessGroup.getPid(process);
+    }
+
+    // true once the process is in a state (T stopped, S sleeping...)
+    private boolean isInState(long pid, String expectedState) throws Exception {
+        for(int i = 0; i < 100; i++) {
+            String state = FileUtils.readFileToString(new File("/proc/" + pid + "/stat"), "UTF-8");
+            if(state.substring(state.lastIndexOf(')') + 2).startsWith(expectedState))
+                return true;
+            Thread.sleep(20);
+        }
+        return false;
+    }
+
+    // true once the process is gone (or a zombie waiting to be reaped)
+    private boolean isKilled(long pid) throws Exception {
+        for(int i = 0; i < 100; i++) {
+            File stat = new File("/proc/" + pid + "/stat");
+            if(!stat.exists())
+                return true;
+            String state = FileUtils.readFileToString(stat, "UTF-8");
+            if(state.substring(state.lastIndexOf(')') + 2).startsWith("Z"))
+                return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.mauro1855.ocrservice.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.SystemUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class ProcessOutputPumpTest {
+
+    private ProcessOutputPump pump;
+
+    @Before
+    public void setUp(){
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+        pump = new ProcessOutputPump(5L);
+    }
+
+    private Process start(String script) throws Exception {
+        return new ProcessBuilder("sh", "-c", script).start();
+    }
+
+    @Test
+    public void test_outputIsDrained() throws Exception {
+        // much more output than a pipe holds: the process blocks if it is not read
+        Process process = start("head -c 1000000 /dev/zero; head -c 1000000 /dev/zero >&2; echo 'error at the end' >&2");
+        ProcessOutputPump.ProcessOutput output = pump.register(process, 64);
+
+        assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+        assertTrue(output.getErrorTail().endsWith("error at the end"));
+        assertTrue(output.getErrorTail().length() <= 64);
+    }
+
+    @Test
+    public void test_errorTail_keepsLastBytes() throws Exception {
+        Process process = start("printf 0123456789 >&2");
+        ProcessOutputPump.ProcessOutput output = pump.register(process, 4);
+
+        assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+        assertEquals("6789", output.getErrorTail());
+    }
+
+    @Test
+    public void test_outputLinesAreHandled() throws Exception {
+        List<String> lines = new CopyOnWriteArrayList<>();
+        Process process = start("echo first; echo warning >&2; echo second");
+        ProcessOutputPump.ProcessOutput output = pump.register(process, 64, null, lines::add);
+
+        assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+        for(int i = 0; i < 100 && !output.isClosed(); i++){
+            Thread.sleep(20);
+        }
+
+        assertEquals(2, lines.size());
+        assertEquals("first", lines.get(0));
+        assertEquals("second", lines.get(1));
+        assertEquals("warning", output.getErrorTail());
+
+        output.clearErrorTail();
+        assertEquals("", output.getErrorTail());
+    }
+
+    @Test
+    public void test_processIsForgottenOnceExited() throws Exception {
+        Process first = start("echo first >&2");
+        Process second = start("sleep 1; echo second >&2");
+        ProcessOutputPump.ProcessOutput firstOutput = pump.register(first, 64);
+        ProcessOutputPump.ProcessOutput secondOutput = pump.register(second, 64);
+
+        assertTrue(second.waitFor(10, TimeUnit.SECONDS));
+        for(int i = 0; i < 100 && pump.getProcessCount() > 0; i++){
+            Thread.sleep(20);
+        }
+
+        assertEquals(0, pump.getProcessCount());
+        assertTrue(firstOutput.isClosed());
+        assertEquals("first", firstOutput.getErrorTail());
+        assertEquals("second", secondOutput.getErrorTail());
+    }
+}
@@ -1,19 +1,36 @@
 package com.github.mauro1855.ocrservice.worker;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.github.mauro1855.ocrservice.domain.OCRRequest;
+import com.github.mauro1855.ocrservice.engine.CommandLineOCREngine;
 import com.github.mauro1855.ocrservice.repository.OCRRequestRepository;
-import com.github.mauro1855.ocrservice.service.OCRCallbackService;
+import com.github.mauro1855.ocrservice.service.OCRCallbackDispatcher;
+import com.github.mauro1855.ocrservice.service.OCRCompletionNotifier;
+import com.github.mauro1855.ocrservice.service.OCRResultCacheService;
 import com.github.mauro1855.ocrservice.util.PriorityRunnable;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.SystemUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -21,7 +38,10 @@ import org.mockito.Spy;
 import org.springframework.http.HttpMethod;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.endsWith;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 /**
@@ -33,7 +53,13 @@ public class OCRRequestWorkerTest {
     private OCRRequestRepository ocrRequestRepository;
 
     @Mock
-    private OCRCallbackService ocrCallbackService;
+    private OCRCallbackDispatcher ocrCallbackDispatcher;
+
+    @Mock
+    private OCRResultCacheService ocrResultCacheService;
+
+    @Mock
+    private OCRCompletionNotifier ocrCompletionNotifier;
 
     @Mock
     private Runtime runtime;
@@ -41,23 +67,44 @@ public class OCRRequestWorkerTest {
     @Mock
     private Process mockedProcess;
 
+    @Mock
+    private ExecutorService priorityExecutor;
+
+    @Mock
+    private ScheduledExecutorService retryScheduler;
+
     @Spy
     @InjectMocks
     private OCRRequestWorker ocrRequestWorker;
 
     private OCRRequest mockRequest;
 
+    // OCRed file as it was when the request was stored
+    private byte[] storedOcredFile;
+
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
-        ocrRequestWorker.setOcrCommand("test");
-        ocrRequestWorker.setOcrCommand("test");
-        ocrRequestWorker.setOcrOutputFilePrefixCommand("test");
+        ocrRequestWorker.setOcrEngine(new CommandLineOCREngine(runtime, "test", null, false, "test"));
         mockRequest = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
         mockRequest.setId(250L);
         mockRequest.startOCR();
         mockRequest.setFileToOCRByteArray("Test".getBytes());
-        when(ocrRequestRepository.getRequest(mockRequest.getId())).thenReturn(mockRequest);
+        ocrRequestWorker.setMaxProcessingAttempts(3);
+        ocrRequestWorker.setOcrRetryInitialDelay(30000L);
+        ocrRequestWorker.setOcrRetryMaxDelay(600000L);
+        ocrRequestWorker.setOcrRetryPriorityPenalty(1);
+        when(ocrRequestRepository.startProcessing(mockRequest)).thenReturn(true);
+        when(ocrRequestRepository.copyFileToOCR(eq(mockRequest.getId()), any(File.class))).thenAnswer(invocation -> {
+            FileUtils.writeByteArrayToFile((File) invocation.getArguments()[1], mockRequest.getFileToOCRByteArray());
+            return true;
+        });
+        doAnswer(invocation -> {
+            OCRRequest request = (OCRRequest) invocation.getArguments()[0];
+            if(request.getOcredFile() != null)
+                storedOcredFile = FileUtils.readFileToByteArray(request.getOcredFile());
+            return true;
+        }).when(ocrRequestRepository).updateRequest(any(OCRRequest.class));
     }
 
     @Test
@@ -78,11 +125,14 @@ public class OCRRequestWorkerTest {
 
         ocrRequestWorker.getRunnable(mockRequest).run();
 
+        // the tool rejected the file, it is not retried
         assertNotNull(mockRequest.getRequestOCREndDate());
         assertEquals(-1, (int) mockRequest.getStatusCode());
-        verify(runtime, times(3)).exec(any(String.class));
+        verify(runtime, times(1)).exec(any(String.class));
         verify(ocrRequestRepository).updateRequest(mockRequest);
-        verify(ocrCallbackService).replyToRequest(mockRequest);
+        verify(ocrCompletionNotifier).requestCompleted(mockRequest);
+        verify(ocrCallbackDispatcher).dispatch(mockRequest);
+        verify(retryScheduler, never()).schedule(any(Runnable.class), any(Long.class), any(TimeUnit.class));
     }
 
     @Test
@@ -90,15 +140,85 @@ public class OCRRequestWorkerTest {
         Process mockProcess = newTimeOutProcess();
 
         mockRequest.setRequestOCREndDate(null);
+        mockRequest.setProcessingAttempts(2);
         when(runtime.exec(any(String.class))).thenReturn(mockProcess);
 
         ocrRequestWorker.getRunnable(mockRequest).run();
 
-        assertNotNull(mockRequest.getRequestOCREndDate());
-        assertEquals(-1, (int) mockRequest.getStatusCode());
-        verify(runtime, times(3)).exec(any(String.class));
+        // the request stays pending, and is queued again later with a lower priority
+        assertNull(mockRequest.getRequestOCREndDate());
+        assertEquals(0, (int) mockRequest.getStatusCode());
+        assertTrue(mockRequest.getStatusMessage().startsWith("Retrying after a failure: Request 250 exceeded"));
+        verify(runtime, times(1)).exec(any(String.class));
         verify(ocrRequestRepository).updateRequest(mockRequest);
-        verify(ocrCallbackService).replyToRequest(mockRequest);
+        verify(ocrCompletionNotifier, never()).requestCompleted(mockRequest);
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
+
+        ArgumentCaptor<Runnable> retry = ArgumentCaptor.forClass(Runnable.class);
+        verify(retryScheduler).schedule(retry.capture(), eq(60000L), eq(TimeUnit.MILLISECONDS));
+        retry.getValue().run();
+
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(priorityExecutor).submit(task.capture());
+        assertEquals(-1, ((PriorityRunnable) task.getValue()).getPriority());
+        assertEquals(mockRequest.getId(), ((PriorityRunnable) task.getValue()).getRequestId());
+    }
+
+    @Test
+    public void test_externalToolTookTooMuchTimeAtLastAttempt() throws IOException {
+        mockRequest.setProcessingAttempts(3);
+        when(runtime.exec(any(String.class))).thenReturn(newTimeOutProcess());
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(-1, (int) mockRequest.getStatusCode());
+        verify(runtime, times(1)).exec(any(String.class));
+        verify(ocrCallbackDispatcher).dispatch(mockRequest);
+        verify(retryScheduler, never()).schedule(any(Runnable.class), any(Long.class), any(TimeUnit.class));
+    }
+
+    @Test
+    public void test_killedToolIsRetriedLater() throws Exception {
+        when(runtime.exec(any(String.class))).thenReturn(mockedProcess);
+        when(mockedProcess.getErrorStream()).thenReturn(new ByteArrayInputStream("Killed".getBytes()));
+        when(mockedProcess.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(mockedProcess.waitFor(any(Long.class), any(TimeUnit.class))).thenReturn(true);
+        when(mockedProcess.exitValue()).thenReturn(137);
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(0, (int) mockRequest.getStatusCode());
+        verify(retryScheduler).schedule(any(Runnable.class), eq(30000L), eq(TimeUnit.MILLISECONDS));
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_waitingRequestsProcessedWhenRetriedLater() throws IOException {
+        OCRRequest follower = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        follower.setId(251L);
+        mockRequest.setContentHash("hash");
+        when(ocrResultCacheService.getCacheKey(eq("hash"), any(String.class))).thenReturn("key");
+        when(ocrResultCacheService.startProcessing("key", mockRequest)).thenReturn(true);
+        when(ocrResultCacheService.finishProcessing("key")).thenReturn(Collections.singletonList(follower));
+        when(runtime.exec(any(String.class))).thenReturn(newTimeOutProcess());
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        // the waiting request does not get the failure, it is processed on its own
+        verify(ocrRequestRepository, never()).updateRequest(follower);
+        verify(priorityExecutor).submit(any(Runnable.class));
+        verify(retryScheduler).schedule(any(Runnable.class), any(Long.class), any(TimeUnit.class));
+    }
+
+    @Test
+    public void test_requestCancelledBeforeRetry() throws IOException {
+        when(runtime.exec(any(String.class))).thenReturn(newTimeOutProcess());
+        doReturn(false).when(ocrRequestRepository).updateRequest(mockRequest);
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        verify(retryScheduler, never()).schedule(any(Runnable.class), any(Long.class), any(TimeUnit.class));
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
     }
 
     @Test
@@ -133,7 +253,432 @@ public class OCRRequestWorkerTest {
         assertEquals(1, (int) mockRequest.getStatusCode());
         verify(runtime, times(1)).exec(any(String.class));
         verify(ocrRequestRepository).updateRequest(mockRequest);
-        verify(ocrCallbackService).replyToRequest(mockRequest);
+        verify(ocrCallbackDispatcher).dispatch(mockRequest);
+        // the reply is stored as due, in case it is lost before it is sent
+        InOrder inOrder = inOrder(ocrCallbackDispatcher, ocrRequestRepository);
+        inOrder.verify(ocrCallbackDispatcher).claimReply(mockRequest);
+        inOrder.verify(ocrRequestRepository).updateRequest(mockRequest);
+
+        // the result is streamed from the temp file, which is handed over for the reply
+        assertArrayEquals(emptyByteArray, storedOcredFile);
+        assertNull(mockRequest.getOcredFileByteArray());
+        assertEquals(mockFile.getAbsoluteFile(), mockRequest.getOcredFile().getAbsoluteFile());
+        mockFile.delete();
+    }
+
+    @Test
+    public void test_OCRedFileRemovedIfNotStored() throws IOException {
+        String targetFileName = ocrRequestWorker.getTempDir() + mockRequest.getId() + "_ocr.pdf";
+        File mockFile = new File(targetFileName);
+        FileUtils.writeByteArrayToFile(mockFile, "1".getBytes());
+        when(runtime.exec(any(String.class))).thenReturn(newSuccessProcess());
+        doThrow(new RuntimeException("database down")).when(ocrRequestRepository).updateRequest(mockRequest);
+
+        try {
+            ocrRequestWorker.getRunnable(mockRequest).run();
+            fail();
+        } catch (RuntimeException ex) {
+            assertEquals("database down", ex.getMessage());
+        }
+
+        assertFalse(mockFile.exists());
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_requestNoLongerPending() throws IOException {
+        when(ocrRequestRepository.startProcessing(mockRequest)).thenReturn(false);
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        // processed, stopped or claimed by another node meanwhile
+        verify(ocrRequestRepository, never()).copyFileToOCR(any(Long.class), any(File.class));
+        verify(ocrRequestRepository, never()).updateRequest(mockRequest);
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_requestCancelledWhileProcessed() throws IOException {
+        String targetFileName = ocrRequestWorker.getTempDir() + mockRequest.getId() + "_ocr.pdf";
+        File mockFile = new File(targetFileName);
+        FileUtils.writeByteArrayToFile(mockFile, "1".getBytes());
+        when(runtime.exec(any(String.class))).thenReturn(newSuccessProcess());
+        doReturn(false).when(ocrRequestRepository).updateRequest(mockRequest);
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        // the result of a stopped request is discarded
+        assertFalse(mockFile.exists());
+        verify(ocrCompletionNotifier, never()).requestCompleted(mockRequest);
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_cancelRunningRequest() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        when(runtime.exec(any(String.class))).thenReturn(mockedProcess);
+        when(mockedProcess.getErrorStream()).thenReturn(new ByteArrayInputStream("Test".getBytes()));
+        when(mockedProcess.getInputStream()).thenReturn(new ByteArrayInputStream("Test".getBytes()));
+        // the OCR hangs until it is interrupted, the process then exits when destroyed
+        when(mockedProcess.waitFor(any(Long.class), any(TimeUnit.class))).thenAnswer(invocation -> {
+            started.countDown();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            return true;
+        }).thenReturn(true);
+        when(mockedProcess.isAlive()).thenReturn(true);
+        doReturn(false).when(ocrRequestRepository).updateRequest(mockRequest);
+
+        Thread thread = new Thread(ocrRequestWorker.getRunnable(mockRequest));
+        thread.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(ocrRequestWorker.cancel(mockRequest.getId()));
+        thread.join(5000);
+
+        // the tool is killed and not started again
+        assertFalse(thread.isAlive());
+        assertFalse(ocrRequestWorker.cancel(mockRequest.getId()));
+        verify(mockedProcess).destroy();
+        verify(runtime, times(1)).exec(any(String.class));
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_cleanTempDir() throws IOException {
+        File staleFile = new File(ocrRequestWorker.getTempDir() + "987654321_ocr.pdf");
+        File staleChunk = new File(ocrRequestWorker.getTempDir() + "987654321_2.pdf");
+        File currentFile = new File(ocrRequestWorker.getTempDir() + "987654322.pdf");
+        File otherFile = new File(ocrRequestWorker.getTempDir() + "987654321_other.pdf");
+        for(File file : new File[] {staleFile, staleChunk, currentFile, otherFile}){
+            FileUtils.writeByteArrayToFile(file, "1".getBytes());
+        }
+        // left by a previous run
+        staleFile.setLastModified(0L);
+        staleChunk.setLastModified(0L);
+        otherFile.setLastModified(0L);
+
+        ocrRequestWorker.cleanTempDir();
+
+        assertFalse(staleFile.exists());
+        assertFalse(staleChunk.exists());
+        assertTrue(currentFile.exists());
+        assertTrue(otherFile.exists());
+        currentFile.delete();
+        otherFile.delete();
+    }
+
+    @Test
+    public void test_cleanTempDir_otherRuns() throws Exception {
+        assumeTrue(SystemUtils.IS_OS_UNIX);
+        File tempRoot = new File(ocrRequestWorker.getTempDir()).getParentFile();
+        Process otherRun = new ProcessBuilder("sh", "-c", "echo $$; exec sleep 30").start();
+        try {
+            String otherRunPid = new BufferedReader(new InputStreamReader(otherRun.getInputStream())).readLine();
+            File runningFile = new File(tempRoot, otherRunPid + "/987654321.pdf");
+            File crashedFile = new File(tempRoot, "999999999/987654321.pdf");
+            File otherApplicationFile = new File(tempRoot.getParentFile(), "987654321.pdf");
+            for(File file : new File[] {runningFile, crashedFile, otherApplicationFile}){
+                FileUtils.writeByteArrayToFile(file, "1".getBytes());
+                file.setLastModified(0L);
+            }
+
+            ocrRequestWorker.cleanTempDir();
+
+            // only the folder of the run that is not running anymore is removed
+            assertTrue(runningFile.exists());
+            assertFalse(crashedFile.getParentFile().exists());
+            assertTrue(otherApplicationFile.exists());
+            FileUtils.deleteQuietly(runningFile.getParentFile());
+            otherApplicationFile.delete();
+        } finally {
+            otherRun.destroy();
+        }
+    }
+
+    @Test
+    public void test_requestAbandonedAfterMaxAttempts() throws IOException {
+        mockRequest.setProcessingAttempts(4);
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(-1, (int) mockRequest.getStatusCode());
+        assertTrue(mockRequest.getStatusMessage().contains("4 processing attempts"));
+        verify(ocrRequestRepository, never()).copyFileToOCR(any(Long.class), any(File.class));
+        verify(ocrRequestRepository).updateRequest(mockRequest);
+        verify(ocrCallbackDispatcher).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_OCRedFileOfPreviousAttempt() throws IOException {
+        mockRequest.setProcessingAttempts(2);
+        when(ocrRequestRepository.copyOcredFile(eq(mockRequest.getId()), any(File.class))).thenAnswer(invocation -> {
+            FileUtils.writeByteArrayToFile((File) invocation.getArguments()[1], "OCRed".getBytes());
+            return true;
+        });
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        // completed without OCRing the file again, and without storing it again
+        assertEquals(1, (int) mockRequest.getStatusCode());
+        verify(runtime, never()).exec(any(String.class));
+        verify(ocrRequestRepository).updateRequest(mockRequest);
+        assertFalse(mockRequest.getDirtyFields().contains(OCRRequest.Field.OCRED_FILE));
+        verify(ocrCallbackDispatcher).dispatch(mockRequest);
+        mockRequest.getOcredFile().delete();
+    }
+
+    @Test
+    public void test_fileToOCRNotFound() throws IOException {
+        when(ocrRequestRepository.copyFileToOCR(eq(mockRequest.getId()), any(File.class))).thenReturn(false);
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(-1, (int) mockRequest.getStatusCode());
+        verify(runtime, never()).exec(any(String.class));
+        verify(ocrRequestRepository).updateRequest(mockRequest);
+    }
+
+    @Test
+    public void test_resultFromCache() throws IOException {
+        mockRequest.setContentHash("hash");
+        mockRequest.setRequestOCREndDate(null);
+        when(ocrResultCacheService.getCacheKey(eq("hash"), any(String.class))).thenReturn("key");
+        when(ocrResultCacheService.startProcessing("key", mockRequest)).thenReturn(true);
+        mockCachedResult("OCRed");
+        when(ocrResultCacheService.finishProcessing("key")).thenReturn(new ArrayList<>());
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(1, (int) mockRequest.getStatusCode());
+        assertArrayEquals("OCRed".getBytes(), FileUtils.readFileToByteArray(mockRequest.getOcredFile()));
+        verify(runtime, never()).exec(any(String.class));
+        verify(ocrRequestRepository).updateRequest(mockRequest);
+        verify(ocrCallbackDispatcher).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_identicalRequestInProgress() throws IOException {
+        mockRequest.setContentHash("hash");
+        when(ocrResultCacheService.getCacheKey(eq("hash"), any(String.class))).thenReturn("key");
+        when(ocrResultCacheService.startProcessing("key", mockRequest)).thenReturn(false);
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        verify(runtime, never()).exec(any(String.class));
+        verify(ocrRequestRepository, never()).updateRequest(mockRequest);
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_waitingRequestsGetResult() throws IOException {
+        OCRRequest follower = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        follower.setId(251L);
+        mockRequest.setContentHash("hash");
+        when(ocrResultCacheService.getCacheKey(eq("hash"), any(String.class))).thenReturn("key");
+        when(ocrResultCacheService.startProcessing("key", mockRequest)).thenReturn(true);
+        mockCachedResult("OCRed");
+        when(ocrResultCacheService.finishProcessing("key")).thenReturn(Collections.singletonList(follower));
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(1, (int) follower.getStatusCode());
+        assertArrayEquals("OCRed".getBytes(), FileUtils.readFileToByteArray(follower.getOcredFile()));
+        assertNotNull(follower.getRequestOCREndDate());
+        verify(ocrRequestRepository).updateRequest(follower);
+        verify(ocrCallbackDispatcher).dispatch(follower);
+    }
+
+    @Test
+    public void test_waitingRequestsGetOwnOcredFile() throws IOException {
+        OCRRequest follower = new OCRRequest("test", "/test", HttpMethod.POST, (short) 1, null);
+        follower.setId(251L);
+        mockRequest.setContentHash("hash");
+        when(ocrResultCacheService.getCacheKey(eq("hash"), any(String.class))).thenReturn("key");
+        when(ocrResultCacheService.startProcessing("key", mockRequest)).thenReturn(true);
+        when(ocrResultCacheService.finishProcessing("key")).thenReturn(Collections.singletonList(follower));
+        File mockFile = new File(ocrRequestWorker.getTempDir() + mockRequest.getId() + "_ocr.pdf");
+        FileUtils.writeByteArrayToFile(mockFile, "OCRed".getBytes());
+        when(runtime.exec(any(String.class))).thenReturn(newSuccessProcess());
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        // each reply removes its own file
+        assertNotEquals(mockRequest.getOcredFile().getAbsoluteFile(), follower.getOcredFile().getAbsoluteFile());
+        assertArrayEquals("OCRed".getBytes(), FileUtils.readFileToByteArray(follower.getOcredFile()));
+        verify(ocrCallbackDispatcher).dispatch(follower);
+        verify(ocrCallbackDispatcher).dispatch(mockRequest);
+        follower.getOcredFile().delete();
+        mockFile.delete();
+    }
+
+    @Test
+    public void test_OCRSuccessfulInChunks() throws IOException {
+        ocrRequestWorker.setOcrSplitEnabled(true);
+        ocrRequestWorker.setOcrSplitMinPages(4);
+        ocrRequestWorker.setOcrSplitPages(2);
+        mockRequest.setFileToOCRByteArray(newPdf(5));
+        mockRequest.setRequestOCREndDate(null);
+
+        // the tool "OCRs" a chunk by copying it to the target file
+        when(runtime.exec(any(String.class))).thenAnswer(invocation -> {
+            String command = (String) invocation.getArguments()[0];
+            File source = new File(command.substring(command.lastIndexOf(' ') + 1));
+            FileUtils.copyFile(source, new File(source.getPath().replace(".pdf", "_ocr.pdf")));
+            return newSuccessProcess();
+        });
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(1, (int) mockRequest.getStatusCode());
+        verify(runtime, times(3)).exec(any(String.class));
+        verify(priorityExecutor, times(2)).submit(any(Runnable.class));
+        try(PDDocument result = PDDocument.load(storedOcredFile)){
+            assertEquals(5, result.getNumberOfPages());
+        }
+    }
+
+    @Test
+    public void test_failedChunkFailsRequest() throws IOException {
+        ocrRequestWorker.setOcrSplitEnabled(true);
+        ocrRequestWorker.setOcrSplitMinPages(4);
+        ocrRequestWorker.setOcrSplitPages(2);
+        mockRequest.setFileToOCRByteArray(newPdf(4));
+
+        // the second chunk always fails
+        when(runtime.exec(any(String.class))).thenAnswer(invocation -> {
+            String command = (String) invocation.getArguments()[0];
+            File source = new File(command.substring(command.lastIndexOf(' ') + 1));
+            if(source.getName().endsWith("_1.pdf"))
+                return newFailedProcess();
+            FileUtils.copyFile(source, new File(source.getPath().replace(".pdf", "_ocr.pdf")));
+            return newSuccessProcess();
+        });
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(-1, (int) mockRequest.getStatusCode());
+        assertTrue(mockRequest.getStatusMessage().contains("pages 3-4"));
+        verify(runtime, times(1)).exec(endsWith("250_0.pdf"));
+        verify(runtime, times(1)).exec(endsWith("250_1.pdf"));
+        verify(retryScheduler, never()).schedule(any(Runnable.class), any(Long.class), any(TimeUnit.class));
+    }
+
+    @Test
+    public void test_transientChunkFailureRetriesOnlyTheChunk() throws IOException {
+        ocrRequestWorker.setOcrSplitEnabled(true);
+        ocrRequestWorker.setOcrSplitMinPages(4);
+        ocrRequestWorker.setOcrSplitPages(2);
+        mockRequest.setFileToOCRByteArray(newPdf(4));
+
+        // the tool is killed the first time it OCRs the second chunk
+        AtomicBoolean killed = new AtomicBoolean();
+        when(runtime.exec(any(String.class))).thenAnswer(invocation -> {
+            String command = (String) invocation.getArguments()[0];
+            File source = new File(command.substring(command.lastIndexOf(' ') + 1));
+            if(source.getName().endsWith("_1.pdf") && killed.compareAndSet(false, true))
+                return newKilledProcess();
+            FileUtils.copyFile(source, new File(source.getPath().replace(".pdf", "_ocr.pdf")));
+            return newSuccessProcess();
+        });
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(1, (int) mockRequest.getStatusCode());
+        verify(runtime, times(1)).exec(endsWith("250_0.pdf"));
+        verify(runtime, times(2)).exec(endsWith("250_1.pdf"));
+        verify(retryScheduler, never()).schedule(any(Runnable.class), any(Long.class), any(TimeUnit.class));
+    }
+
+    @Test
+    public void test_chunkFailingAtEveryAttemptRetriesRequestLater() throws IOException {
+        ocrRequestWorker.setOcrSplitEnabled(true);
+        ocrRequestWorker.setOcrSplitMinPages(4);
+        ocrRequestWorker.setOcrSplitPages(2);
+        mockRequest.setFileToOCRByteArray(newPdf(4));
+
+        when(runtime.exec(any(String.class))).thenAnswer(invocation -> {
+            String command = (String) invocation.getArguments()[0];
+            File source = new File(command.substring(command.lastIndexOf(' ') + 1));
+            if(source.getName().endsWith("_1.pdf"))
+                return newKilledProcess();
+            FileUtils.copyFile(source, new File(source.getPath().replace(".pdf", "_ocr.pdf")));
+            return newSuccessProcess();
+        });
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        assertEquals(0, (int) mockRequest.getStatusCode());
+        verify(runtime, times(3)).exec(endsWith("250_1.pdf"));
+        verify(retryScheduler).schedule(any(Runnable.class), eq(30000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void test_cancelRequestInChunks() throws Exception {
+        ocrRequestWorker.setOcrSplitEnabled(true);
+        ocrRequestWorker.setOcrSplitMinPages(4);
+        ocrRequestWorker.setOcrSplitPages(2);
+        mockRequest.setFileToOCRByteArray(newPdf(6));
+        doReturn(false).when(ocrRequestRepository).updateRequest(mockRequest);
+
+        // the first chunk hangs until it is interrupted, the queued chunks are left to this thread
+        CountDownLatch started = new CountDownLatch(1);
+        when(runtime.exec(any(String.class))).thenReturn(mockedProcess);
+        when(mockedProcess.getErrorStream()).thenReturn(new ByteArrayInputStream("Test".getBytes()));
+        when(mockedProcess.getInputStream()).thenReturn(new ByteArrayInputStream("Test".getBytes()));
+        when(mockedProcess.waitFor(any(Long.class), any(TimeUnit.class))).thenAnswer(invocation -> {
+            started.countDown();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            return true;
+        }).thenReturn(true);
+        when(mockedProcess.isAlive()).thenReturn(true);
+
+        Thread thread = new Thread(ocrRequestWorker.getRunnable(mockRequest));
+        thread.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        assertTrue(ocrRequestWorker.cancel(mockRequest.getId()));
+        thread.join(5000);
+
+        // neither the interrupted chunk nor the remaining ones are OCRed
+        assertFalse(thread.isAlive());
+        verify(runtime, times(1)).exec(endsWith("250_0.pdf"));
+        verify(runtime, never()).exec(endsWith("250_1.pdf"));
+        verify(runtime, never()).exec(endsWith("250_2.pdf"));
+        verify(retryScheduler, never()).schedule(any(Runnable.class), any(Long.class), any(TimeUnit.class));
+        verify(ocrCallbackDispatcher, never()).dispatch(mockRequest);
+    }
+
+    @Test
+    public void test_smallDocumentIsNotSplit() throws IOException {
+        ocrRequestWorker.setOcrSplitEnabled(true);
+        ocrRequestWorker.setOcrSplitMinPages(4);
+        ocrRequestWorker.setOcrSplitPages(2);
+        mockRequest.setFileToOCRByteArray(newPdf(3));
+        when(runtime.exec(any(String.class))).thenReturn(newFailedProcess());
+
+        ocrRequestWorker.getRunnable(mockRequest).run();
+
+        verify(runtime, times(1)).exec(endsWith("250.pdf"));
+        verify(priorityExecutor, never()).submit(any(Runnable.class));
+    }
+
+    // the result cache writes the given content to the target file
+    private void mockCachedResult(String content){
+        when(ocrResultCacheService.copyCachedResult(eq("key"), any(File.class))).thenAnswer(invocation -> {
+            FileUtils.writeStringToFile((File) invocation.getArguments()[1], content, "UTF-8");
+            return true;
+        });
+    }
+
+    private byte[] newPdf(int pages) throws IOException {
+        try(PDDocument document = new PDDocument()){
+            for(int i = 0; i < pages; i++){
+                document.addPage(new PDPage());
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
     }
 
     private Process newFailedProcess(){
@@ -171,6 +716,41 @@ public class OCRRequestWorkerTest {
     }
 
 
+    // a tool killed by a signal, a failure worth retrying
+    private Process newKilledProcess(){
+        return new Process() {
+            @Override
+            public OutputStream getOutputStream() {
+                return null;
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream("Test".getBytes());
+            }
+
+            @Override
+            public InputStream getErrorStream() {
+                return new ByteArrayInputStream("Killed".getBytes());
+            }
+
+            @Override
+            public int waitFor() throws InterruptedException {
+                return 137;
+            }
+
+            @Override
+            public int exitValue() {
+                return 137;
+            }
+
+            @Override
+            public void destroy() {
+                return;
+            }
+        };
+    }
+
     private Process newSuccessProcess(){
         return new Process() {
             @Override